@@ -90,6 +90,14 @@ public class CharacterComponent implements Serializable
         return _frameProvider.getFramePath(this, action, type, existentPaths);
     }
 
+    /**
+     * Returns the entity from which this component obtains its animation frames.
+     */
+    public FrameProvider getFrameProvider ()
+    {
+        return _frameProvider;
+    }
+
     @Override
     public boolean equals (Object other)
     {
@@ -20,14 +20,31 @@
 package com.threerings.cast;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.samskivert.util.LRUHashMap;
 import com.samskivert.util.StringUtil;
@@ -43,6 +60,7 @@ import com.threerings.media.image.ImageManager;
 
 import com.threerings.cast.CompositedActionFrames.ComponentFrames;
 import com.threerings.cast.CompositedActionFrames.CompositedFramesKey;
+import com.threerings.cast.CompositedActionFrames.FrameFactory;
 
 import static com.threerings.cast.Log.log;
 
@@ -86,6 +104,22 @@ public class CharacterManager
             public int computeSize (CompositedMultiFrameImage value) {
                 return (int)value.getEstimatedMemoryUsage();
             }
+        }) {
+            @Override
+            public CompositedMultiFrameImage put (
+                CompositedFramesKey key, CompositedMultiFrameImage value) {
+                // note the frames before adding them, as adding may flush them right back out
+                framesCached(key, value);
+                return super.put(key, value);
+            }
+        };
+        _frameCache.setRemovalObserver(
+            new LRUHashMap.RemovalObserver<CompositedFramesKey, CompositedMultiFrameImage>() {
+            public void removedFromMap (
+                LRUHashMap<CompositedFramesKey, CompositedMultiFrameImage> map,
+                CompositedMultiFrameImage value) {
+                framesRemoved(value);
+            }
         });
         _frameCache.setTracking(true); // TODO
     }
@@ -113,13 +147,55 @@ public class CharacterManager
 
     /**
      * Instructs the character manager to use the provided cache for
-     * composited action animations.
+     * composited action animations. Frames are obtained from the cache
+     * when available and newly prepared frames are passed to the cache
+     * to be stored. See {@link DiskActionCache}.
      */
     public void setActionCache (ActionCache cache)
     {
         _acache = cache;
     }
 
+    /**
+     * Configures the character manager to composite action frames on a bounded pool of background
+     * threads rather than on the thread that first requests them. Sprites display the frames of
+     * one of their source components until their composited frames are ready. This should be
+     * called before any characters are created, as it only affects action frames created after
+     * the call.
+     *
+     * @param threads the number of compositing threads, or zero to composite synchronously.
+     */
+    public void setCompositingThreads (int threads)
+    {
+        if (_compositor != null) {
+            _compositor.shutdown();
+            _compositor = null;
+        }
+        if (threads > 0) {
+            _compositor = new ThreadPoolExecutor(
+                threads, threads, COMPOSITOR_KEEPALIVE, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_COMPOSITES),
+                new ThreadFactoryBuilder().setNameFormat("Character compositor %d").
+                    setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+            _compositor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Configures the character manager to composite the frames of an action lazily, as each one
+     * is first displayed, rather than compositing every frame of an orientation as soon as the
+     * orientation is needed. The images of lazily composited frames are evicted individually,
+     * least recently used first, once they exceed the specified size. This should be called
+     * before any characters are created.
+     *
+     * @param cacheKilobytes the maximum size of lazily composited frame imagery, or zero to
+     * composite whole orientations.
+     */
+    public void setLazyCompositing (int cacheKilobytes)
+    {
+        _lazyFrames = (cacheKilobytes > 0) ? new CompositedFrameCache(cacheKilobytes) : null;
+    }
+
     /**
      * Returns a {@link CharacterSprite} representing the character
      * described by the given {@link CharacterDescriptor}, or
@@ -171,21 +247,49 @@ public class CharacterManager
         throws NoSuchComponentException
     {
         Tuple<CharacterDescriptor, String> key = new Tuple<CharacterDescriptor, String>(descrip, action);
-        ActionFrames frames = _actionFrames.get(key);
+        ActionFrames frames;
+        synchronized (_frameCache) {
+            frames = _actionFrames.get(key);
+        }
         if (frames == null) {
-            // this doesn't actually composite the images, but prepares an
-            // object to be able to do so
-            frames = createCompositeFrames(descrip, action);
-            _actionFrames.put(key, frames);
+            // if these frames were composited in a previous session, we can use them directly
+            ActionCache acache = _acache;
+            boolean cached = false;
+            if (acache != null) {
+                frames = acache.getActionFrames(descrip, action);
+                cached = (frames != null);
+            }
+            if (frames == null) {
+                // this doesn't actually composite the images, but prepares an
+                // object to be able to do so
+                frames = createCompositeFrames(descrip, action);
+            }
+            // another thread may have beaten us to the punch
+            ActionFrames oframes;
+            synchronized (_frameCache) {
+                oframes = _actionFrames.get(key);
+                if (oframes == null) {
+                    _actionFrames.put(key, frames);
+                    actionFramesAdded(key, frames);
+                }
+            }
+            if (oframes != null) {
+                frames = oframes;
+            } else if (acache != null && !cached) {
+                acache.cacheActionFrames(descrip, action, frames);
+            }
         }
 
         // periodically report our frame image cache performance
         if (!_cacheStatThrottle.throttleOp()) {
             long size = getEstimatedCacheMemoryUsage();
-            int[] eff = _frameCache.getTrackedEffectiveness();
-            log.debug("CharacterManager LRU [mem=" + (size / 1024) + "k" +
-                      ", size=" + _frameCache.size() + ", hits=" + eff[0] +
-                      ", misses=" + eff[1] + "].");
+            synchronized (_frameCache) {
+                int[] eff = _frameCache.getTrackedEffectiveness();
+                log.debug("CharacterManager LRU [mem=" + (size / 1024) + "k" +
+                          ", size=" + _frameCache.size() + ", hits=" + eff[0] +
+                          ", misses=" + eff[1] + ", actions=" + _actionFrames.size() +
+                          ((_lazyFrames == null) ? "" : ", lazy=" + _lazyFrames) + "].");
+            }
         }
 
         return frames;
@@ -197,21 +301,108 @@ public class CharacterManager
      * future and so any efforts that can be made to load it into the
      * action sequence cache in advance should be undertaken.
      *
-     * <p> This will eventually be revamped to spiffily load action
-     * sequences in the background.
+     * <p> If background compositing is enabled (see {@link #setCompositingThreads}), each
+     * orientation is queued up to be composited on a compositing thread; otherwise the action
+     * frames are merely prepared on the calling thread.
      */
     public void resolveActionSequence (CharacterDescriptor desc, String action)
     {
+        if (_compositor == null) {
+            resolveActionFrames(desc, action);
+            return;
+        }
+        ActionSequence actseq = _actions.get(action);
+        int orients = (actseq == null || actseq.orients == null) ? 0 : actseq.orients.length;
+        for (int ii = 0; ii < orients; ii++) {
+            resolveActionSequence(desc, action, actseq.orients[ii]);
+        }
+    }
+
+    /**
+     * Informs the character manager that the specified orientation of the action sequence for the
+     * given character descriptor is likely to be needed in the near future. If background
+     * compositing is enabled, the frames are queued up to be composited; if the compositing queue
+     * is full, the request is dropped and the frames will be composited when first displayed.
+     */
+    public void resolveActionSequence (
+        final CharacterDescriptor desc, final String action, final int orient)
+    {
+        if (_compositor == null) {
+            resolveActionFrames(desc, action);
+            return;
+        }
         try {
-            if (getActionFrames(desc, action) == null) {
-                log.warning("Failed to resolve action sequence " +
-                            "[desc=" + desc + ", action=" + action + "].");
-            }
+            _compositor.execute(new Runnable() {
+                public void run () {
+                    ActionFrames frames = resolveActionFrames(desc, action);
+                    if (frames instanceof CompositedActionFrames) {
+                        ((CompositedActionFrames)frames).resolveFrames(orient);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            log.debug("Dropping action resolution, compositor is busy", "desc", desc,
+                      "action", action, "orient", orient);
+        }
+    }
 
-        } catch (NoSuchComponentException nsce) {
-            log.warning("Failed to resolve action sequence " +
-                        "[nsce=" + nsce + "].");
+    /**
+     * Renders every frame of the specified orientations of an action of the described character
+     * into a single packed sprite sheet. The frames are composited directly from the component
+     * sources, bypassing our composited frame cache and the image manager's screen compatible
+     * images, so this works headlessly. It may be called concurrently for different descriptors.
+     *
+     * @param orients the orientations to render, or null to render all of them.
+     *
+     * @exception NoSuchComponentException thrown if any of the components in the supplied
+     * descriptor do not exist.
+     * @exception IllegalArgumentException thrown if the action does not exist.
+     */
+    public SpriteSheet createSpriteSheet (CharacterDescriptor desc, String action, int[] orients)
+        throws NoSuchComponentException
+    {
+        ActionSequence actseq = _actions.get(action);
+        if (actseq == null) {
+            throw new IllegalArgumentException("No such action '" + action + "'.");
+        }
+        CompositedActionFrames frames = (CompositedActionFrames)createCompositeFrames(desc, action);
+        return new SpriteSheet(action, (orients == null) ? actseq.orients : orients,
+                               frames.getSources());
+    }
+
+    /**
+     * Renders sprite sheets for each of the supplied descriptors (see {@link #createSpriteSheet})
+     * in parallel on the supplied executor, returning once they are all rendered. Sheets that
+     * could not be rendered are logged and left null.
+     */
+    public SpriteSheet[] createSpriteSheets (
+        CharacterDescriptor[] descs, final String action, final int[] orients, Executor executor)
+    {
+        List<FutureTask<SpriteSheet>> tasks = Lists.newArrayListWithCapacity(descs.length);
+        for (final CharacterDescriptor desc : descs) {
+            FutureTask<SpriteSheet> task = new FutureTask<SpriteSheet>(
+                new Callable<SpriteSheet>() {
+                    public SpriteSheet call () throws Exception {
+                        return createSpriteSheet(desc, action, orients);
+                    }
+                });
+            tasks.add(task);
+            executor.execute(task);
+        }
+
+        SpriteSheet[] sheets = new SpriteSheet[descs.length];
+        for (int ii = 0; ii < sheets.length; ii++) {
+            try {
+                sheets[ii] = tasks.get(ii).get();
+            } catch (ExecutionException ee) {
+                log.warning("Failed to render sprite sheet", "desc", descs[ii],
+                            "action", action, "error", ee.getCause());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
         }
+        return sheets;
     }
 
     /**
@@ -223,6 +414,27 @@ public class CharacterManager
         return _actions.get(action);
     }
 
+    /**
+     * Obtains the action frames for the specified action, logging a warning and returning null if
+     * that fails.
+     */
+    protected ActionFrames resolveActionFrames (CharacterDescriptor desc, String action)
+    {
+        try {
+            ActionFrames frames = getActionFrames(desc, action);
+            if (frames == null) {
+                log.warning("Failed to resolve action sequence " +
+                            "[desc=" + desc + ", action=" + action + "].");
+            }
+            return frames;
+
+        } catch (NoSuchComponentException nsce) {
+            log.warning("Failed to resolve action sequence " +
+                        "[nsce=" + nsce + "].");
+            return null;
+        }
+    }
+
     /**
      * Returns the estimated memory usage in bytes for all images
      * currently cached by the cached action frames.
@@ -230,13 +442,85 @@ public class CharacterManager
     protected long getEstimatedCacheMemoryUsage ()
     {
         long size = 0;
-        Iterator<CompositedMultiFrameImage> iter = _frameCache.values().iterator();
-        while (iter.hasNext()) {
-            size += iter.next().getEstimatedMemoryUsage();
+        synchronized (_frameCache) {
+            Iterator<CompositedMultiFrameImage> iter = _frameCache.values().iterator();
+            while (iter.hasNext()) {
+                size += iter.next().getEstimatedMemoryUsage();
+            }
         }
         return size;
     }
 
+    /**
+     * Notes that the supplied action frames have been added to {@link #_actionFrames}, so that
+     * they can be released when the last of their composited frames is evicted from the frame
+     * cache. The caller must hold the frame cache lock.
+     */
+    protected void actionFramesAdded (Tuple<CharacterDescriptor, String> key, ActionFrames frames)
+    {
+        if (frames instanceof CompositedActionFrames) {
+            Object content = ((CompositedActionFrames)frames).getContent();
+            CachedContent cached = _cachedContents.get(content);
+            if (cached == null) {
+                _cachedContents.put(content, cached = new CachedContent());
+            }
+            cached.actions.add(key);
+        }
+    }
+
+    /**
+     * Notes that the supplied action frames have been dropped from {@link #_actionFrames}. The
+     * caller must hold the frame cache lock.
+     */
+    protected void actionFramesRemoved (
+        Tuple<CharacterDescriptor, String> key, ActionFrames frames)
+    {
+        if (frames instanceof CompositedActionFrames) {
+            Object content = ((CompositedActionFrames)frames).getContent();
+            CachedContent cached = _cachedContents.get(content);
+            if (cached != null) {
+                cached.actions.remove(key);
+                if (cached.orients == 0 && cached.actions.isEmpty()) {
+                    _cachedContents.remove(content);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when composited frames are added to the frame cache (with the frame cache lock
+     * held).
+     */
+    protected void framesCached (CompositedFramesKey key, CompositedMultiFrameImage frames)
+    {
+        Object content = key.getContent();
+        if (_frameContents.put(frames, content) == null) {
+            CachedContent cached = _cachedContents.get(content);
+            if (cached == null) {
+                _cachedContents.put(content, cached = new CachedContent());
+            }
+            cached.orients++;
+        }
+    }
+
+    /**
+     * Called when composited frames are removed from the frame cache (with the frame cache lock
+     * held). If they were the last cached orientation of a set of action frames, those action
+     * frames are released as well.
+     */
+    protected void framesRemoved (CompositedMultiFrameImage frames)
+    {
+        Object content = _frameContents.remove(frames);
+        CachedContent cached = (content == null) ? null : _cachedContents.get(content);
+        if (cached == null || --cached.orients > 0) {
+            return;
+        }
+        for (Tuple<CharacterDescriptor, String> key : cached.actions) {
+            _actionFrames.remove(key);
+        }
+        _cachedContents.remove(content);
+    }
+
     /**
      * Generates the composited animation frames for the specified action
      * for a character with the specified descriptor.
@@ -265,8 +549,11 @@ public class CharacterManager
         HashMap<String, ArrayList<TranslatedComponent>> ccomps =
             Maps.newHashMap();
 
-        // create colorized versions of all of the source action frames
+        // create colorized versions of all of the source action frames; we also note the content
+        // of each component (id, colorizations and translation) so that the composited frames
+        // can be shared with any other character made up of the same components
         ArrayList<ComponentFrames> sources = Lists.newArrayListWithCapacity(ccount);
+        ArrayList<Object> contents = Lists.newArrayListWithCapacity(ccount);
         for (int ii = 0; ii < ccount; ii++) {
             ComponentFrames cframes = new ComponentFrames();
             sources.add(cframes);
@@ -285,6 +572,8 @@ public class CharacterManager
             Point xlation = (xlations == null) ? null : xlations[ii];
             cframes.frames = (xlation == null) ?
                 source : source.cloneTranslated(xlation.x, xlation.y);
+            contents.add(Arrays.asList(cids[ii],
+                getColorizationIds(zations == null ? null : zations[ii]), xlation));
 
             // store the component with its translation under its class for masking
             TranslatedComponent tcomp = new TranslatedComponent(ccomp, xlation);
@@ -317,18 +606,21 @@ public class CharacterManager
             }
         }
 
-        // add any necessary masks
-        for (ComponentFrames cframes : sources) {
+        // add any necessary masks (shadows follow our components and are never masked)
+        for (int ii = 0; ii < ccount; ii++) {
+            ComponentFrames cframes = sources.get(ii);
             ArrayList<TranslatedComponent> mcomps = ccomps.get(cframes.ccomp.componentClass.mask);
             if (mcomps != null) {
-                cframes.frames = compositeMask(action, cframes.ccomp, cframes.frames, mcomps);
+                cframes.frames = compositeMask(
+                    action, cframes.ccomp, cframes.frames, mcomps, contents.get(ii));
             }
         }
 
         // use those to create an entity that will lazily composite things
         // together as they are needed
         ComponentFrames[] cfvec = sources.toArray(new ComponentFrames[sources.size()]);
-        return new CompositedActionFrames(_imgr, _frameCache, action, cfvec);
+        return new CompositedActionFrames(_imgr, _frameCache, action, cfvec, _compositor,
+            contents, CompositedActionFrames.DEFAULT_FACTORY, _lazyFrames);
     }
 
     protected ComponentFrames compositeShadow (
@@ -347,6 +639,9 @@ public class CharacterManager
         cframes.ccomp = new CharacterComponent(-1, "shadow", cclass, null);
 
         ArrayList<ComponentFrames> sources = Lists.newArrayList();
+        ArrayList<Object> contents = Lists.newArrayList();
+        contents.add(StandardActions.SHADOW_TYPE);
+        contents.add(sclass);
         for (TranslatedComponent scomp : scomps) {
             ComponentFrames source = new ComponentFrames();
             source.ccomp = scomp.ccomp;
@@ -356,6 +651,7 @@ public class CharacterManager
                 continue;
             }
             sources.add(source);
+            contents.add(scomp.getContent());
         }
 
         // if we ended up with no shadow, no problem!
@@ -366,13 +662,40 @@ public class CharacterManager
         // create custom action frames that use a special compositing
         // multi-frame image that does the necessary shadow magic
         ComponentFrames[] svec = sources.toArray(new ComponentFrames[sources.size()]);
-        cframes.frames = new CompositedActionFrames(_imgr, _frameCache, action, svec) {
-            @Override
-            protected CompositedMultiFrameImage createFrames (int orient) {
-                return new CompositedShadowImage(
-                    _imgr, _sources, _action, orient, cclass.shadowAlpha);
-            }
-        };
+        cframes.frames = new CompositedActionFrames(
+            _imgr, _frameCache, action, svec, null, contents, new FrameFactory() {
+                @Override
+                public CompositedMultiFrameImage createFrames (
+                    ImageManager imgr, ComponentFrames[] sources, String action, int orient,
+                    CompositedFrameCache lazyFrames) {
+                    return new CompositedShadowImage(
+                        imgr, sources, action, orient, cclass.shadowAlpha);
+                }
+                @Override
+                public void paintFrame (Graphics2D gfx, ComponentFrames[] sources,
+                                        String action, int orient, int index, int x, int y) {
+                    // the shadows are combined and then rendered translucently as one
+                    Rectangle bounds = new Rectangle();
+                    getTrimmedBounds(sources, orient, index, bounds);
+                    if (bounds.isEmpty()) {
+                        return;
+                    }
+                    BufferedImage shadow = new BufferedImage(
+                        bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+                    Graphics2D sgfx = shadow.createGraphics();
+                    try {
+                        super.paintFrame(sgfx, sources, action, orient, index,
+                                         -bounds.x, -bounds.y);
+                    } finally {
+                        sgfx.dispose();
+                    }
+                    Composite ocomp = gfx.getComposite();
+                    gfx.setComposite(AlphaComposite.getInstance(
+                                         AlphaComposite.SRC_OVER, cclass.shadowAlpha));
+                    gfx.drawImage(shadow, x + bounds.x, y + bounds.y, null);
+                    gfx.setComposite(ocomp);
+                }
+            }, null);
 
         return cframes;
     }
@@ -380,25 +703,39 @@ public class CharacterManager
     protected ActionFrames compositeMask (
         String action, CharacterComponent ccomp, ActionFrames cframes,
         ArrayList<TranslatedComponent> mcomps)
+    {
+        return compositeMask(action, ccomp, cframes, mcomps, null);
+    }
+
+    /**
+     * Masks the supplied component frames with the supplied masking components.
+     *
+     * @param ccontent the content key of the masked component, used to share the masked frames
+     * among identical characters, or null if they should not be shared.
+     */
+    protected ActionFrames compositeMask (
+        String action, CharacterComponent ccomp, ActionFrames cframes,
+        ArrayList<TranslatedComponent> mcomps, Object ccontent)
     {
         ArrayList<ComponentFrames> sources = Lists.newArrayList();
+        ArrayList<Object> contents = Lists.newArrayList();
+        contents.add(StandardActions.CROP_TYPE);
+        contents.add(ccontent);
         sources.add(new ComponentFrames(ccomp, cframes));
         for (TranslatedComponent mcomp : mcomps) {
             ActionFrames mframes = mcomp.getFrames(action, StandardActions.CROP_TYPE);
             if (mframes != null) {
                 sources.add(new ComponentFrames(mcomp.ccomp, mframes));
+                contents.add(mcomp.getContent());
             }
         }
         if (sources.size() == 1) {
             return cframes;
         }
         ComponentFrames[] mvec = sources.toArray(new ComponentFrames[sources.size()]);
-        return new CompositedActionFrames(_imgr, _frameCache, action, mvec) {
-            @Override
-            protected CompositedMultiFrameImage createFrames (int orient) {
-                return new CompositedMaskedImage(_imgr, _sources, _action, orient);
-            }
-        };
+        return new CompositedActionFrames(
+            _imgr, _frameCache, action, mvec, null, (ccontent == null) ? null : contents,
+            MASK_FACTORY, null);
     }
 
     /** Combines a component with an optional translation for shadowing or masking. */
@@ -419,6 +756,38 @@ public class CharacterManager
             return (frames == null || xlation == null) ?
                 frames : frames.cloneTranslated(xlation.x, xlation.y);
         }
+
+        /** Returns a key identifying this component and translation. */
+        public Object getContent ()
+        {
+            return Arrays.asList(ccomp.componentId, xlation);
+        }
+    }
+
+    /** Tracks the composited frames cached for a particular content key. */
+    protected static class CachedContent
+    {
+        /** The number of orientations in the frame cache. */
+        public int orients;
+
+        /** The keys of the action frames with this content in {@link
+         * CharacterManager#_actionFrames}. */
+        public List<Tuple<CharacterDescriptor, String>> actions = Lists.newArrayListWithCapacity(1);
+    }
+
+    /**
+     * Returns the ids of the supplied colorizations (which may be null) for use in content keys.
+     */
+    protected static List<Integer> getColorizationIds (Colorization[] zations)
+    {
+        if (zations == null) {
+            return null;
+        }
+        List<Integer> ids = Lists.newArrayListWithCapacity(zations.length);
+        for (Colorization zation : zations) {
+            ids.add((zation == null) ? null : zation.colorizationId);
+        }
+        return ids;
     }
 
     /** The image manager with whom we interact. */
@@ -430,23 +799,107 @@ public class CharacterManager
     /** A table of our action sequences. */
     protected Map<String, ActionSequence> _actions = Maps.newHashMap();
 
-    /** A table of composited action sequences (these don't reference the
-     * actual image data directly and thus take up little memory). */
+    /** A table of composited action sequences. These don't reference the actual image data
+     * directly, but they do hold colorized and translated copies of their source frames, so an
+     * entry is released when the last of its composited orientations is evicted from {@link
+     * #_frameCache}. Action frames that are never composited (or that are loaded from the action
+     * cache) are bounded by evicting the least recently used. Access must be synchronized on the
+     * frame cache. */
     protected Map<Tuple<CharacterDescriptor, String>, ActionFrames> _actionFrames =
-        Maps.newHashMap();
+        new LinkedHashMap<Tuple<CharacterDescriptor, String>, ActionFrames>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry (
+            Map.Entry<Tuple<CharacterDescriptor, String>, ActionFrames> eldest) {
+            if (size() <= MAX_ACTION_FRAMES) {
+                return false;
+            }
+            actionFramesRemoved(eldest.getKey(), eldest.getValue());
+            return true;
+        }
+    };
+
+    /** The content key of each of the composited frames in {@link #_frameCache}. */
+    protected Map<CompositedMultiFrameImage, Object> _frameContents = Maps.newIdentityHashMap();
+
+    /** Tracks the frames cached and the action frames tracked for each content key. */
+    protected Map<Object, CachedContent> _cachedContents = Maps.newHashMap();
 
-    /** A cache of composited animation frames. */
+    /** A cache of composited animation frames. Access must be synchronized on the cache. */
     protected LRUHashMap<CompositedFramesKey, CompositedMultiFrameImage> _frameCache;
 
     /** The character class to be created. */
     protected Class<? extends CharacterSprite> _charClass = CharacterSprite.class;
 
     /** The action animation cache, if we have one. */
-    protected ActionCache _acache;
+    protected volatile ActionCache _acache;
+
+    /** Manages lazily composited frames, if so configured. */
+    protected CompositedFrameCache _lazyFrames;
+
+    /** Composites action frames in the background, if so configured. */
+    protected ThreadPoolExecutor _compositor;
 
     /** Throttle our cache status logging to once every 30 seconds. */
     protected Throttle _cacheStatThrottle = new Throttle(1, 30000L);
 
+    /** Creates the frames that mask a component. */
+    protected static final FrameFactory MASK_FACTORY = new FrameFactory() {
+        @Override
+        public CompositedMultiFrameImage createFrames (
+            ImageManager imgr, ComponentFrames[] sources, String action, int orient,
+            CompositedFrameCache lazyFrames) {
+            return new CompositedMaskedImage(imgr, sources, action, orient);
+        }
+        @Override
+        public void getTrimmedBounds (
+            ComponentFrames[] sources, int orient, int index, Rectangle bounds) {
+            // a masked frame is confined to its masks
+            Rectangle tbounds = new Rectangle();
+            for (int ii = 0; ii < sources.length; ii++) {
+                CompositedActionFrames.getSourceBounds(sources[ii].frames, orient, index, tbounds);
+                if (ii == 0) {
+                    bounds.setBounds(tbounds);
+                } else {
+                    Rectangle.intersect(bounds, tbounds, bounds);
+                }
+            }
+        }
+        @Override
+        public void paintFrame (Graphics2D gfx, ComponentFrames[] sources, String action,
+                                int orient, int index, int x, int y) {
+            // the component is masked in a scratch image so as not to disturb what's beneath it
+            Rectangle bounds = new Rectangle();
+            getTrimmedBounds(sources, orient, index, bounds);
+            if (bounds.isEmpty()) {
+                return;
+            }
+            BufferedImage masked = new BufferedImage(
+                bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D mgfx = masked.createGraphics();
+            try {
+                CompositedActionFrames.paintSourceFrame(
+                    sources[0].frames, mgfx, orient, index, -bounds.x, -bounds.y);
+                mgfx.setComposite(AlphaComposite.DstIn);
+                for (int ii = 1; ii < sources.length; ii++) {
+                    CompositedActionFrames.paintSourceFrame(
+                        sources[ii].frames, mgfx, orient, index, -bounds.x, -bounds.y);
+                }
+            } finally {
+                mgfx.dispose();
+            }
+            gfx.drawImage(masked, x + bounds.x, y + bounds.y, null);
+        }
+    };
+
+    /** The maximum number of action frames tracked in {@link #_actionFrames}. */
+    protected static final int MAX_ACTION_FRAMES = 2048;
+
+    /** The maximum number of composites that may be waiting for a compositing thread. */
+    protected static final int MAX_QUEUED_COMPOSITES = 256;
+
+    /** The time after which idle compositing threads exit. */
+    protected static final long COMPOSITOR_KEEPALIVE = 30 * 1000L;
+
     /** Register our image cache size with the runtime adjustments
      * framework. */
     protected static RuntimeAdjust.IntAdjust _cacheSize =
@@ -260,7 +260,25 @@ public class CharacterSprite extends ImageSprite
     protected final void compositeActionFrames ()
     {
         if (_frames == null && _aframes != null) {
-            setFrames(_aframes.getFrames(_orient));
+            TrimmedMultiFrameImage frames = _aframes.getFrames(_orient);
+            setFrames(frames);
+            _pending = (frames instanceof CompositedActionFrames.PendingFrames) ?
+                (CompositedActionFrames.PendingFrames)frames : null;
+
+        } else if (_pending != null && _pending.isComposited()) {
+            // our frames were composited in the background; lay them out anew as their
+            // dimensions and origins differ from those of the placeholder
+            _pending = null;
+            if (_frames != null) {
+                layout();
+            }
+
+        } else if (_pending != null && _pending.hasFailed()) {
+            // compositing failed in the background, so rather than showing the placeholder
+            // forever we try again here
+            CompositedActionFrames.PendingFrames pending = _pending;
+            _pending = null;
+            setFrames(pending.compositeNow());
         }
     }
 
@@ -377,6 +395,9 @@ public class CharacterSprite extends ImageSprite
     /** The animation frames for the active action sequence in each orientation. */
     protected ActionFrames _aframes;
 
+    /** Our current frames if they are still being composited in the background. */
+    protected CompositedActionFrames.PendingFrames _pending;
+
     /** The offset from the upper-left of the total sprite bounds to the upper-left of the image
      * within those bounds. */
     protected Point _ioff = new Point();
@@ -19,7 +19,17 @@
 
 package com.threerings.cast;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+
+import com.google.common.collect.Maps;
 
 import com.samskivert.util.StringUtil;
 
@@ -29,6 +39,8 @@ import com.threerings.media.image.Colorization;
 import com.threerings.media.image.ImageManager;
 import com.threerings.media.util.MultiFrameImage;
 
+import static com.threerings.cast.Log.log;
+
 /**
  * An implementation of the {@link MultiFrameImage} interface that is used
  * to lazily create composited character frames when they are requested.
@@ -59,6 +71,129 @@ public class CompositedActionFrames
         }
     }
 
+    /**
+     * Creates the multi-frame images that composite a particular orientation of our frames, and
+     * can also render individual frames straight from their sources for use outside of a live
+     * display. The default implementations of the latter composite the sources in render order.
+     */
+    public static abstract class FrameFactory
+    {
+        /**
+         * Creates the composited frames for the specified orientation.
+         *
+         * @param lazyFrames the cache with which to register lazily composited frames, or null
+         * if the frames should be composited immediately.
+         */
+        public abstract CompositedMultiFrameImage createFrames (
+            ImageManager imgr, ComponentFrames[] sources, String action, int orient,
+            CompositedFrameCache lazyFrames);
+
+        /**
+         * Computes the trimmed bounds of the specified frame composited from the supplied
+         * sources, in the coordinates of the untrimmed source frames.
+         */
+        public void getTrimmedBounds (
+            ComponentFrames[] sources, int orient, int index, Rectangle bounds)
+        {
+            Rectangle tbounds = new Rectangle();
+            for (int ii = 0; ii < sources.length; ii++) {
+                getSourceBounds(sources[ii].frames, orient, index, tbounds);
+                if (ii == 0) {
+                    bounds.setBounds(tbounds);
+                } else {
+                    bounds.add(tbounds);
+                }
+            }
+        }
+
+        /**
+         * Composites the specified frame from the supplied sources directly into the supplied
+         * graphics, such that the upper left of the untrimmed frame is at the specified
+         * coordinates. No images are created for or cached with the frame.
+         */
+        public void paintFrame (Graphics2D gfx, ComponentFrames[] sources, final String action,
+                                final int orient, int index, int x, int y)
+        {
+            ComponentFrames[] sorted = sources.clone();
+            Arrays.sort(sorted, new Comparator<ComponentFrames>() {
+                public int compare (ComponentFrames cf1, ComponentFrames cf2) {
+                    return (cf1.ccomp.getRenderPriority(action, orient) -
+                            cf2.ccomp.getRenderPriority(action, orient));
+                }
+            });
+            for (ComponentFrames source : sorted) {
+                paintSourceFrame(source.frames, gfx, orient, index, x, y);
+            }
+        }
+    }
+
+    /** Creates plain composited frames. */
+    public static final FrameFactory DEFAULT_FACTORY = new FrameFactory() {
+        @Override
+        public CompositedMultiFrameImage createFrames (
+            ImageManager imgr, ComponentFrames[] sources, String action, int orient,
+            CompositedFrameCache lazyFrames) {
+            return new CompositedMultiFrameImage(imgr, sources, action, orient, lazyFrames);
+        }
+    };
+
+    /**
+     * Returns the number of frames in the specified orientation of the supplied action frames,
+     * without compositing anything.
+     */
+    public static int getSourceFrameCount (ActionFrames frames, int orient)
+    {
+        while (frames instanceof CompositedActionFrames) {
+            frames = ((CompositedActionFrames)frames)._sources[0].frames;
+        }
+        return frames.getFrames(orient).getFrameCount();
+    }
+
+    /**
+     * Computes the trimmed bounds of the specified frame of the supplied action frames, in the
+     * coordinates of the untrimmed frame, without compositing anything.
+     */
+    public static void getSourceBounds (
+        ActionFrames frames, int orient, int index, Rectangle bounds)
+    {
+        if (frames instanceof CompositedActionFrames) {
+            CompositedActionFrames cframes = (CompositedActionFrames)frames;
+            cframes._factory.getTrimmedBounds(cframes._sources, orient, index, bounds);
+        } else {
+            frames.getFrames(orient).getTrimmedBounds(index, bounds);
+        }
+    }
+
+    /**
+     * Returns the origin of the specified frame of the supplied action frames, in the coordinates
+     * of the untrimmed frame, without compositing anything.
+     */
+    public static Point getSourceOrigin (ActionFrames frames, int orient, int index)
+    {
+        // composited frames share the origin of their first source
+        while (frames instanceof CompositedActionFrames) {
+            frames = ((CompositedActionFrames)frames)._sources[0].frames;
+        }
+        return new Point(frames.getXOrigin(orient, index), frames.getYOrigin(orient, index));
+    }
+
+    /**
+     * Paints the specified frame of the supplied action frames such that the upper left of the
+     * untrimmed frame is at the specified coordinates. Composited action frames are composited
+     * directly from their sources, bypassing the frame cache.
+     */
+    public static void paintSourceFrame (
+        ActionFrames frames, Graphics2D gfx, int orient, int index, int x, int y)
+    {
+        if (frames instanceof CompositedActionFrames) {
+            CompositedActionFrames cframes = (CompositedActionFrames)frames;
+            cframes._factory.paintFrame(
+                gfx, cframes._sources, cframes._action, orient, index, x, y);
+        } else {
+            frames.getFrames(orient).paintFrame(gfx, index, x, y);
+        }
+    }
+
     /**
      * Constructs a set of composited action frames with the supplied
      * source frames and colorization configuration. The actual component
@@ -67,6 +202,54 @@ public class CompositedActionFrames
     public CompositedActionFrames (
         ImageManager imgr, Map<CompositedFramesKey, CompositedMultiFrameImage> frameCache,
         String action, ComponentFrames[] sources)
+    {
+        this(imgr, frameCache, action, sources, null);
+    }
+
+    /**
+     * Constructs a set of composited action frames that composite their frames on the supplied
+     * executor. Until a particular orientation has been composited, {@link #getFrames} returns a
+     * {@link PendingFrames} which displays a placeholder and then switches over to the composited
+     * frames once they are ready.
+     *
+     * @param compositor the executor on which to composite, or null to composite synchronously
+     * when frames are requested.
+     */
+    public CompositedActionFrames (
+        ImageManager imgr, Map<CompositedFramesKey, CompositedMultiFrameImage> frameCache,
+        String action, ComponentFrames[] sources, Executor compositor)
+    {
+        this(imgr, frameCache, action, sources, compositor, null);
+    }
+
+    /**
+     * Constructs a set of composited action frames whose composited images are cached under the
+     * supplied content key. Any two action frames constructed with equal content keys share the
+     * same composited images in the frame cache, so the key must capture everything that affects
+     * the imagery (component ids, colorizations, translations and so forth).
+     *
+     * @param content the content key, or null to cache our images under a key that is unique to
+     * this instance.
+     */
+    public CompositedActionFrames (
+        ImageManager imgr, Map<CompositedFramesKey, CompositedMultiFrameImage> frameCache,
+        String action, ComponentFrames[] sources, Executor compositor, Object content)
+    {
+        this(imgr, frameCache, action, sources, compositor, content, DEFAULT_FACTORY, null);
+    }
+
+    /**
+     * Constructs a set of composited action frames whose frames are created by the supplied
+     * factory. The factory and lazy frame cache are carried over to any translated copies.
+     *
+     * @param factory creates the multi-frame images that composite each orientation.
+     * @param lazyFrames the cache that manages lazily composited frames, or null to composite
+     * each orientation's frames all at once.
+     */
+    public CompositedActionFrames (
+        ImageManager imgr, Map<CompositedFramesKey, CompositedMultiFrameImage> frameCache,
+        String action, ComponentFrames[] sources, Executor compositor, Object content,
+        FrameFactory factory, CompositedFrameCache lazyFrames)
     {
         // sanity check
         if (sources == null || sources.length == 0) {
@@ -80,6 +263,11 @@ public class CompositedActionFrames
         _frameCache = frameCache;
         _sources = sources;
         _action = action;
+        _compositor = compositor;
+        _factory = factory;
+        _lazyFrames = lazyFrames;
+        _content = (content == null) ? this : Arrays.asList(content, action);
+        _key = new CompositedFramesKey(_content, 0);
 
         // the sources must all have the same orientation count, so we
         // just use the first
@@ -95,30 +283,67 @@ public class CompositedActionFrames
     // documentation inherited from interface
     public TrimmedMultiFrameImage getFrames (int orient)
     {
-        _key.setOrient(orient);
-        CompositedMultiFrameImage cmfi =
-            _frameCache.get(_key);
-        if (cmfi == null) {
-            cmfi = createFrames(orient);
-            _frameCache.put(new CompositedFramesKey(orient), cmfi);
+        CompositedMultiFrameImage cmfi = getCachedFrames(orient);
+        if (cmfi != null) {
+            return cmfi;
         }
-        return cmfi;
+        return (_compositor == null) ? compositeFrames(orient) : queueFrames(orient);
     }
 
     // documentation inherited from interface
     public int getXOrigin (int orient, int frameIdx)
     {
-        CompositedMultiFrameImage cmfi = (CompositedMultiFrameImage)
-            getFrames(orient);
-        return cmfi.getXOrigin(frameIdx);
+        TrimmedMultiFrameImage frames = getFrames(orient);
+        if (frames instanceof PendingFrames) {
+            return ((PendingFrames)frames).getXOrigin(frameIdx);
+        }
+        return ((CompositedMultiFrameImage)frames).getXOrigin(frameIdx);
     }
 
     // documentation inherited from interface
     public int getYOrigin (int orient, int frameIdx)
     {
-        CompositedMultiFrameImage cmfi = (CompositedMultiFrameImage)
-            getFrames(orient);
-        return cmfi.getYOrigin(frameIdx);
+        TrimmedMultiFrameImage frames = getFrames(orient);
+        if (frames instanceof PendingFrames) {
+            return ((PendingFrames)frames).getYOrigin(frameIdx);
+        }
+        return ((CompositedMultiFrameImage)frames).getYOrigin(frameIdx);
+    }
+
+    /**
+     * Returns the composited frames for the specified orientation, compositing them on the
+     * calling thread if they are not already cached.
+     */
+    public CompositedMultiFrameImage compositeFrames (int orient)
+    {
+        CompositedMultiFrameImage cmfi = getCachedFrames(orient);
+        if (cmfi == null) {
+            cmfi = createFrames(orient);
+            synchronized (_frameCache) {
+                _frameCache.put(new CompositedFramesKey(_content, orient), cmfi);
+            }
+        }
+        return cmfi;
+    }
+
+    /**
+     * Composites the frames for the specified orientation on the calling thread, unless they are
+     * already cached or being composited elsewhere. This is used by background resolution and
+     * does not block waiting for another thread's composite.
+     */
+    public void resolveFrames (int orient)
+    {
+        if (getCachedFrames(orient) != null) {
+            return;
+        }
+        PendingFrames pending;
+        synchronized (_pending) {
+            if (_pending.containsKey(orient)) {
+                return;
+            }
+            _pending.put(orient, pending = new PendingFrames(orient));
+        }
+        pending.run();
     }
 
     // documentation inherited from interface
@@ -135,7 +360,82 @@ public class CompositedActionFrames
             tsources[ii] = new ComponentFrames(
                 _sources[ii].ccomp, _sources[ii].frames.cloneTranslated(dx, dy));
         }
-        return new CompositedActionFrames(_imgr, _frameCache, _action, tsources);
+        Object tcontent = (_content == this) ? null : Arrays.asList(_content, dx, dy);
+        return new CompositedActionFrames(
+            _imgr, _frameCache, _action, tsources, _compositor, tcontent, _factory, _lazyFrames);
+    }
+
+    /**
+     * Returns the key under which our composited frames are cached.
+     */
+    public Object getContent ()
+    {
+        return _content;
+    }
+
+    /**
+     * Returns the source frames from which we composite.
+     */
+    public ComponentFrames[] getSources ()
+    {
+        return _sources.clone();
+    }
+
+    /**
+     * Returns a copy of these action frames that composites into a private cache of its own and
+     * does so eagerly, on the calling thread. Any composited source frames are likewise copied,
+     * so that compositing the copy adds nothing to our shared frame cache. This is useful for
+     * compositing frames in bulk (to persist them, say) without displacing the frames in use.
+     */
+    public CompositedActionFrames cloneUncached ()
+    {
+        ComponentFrames[] usources = new ComponentFrames[_sources.length];
+        for (int ii = 0; ii < _sources.length; ii++) {
+            ActionFrames frames = _sources[ii].frames;
+            if (frames instanceof CompositedActionFrames) {
+                frames = ((CompositedActionFrames)frames).cloneUncached();
+            }
+            usources[ii] = new ComponentFrames(_sources[ii].ccomp, frames);
+        }
+        Map<CompositedFramesKey, CompositedMultiFrameImage> ucache = Maps.newHashMap();
+        return new CompositedActionFrames(
+            _imgr, ucache, _action, usources, null, null, _factory, null);
+    }
+
+    /**
+     * Returns the composited frames for the specified orientation from the cache, or null if they
+     * are not cached.
+     */
+    public CompositedMultiFrameImage getCachedFrames (int orient)
+    {
+        // the frame cache is shared with our compositing threads
+        synchronized (_frameCache) {
+            _key.setOrient(orient);
+            return _frameCache.get(_key);
+        }
+    }
+
+    /**
+     * Returns the pending frames for the specified orientation, queueing them up to be composited
+     * if that has not already been done. If our compositor is too busy to take on the work, the
+     * frames are composited on the calling thread.
+     */
+    protected PendingFrames queueFrames (int orient)
+    {
+        PendingFrames pending;
+        synchronized (_pending) {
+            pending = _pending.get(orient);
+            if (pending != null) {
+                return pending;
+            }
+            _pending.put(orient, pending = new PendingFrames(orient));
+        }
+        try {
+            _compositor.execute(pending);
+        } catch (RejectedExecutionException ree) {
+            pending.run();
+        }
+        return pending;
     }
 
     /**
@@ -143,14 +443,152 @@ public class CompositedActionFrames
      */
     protected CompositedMultiFrameImage createFrames (int orient)
     {
-        return new CompositedMultiFrameImage(_imgr, _sources, _action, orient);
+        return _factory.createFrames(_imgr, _sources, _action, orient, _lazyFrames);
     }
 
-    /** Used to cache composited frames for a particular action and
-     * orientation. */
-    protected class CompositedFramesKey
+    /**
+     * Stands in for the frames of a particular orientation while they are composited on a
+     * background thread. Until the composite is published, the frames of our first uncomposited
+     * source component are displayed in its place.
+     */
+    public class PendingFrames
+        implements TrimmedMultiFrameImage, Runnable
     {
-        public CompositedFramesKey (int orient) {
+        public PendingFrames (int orient)
+        {
+            _orient = orient;
+
+            // prefer a source that we can display without compositing anything
+            _placeholder = _sources[0].frames;
+            for (ComponentFrames source : _sources) {
+                if (!(source.frames instanceof CompositedActionFrames)) {
+                    _placeholder = source.frames;
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Returns true once our composited frames are available.
+         */
+        public boolean isComposited ()
+        {
+            return (_composite != null);
+        }
+
+        /**
+         * Returns true if compositing our frames in the background failed, in which case the
+         * caller should composite them on its own thread via {@link #compositeNow}.
+         */
+        public boolean hasFailed ()
+        {
+            return _failed;
+        }
+
+        /**
+         * Composites our frames on the calling thread, or returns them if they are already
+         * composited.
+         */
+        public CompositedMultiFrameImage compositeNow ()
+        {
+            CompositedMultiFrameImage cmfi = _composite;
+            return (cmfi == null) ? compositeFrames(_orient) : cmfi;
+        }
+
+        public int getXOrigin (int index)
+        {
+            CompositedMultiFrameImage cmfi = _composite;
+            return (cmfi == null) ? _placeholder.getXOrigin(_orient, index) :
+                cmfi.getXOrigin(index);
+        }
+
+        public int getYOrigin (int index)
+        {
+            CompositedMultiFrameImage cmfi = _composite;
+            return (cmfi == null) ? _placeholder.getYOrigin(_orient, index) :
+                cmfi.getYOrigin(index);
+        }
+
+        // documentation inherited from interface
+        public int getFrameCount ()
+        {
+            return getDelegate().getFrameCount();
+        }
+
+        // documentation inherited from interface
+        public int getWidth (int index)
+        {
+            return getDelegate().getWidth(index);
+        }
+
+        // documentation inherited from interface
+        public int getHeight (int index)
+        {
+            return getDelegate().getHeight(index);
+        }
+
+        // documentation inherited from interface
+        public void paintFrame (Graphics2D g, int index, int x, int y)
+        {
+            getDelegate().paintFrame(g, index, x, y);
+        }
+
+        // documentation inherited from interface
+        public boolean hitTest (int index, int x, int y)
+        {
+            return getDelegate().hitTest(index, x, y);
+        }
+
+        // documentation inherited from interface
+        public void getTrimmedBounds (int index, Rectangle bounds)
+        {
+            getDelegate().getTrimmedBounds(index, bounds);
+        }
+
+        // documentation inherited from interface
+        public void run ()
+        {
+            try {
+                // the composite is fully rendered before it is published
+                _composite = compositeFrames(_orient);
+            } catch (Throwable t) {
+                log.warning("Failed to composite action frames", "action", _action,
+                            "orient", _orient, t);
+                _failed = true;
+            } finally {
+                synchronized (_pending) {
+                    _pending.remove(_orient);
+                }
+            }
+        }
+
+        protected TrimmedMultiFrameImage getDelegate ()
+        {
+            CompositedMultiFrameImage cmfi = _composite;
+            return (cmfi == null) ? _placeholder.getFrames(_orient) : cmfi;
+        }
+
+        /** The orientation we're compositing. */
+        protected int _orient;
+
+        /** The source frames we display until our composite is ready. */
+        protected ActionFrames _placeholder;
+
+        /** Our composited frames, once they are ready. */
+        protected volatile CompositedMultiFrameImage _composite;
+
+        /** Set if our background compositing failed. */
+        protected volatile boolean _failed;
+    }
+
+    /** Used to cache composited frames for a particular action and orientation. Keys are
+     * compared by the content of the action frames that created them (or by the action frames
+     * themselves if they have no content key), so that identical characters share their
+     * composited frames. */
+    public static class CompositedFramesKey
+    {
+        public CompositedFramesKey (Object content, int orient) {
+            _content = content;
             _orient = orient;
         }
 
@@ -158,22 +596,22 @@ public class CompositedActionFrames
             _orient = orient;
         }
 
-        public CompositedActionFrames getOwner () {
-            return CompositedActionFrames.this;
+        public Object getContent () {
+            return _content;
         }
 
         @Override
         public boolean equals (Object other) {
             CompositedFramesKey okey = (CompositedFramesKey)other;
-            return ((getOwner() == okey.getOwner()) &&
-                    (_orient == okey._orient));
+            return (_orient == okey._orient) && _content.equals(okey._content);
         }
 
         @Override
         public int hashCode () {
-            return CompositedActionFrames.this.hashCode() ^ _orient;
+            return _content.hashCode() ^ _orient;
         }
 
+        protected Object _content;
         protected int _orient;
     }
 
@@ -193,7 +631,22 @@ public class CompositedActionFrames
     /** Our source components and action frames. */
     protected ComponentFrames[] _sources;
 
+    /** The executor on which we composite our frames, or null. */
+    protected Executor _compositor;
+
+    /** Creates our composited multi-frame images. */
+    protected FrameFactory _factory;
+
+    /** The cache that manages our lazily composited frames, or null. */
+    protected CompositedFrameCache _lazyFrames;
+
+    /** Orientations that are currently being composited. */
+    protected Map<Integer, PendingFrames> _pending = Maps.newHashMap();
+
+    /** Identifies the imagery we composite: either a content key or ourselves. */
+    protected Object _content;
+
     /** Used to avoid creating a new key object every time we do a cache
      * lookup. */
-    protected CompositedFramesKey _key = new CompositedFramesKey(0);
+    protected CompositedFramesKey _key;
 }
@@ -0,0 +1,128 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.cast;
+
+import com.samskivert.util.LRUHashMap;
+
+/**
+ * Bounds the memory used by lazily composited character frames. Frames are composited
+ * individually when they are first displayed (see {@link CompositedMultiFrameImage}), registered
+ * with this cache, and have their images released when they become the least recently used. A
+ * released frame is composited anew if it is displayed again.
+ */
+public class CompositedFrameCache
+{
+    /** Implemented by lazily composited frames. */
+    public static interface CachedFrame
+    {
+        /**
+         * Returns the memory used by this frame's composited image, or zero if it has none.
+         */
+        public long getEstimatedMemoryUsage ();
+
+        /**
+         * Releases this frame's composited image.
+         */
+        public void releaseImage ();
+    }
+
+    /**
+     * Creates a cache that holds at most the specified amount of composited frame imagery.
+     */
+    public CompositedFrameCache (int maxKilobytes)
+    {
+        _frames = new LRUHashMap<CachedFrame, CachedFrame>(
+            maxKilobytes * 1024, new LRUHashMap.ItemSizer<CachedFrame>() {
+            public int computeSize (CachedFrame frame) {
+                return (int)frame.getEstimatedMemoryUsage();
+            }
+        });
+        _frames.setRemovalObserver(new LRUHashMap.RemovalObserver<CachedFrame, CachedFrame>() {
+            public void removedFromMap (LRUHashMap<CachedFrame, CachedFrame> map,
+                                        CachedFrame frame) {
+                frame.releaseImage();
+            }
+        });
+    }
+
+    /**
+     * Notes that the specified number of frames have been prepared for lazy compositing.
+     */
+    public synchronized void framesRequested (int count)
+    {
+        _requested += count;
+    }
+
+    /**
+     * Notes that the supplied frame has composited its image, which may cause other frames to
+     * release theirs.
+     */
+    public synchronized void frameComposited (CachedFrame frame)
+    {
+        _composited++;
+        _frames.put(frame, frame);
+    }
+
+    /**
+     * Notes that the supplied frame's image was used, making it the most recently used.
+     */
+    public synchronized void frameUsed (CachedFrame frame)
+    {
+        _frames.get(frame);
+    }
+
+    /**
+     * Returns the number of frames that have been prepared for lazy compositing.
+     */
+    public synchronized long getRequestedCount ()
+    {
+        return _requested;
+    }
+
+    /**
+     * Returns the number of times a frame has been composited, including recomposites of frames
+     * whose images were released.
+     */
+    public synchronized long getCompositedCount ()
+    {
+        return _composited;
+    }
+
+    /**
+     * Returns the number of frames currently holding composited images.
+     */
+    public synchronized int size ()
+    {
+        return _frames.size();
+    }
+
+    @Override
+    public synchronized String toString ()
+    {
+        return "[frames=" + _frames.size() + ", composited=" + _composited +
+            ", requested=" + _requested + "]";
+    }
+
+    /** Our frames that currently hold images, in least recently used order. */
+    protected LRUHashMap<CachedFrame, CachedFrame> _frames;
+
+    /** The number of frames prepared and composited. */
+    protected long _requested, _composited;
+}
@@ -27,8 +27,12 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import com.samskivert.swing.RuntimeAdjust;
 
 import com.threerings.media.image.ImageManager;
+import com.threerings.media.image.ImageUtil;
 import com.threerings.media.image.Mirage;
 import com.threerings.media.image.VolatileMirage;
 
@@ -45,18 +49,38 @@ public class CompositedMultiFrameImage
     public CompositedMultiFrameImage (
         ImageManager imgr, ComponentFrames[] sources,
         String action, int orient)
+    {
+        this(imgr, sources, action, orient, null);
+    }
+
+    /**
+     * Creates a multi-frame image that composites each frame lazily, when it is first painted or
+     * hit tested, and registers the composited frames with the supplied cache, which releases
+     * them as needed. Frame dimensions and origins are computed up front from the trimmed bounds
+     * of the source frames, without rendering anything.
+     *
+     * @param fcache the cache with which to register lazily composited frames, or null to
+     * composite all frames immediately.
+     */
+    public CompositedMultiFrameImage (
+        ImageManager imgr, ComponentFrames[] sources,
+        String action, int orient, CompositedFrameCache fcache)
     {
         _imgr = imgr;
         _sources = sources;
         _action = action;
         _orient = orient;
+        _fcache = fcache;
 
-        // create our frame images (which will do the compositing)
+        // create our frame images (which will do the compositing unless we're lazy)
         int fcount = sources[0].frames.getFrames(orient).getFrameCount();
         _images = new CompositedMirage[fcount];
         for (int ii = 0; ii < fcount; ii++) {
             _images[ii] = createCompositedMirage(ii);
         }
+        if (_fcache != null) {
+            _fcache.framesRequested(fcount);
+        }
     }
 
     // documentation inherited
@@ -108,6 +132,10 @@ public class CompositedMultiFrameImage
         for (CompositedMirage element : _images) {
             size += element.getEstimatedMemoryUsage();
         }
+        // lazy frames may hold no image at all, but our bookkeeping is not free
+        if (_fcache != null) {
+            size += _images.length * LAZY_FRAME_OVERHEAD;
+        }
         return size;
     }
 
@@ -124,6 +152,9 @@ public class CompositedMultiFrameImage
             int y = frames.getYOrigin(_orient, index) - tbounds.y;
             return new SubmirageForwarder(frames.getTileMirage(_orient, index), x, y);
         }
+        if (_fcache != null) {
+            return new LazyCompositedMirage(index);
+        }
         return new CompositedVolatileMirage(index);
     }
 
@@ -204,6 +235,19 @@ public class CompositedMultiFrameImage
     /** Our composited action frame images. */
     protected CompositedMirage[] _images;
 
+    /** The cache that manages our lazily composited frames, or null if we're not lazy. */
+    protected CompositedFrameCache _fcache;
+
+    /** Whether to composite directly from color mapped source images. */
+    protected static RuntimeAdjust.BooleanAdjust _indexedCompositing =
+        new RuntimeAdjust.BooleanAdjust(
+            "Composites character frames directly from their color mapped (and colorized) " +
+            "source images rather than drawing prepared tile images.",
+            "narya.cast.indexed_compositing", CastPrefs.config, true);
+
+    /** The estimated memory used to track a lazily composited frame. */
+    protected static final int LAZY_FRAME_OVERHEAD = 128;
+
     /**
      * Used to create our mirage using the source action frame images.
      */
@@ -211,6 +255,14 @@ public class CompositedMultiFrameImage
         implements CompositedMirage, Comparator<ComponentFrames>
     {
         public CompositedVolatileMirage (int index)
+        {
+            this(index, true);
+        }
+
+        /**
+         * Computes our bounds and origin and, if requested, composites our image.
+         */
+        protected CompositedVolatileMirage (int index, boolean composite)
         {
             super(CompositedMultiFrameImage.this._imgr,
                   new Rectangle(0, 0, 0, 0));
@@ -243,7 +295,9 @@ public class CompositedMultiFrameImage
 //             Log.info("New origin [x=" + _origin.x + ", y=" + _origin.y + "].");
 
             // render our volatile image for the first time
-            createVolatileImage();
+            if (composite) {
+                createVolatileImage();
+            }
         }
 
         public int getXOrigin ()
@@ -288,16 +342,23 @@ public class CompositedMultiFrameImage
         {
 //             long start = System.currentTimeMillis();
 
-            // sort the sources appropriately for this orientation
-            Arrays.sort(_sources, this);
+            // sort the sources appropriately for this orientation; we sort a copy because the
+            // other orientations may be compositing from the same sources on other threads
+            ComponentFrames[] sources = _sources.clone();
+            Arrays.sort(sources, this);
+
+            // if we can, composite directly from our sources' color mapped images
+            if (_indexedCompositing.getValue() && compositeIndexed(sources)) {
+                return;
+            }
 
             // now render each of the components into a composited frame
-            int scount = _sources.length;
+            int scount = sources.length;
             Graphics2D g = (Graphics2D)_image.getGraphics();
             try {
                 for (int ii = 0; ii < scount; ii++) {
                     TrimmedMultiFrameImage source =
-                        _sources[ii].frames.getFrames(_orient);
+                        sources[ii].frames.getFrames(_orient);
                     source.paintFrame(g, _index, -_bounds.x, -_bounds.y);
                 }
             } finally {
@@ -315,7 +376,127 @@ public class CompositedMultiFrameImage
 //                      (now-start) + " millis.");
         }
 
+        /**
+         * Composites the supplied sources by reading the color mapped tileset images of those
+         * that have them and writing ARGB pixels into our image in a single pass, rather than
+         * drawing each source's prepared (already converted to ARGB) tile image. Sources that
+         * are not backed by a tileset (masked or shadow layers) are painted normally into a
+         * scratch image and blended in.
+         *
+         * @return false if none of the sources could be composited this way, in which case
+         * nothing was done.
+         */
+        protected boolean compositeIndexed (ComponentFrames[] sources)
+        {
+            boolean indexed = false;
+            for (ComponentFrames source : sources) {
+                indexed = indexed || (source.frames instanceof TileSetFrameImage);
+            }
+            if (!indexed) {
+                return false;
+            }
+
+            int width = _bounds.width, height = _bounds.height;
+            int[] argb = new int[width * height];
+            BufferedImage scratch = null;
+            for (ComponentFrames source : sources) {
+                if (source.frames instanceof TileSetFrameImage &&
+                    ((TileSetFrameImage)source.frames).compositeFrame(
+                        _orient, _index, argb, width, -_bounds.x, -_bounds.y)) {
+                    continue;
+                }
+                if (scratch == null) {
+                    scratch = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                } else {
+                    Arrays.fill(((DataBufferInt)scratch.getRaster().getDataBuffer()).getData(), 0);
+                }
+                Graphics2D g = scratch.createGraphics();
+                try {
+                    source.frames.getFrames(_orient).paintFrame(g, _index, -_bounds.x, -_bounds.y);
+                } finally {
+                    g.dispose();
+                }
+                ImageUtil.compositeARGB(scratch, argb, width, 0, 0);
+            }
+
+            if (_image.getType() == BufferedImage.TYPE_INT_ARGB) {
+                _image.getRaster().setDataElements(0, 0, width, height, argb);
+            } else {
+                _image.setRGB(0, 0, width, height, argb, 0, width);
+            }
+            return true;
+        }
+
         protected int _index;
         protected Point _origin = new Point();
     }
+
+    /**
+     * A composited mirage that composites its image when it is first needed and registers it
+     * with our frame cache, which may later ask it to release the image.
+     */
+    protected class LazyCompositedMirage extends CompositedVolatileMirage
+        implements CompositedFrameCache.CachedFrame
+    {
+        public LazyCompositedMirage (int index)
+        {
+            super(index, false);
+        }
+
+        @Override
+        public void paint (Graphics2D gfx, int x, int y)
+        {
+            gfx.drawImage(getImage(), x, y, null);
+        }
+
+        @Override
+        public boolean hitTest (int x, int y)
+        {
+            return ImageUtil.hitTest(getImage(), x, y);
+        }
+
+        @Override
+        public BufferedImage getSnapshot ()
+        {
+            return getImage();
+        }
+
+        @Override
+        public long getEstimatedMemoryUsage ()
+        {
+            BufferedImage image = _image;
+            return (image == null) ? 0 : ImageUtil.getEstimatedMemoryUsage(image.getRaster());
+        }
+
+        // documentation inherited from interface
+        public synchronized void releaseImage ()
+        {
+            _image = null;
+        }
+
+        /**
+         * Returns our composited image, compositing it if necessary.
+         */
+        protected BufferedImage getImage ()
+        {
+            BufferedImage image;
+            boolean composited = false;
+            synchronized (this) {
+                image = _image;
+                if (image == null) {
+                    createVolatileImage();
+                    image = _image;
+                    composited = true;
+                }
+            }
+            // we must not hold our lock while calling into the cache, as it calls back into
+            // other frames (with its lock held) to release their images
+            if (composited) {
+                _fcache.frameComposited(this);
+            } else {
+                _fcache.frameUsed(this);
+            }
+            return image;
+        }
+    }
 }
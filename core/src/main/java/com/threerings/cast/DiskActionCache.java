@@ -0,0 +1,519 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.cast;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.samskivert.util.StringUtil;
+
+import com.threerings.resource.FastImageIO;
+
+import com.threerings.media.image.BufferedMirage;
+import com.threerings.media.image.Colorization;
+import com.threerings.media.image.ImageManager;
+import com.threerings.media.image.ImageUtil;
+import com.threerings.media.image.Mirage;
+
+import static com.threerings.cast.Log.log;
+
+/**
+ * An {@link ActionCache} that stores composited action frames in a directory on the local file
+ * system, so that characters seen in a previous session need not be composited again. Each
+ * character and action is stored in a single file, named by a hash of the character's component
+ * ids, colorizations and translations, the action and a caller supplied version (which should
+ * change whenever the component imagery changes). Frame images are stored in {@link FastImageIO}
+ * format.
+ *
+ * <p> Frames are written on a background thread, which composites any orientations that have not
+ * yet been composited into a private copy, leaving the shared frame cache alone. The total size
+ * of the cache directory is capped and the least recently used files are deleted to make room for
+ * new ones.
+ */
+public class DiskActionCache
+    implements ActionCache
+{
+    /**
+     * Creates a cache that stores its frames in the supplied directory.
+     *
+     * @param charmgr the character manager whose frames we cache.
+     * @param imgr the image manager used to create images for loaded frames.
+     * @param dir the directory in which to store frames, which will be created if necessary.
+     * @param version a string that identifies the version of the component imagery.
+     * @param maxKilobytes the maximum combined size of the cached files.
+     */
+    public DiskActionCache (CharacterManager charmgr, ImageManager imgr, File dir,
+                            String version, int maxKilobytes)
+    {
+        _charmgr = charmgr;
+        _imgr = imgr;
+        _dir = dir;
+        _version = version;
+        _maxSize = maxKilobytes * 1024L;
+        _writer.allowCoreThreadTimeOut(true);
+
+        if (!_dir.isDirectory() && !_dir.mkdirs()) {
+            log.warning("Unable to create action cache directory", "dir", _dir);
+        }
+
+        // index our existing files, least recently used first
+        File[] files = _dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare (File f1, File f2) {
+                    return Long.compare(f1.lastModified(), f2.lastModified());
+                }
+            });
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_SUFFIX)) {
+                    _files.put(file.getName(), file.length());
+                    _size += file.length();
+                }
+            }
+        }
+        pruneFiles();
+    }
+
+    // documentation inherited from interface
+    public ActionFrames getActionFrames (CharacterDescriptor descrip, String action)
+    {
+        String name = getFileName(descrip, action);
+        synchronized (_files) {
+            if (_files.get(name) == null) {
+                return null;
+            }
+        }
+
+        File file = new File(_dir, name);
+        try {
+            ActionFrames frames = readFrames(file);
+            file.setLastModified(System.currentTimeMillis());
+            return frames;
+
+        } catch (IOException ioe) {
+            log.warning("Failed to read cached action frames", "file", file, "error", ioe);
+            removeFile(name);
+            return null;
+        }
+    }
+
+    // documentation inherited from interface
+    public void cacheActionFrames (
+        final CharacterDescriptor descrip, final String action, final ActionFrames frames)
+    {
+        final String name = getFileName(descrip, action);
+        synchronized (_files) {
+            if (_files.containsKey(name)) {
+                return;
+            }
+        }
+        try {
+            _writer.execute(new Runnable() {
+                public void run () {
+                    writeFrames(name, action, frames);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            log.debug("Not caching action frames, writer is busy", "descrip", descrip,
+                      "action", action);
+        }
+    }
+
+    /**
+     * Returns the combined size of the files in our cache, in bytes.
+     */
+    public long getSize ()
+    {
+        synchronized (_files) {
+            return _size;
+        }
+    }
+
+    /**
+     * Composites (if necessary) and writes the supplied frames to the named file.
+     */
+    protected void writeFrames (String name, String action, ActionFrames frames)
+    {
+        ActionSequence actseq = _charmgr.getActionSequence(action);
+        if (actseq == null || actseq.orients == null) {
+            return;
+        }
+
+        File file = new File(_dir, name), tmpfile = new File(_dir, name + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpfile)));
+            try {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(actseq.orients.length);
+                CompositedActionFrames uframes = null;
+                for (int orient : actseq.orients) {
+                    TrimmedMultiFrameImage mfi;
+                    if (frames instanceof CompositedActionFrames) {
+                        // orientations that aren't already composited are composited into a
+                        // private copy, so that we don't fill the shared frame cache with them
+                        CompositedActionFrames cframes = (CompositedActionFrames)frames;
+                        mfi = cframes.getCachedFrames(orient);
+                        if (mfi == null) {
+                            if (uframes == null) {
+                                uframes = cframes.cloneUncached();
+                            }
+                            mfi = uframes.compositeFrames(orient);
+                        }
+                    } else {
+                        mfi = frames.getFrames(orient);
+                    }
+                    if (!writeOrientation(out, frames, orient, mfi)) {
+                        log.debug("Not caching action frames with too many colors",
+                                  "action", action, "file", name);
+                        return;
+                    }
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tmpfile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmpfile + " to " + file);
+            }
+            synchronized (_files) {
+                Long osize = _files.put(name, file.length());
+                _size += file.length() - ((osize == null) ? 0 : osize);
+            }
+            pruneFiles();
+
+        } catch (IOException ioe) {
+            log.warning("Failed to cache action frames", "file", file, "error", ioe);
+
+        } finally {
+            tmpfile.delete();
+        }
+    }
+
+    /**
+     * Writes the supplied frames for a single orientation of the supplied action frames.
+     *
+     * @return false if one of the frames could not be stored in an 8-bit image.
+     */
+    protected boolean writeOrientation (
+        DataOutputStream out, ActionFrames frames, int orient, TrimmedMultiFrameImage mfi)
+        throws IOException
+    {
+        int fcount = mfi.getFrameCount();
+        out.writeInt(orient);
+        out.writeInt(fcount);
+        for (int ii = 0; ii < fcount; ii++) {
+            int width = Math.max(mfi.getWidth(ii), 1), height = Math.max(mfi.getHeight(ii), 1);
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D gfx = image.createGraphics();
+            try {
+                mfi.paintFrame(gfx, ii, 0, 0);
+            } finally {
+                gfx.dispose();
+            }
+            BufferedImage indexed = ImageUtil.createIndexedImage(image);
+            if (indexed == null) {
+                return false;
+            }
+
+            int xorigin, yorigin;
+            if (mfi instanceof CompositedMultiFrameImage) {
+                xorigin = ((CompositedMultiFrameImage)mfi).getXOrigin(ii);
+                yorigin = ((CompositedMultiFrameImage)mfi).getYOrigin(ii);
+            } else {
+                xorigin = frames.getXOrigin(orient, ii);
+                yorigin = frames.getYOrigin(orient, ii);
+            }
+            out.writeInt(xorigin);
+            out.writeInt(yorigin);
+
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            FastImageIO.write(indexed, bout);
+            out.writeInt(bout.size());
+            bout.writeTo(out);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a set of action frames from the supplied file.
+     */
+    protected ActionFrames readFrames (File file)
+        throws IOException
+    {
+        // we read the file onto the heap rather than mapping it, as a mapping would prevent the
+        // file from being deleted (on some platforms) until the mapping was garbage collected
+        ByteBuffer buf;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buf = ByteBuffer.allocate((int)raf.length());
+            raf.readFully(buf.array());
+        } finally {
+            raf.close();
+        }
+
+        if (buf.getInt() != FILE_MAGIC) {
+            throw new IOException("Invalid action cache file");
+        }
+        Map<Integer, CachedFrames> orients = Maps.newHashMap();
+        for (int ii = 0, ocount = buf.getInt(); ii < ocount; ii++) {
+            int orient = buf.getInt();
+            int fcount = buf.getInt();
+            CachedFrames frames = new CachedFrames(fcount);
+            for (int ff = 0; ff < fcount; ff++) {
+                frames.origins[ff] = new Point(buf.getInt(), buf.getInt());
+                int length = buf.getInt();
+                ByteBuffer ibuf = buf.slice();
+                ibuf.limit(length);
+                buf.position(buf.position() + length);
+                frames.images[ff] = createMirage(FastImageIO.read(ibuf));
+            }
+            orients.put(orient, frames);
+        }
+        return new CachedActionFrames(orients, 0, 0);
+    }
+
+    /**
+     * Converts a loaded 8-bit frame image into a mirage that is efficient to render.
+     */
+    protected Mirage createMirage (BufferedImage source)
+    {
+        BufferedImage image = _imgr.createImage(
+            source.getWidth(), source.getHeight(), Transparency.BITMASK);
+        Graphics2D gfx = image.createGraphics();
+        try {
+            gfx.drawImage(source, 0, 0, null);
+        } finally {
+            gfx.dispose();
+        }
+        return new BufferedMirage(image);
+    }
+
+    /**
+     * Returns the name of the file in which we store the frames for the specified character and
+     * action.
+     */
+    protected String getFileName (CharacterDescriptor descrip, String action)
+    {
+        StringBuilder buf = new StringBuilder(String.valueOf(_version)).append("|").append(action);
+        int[] cids = descrip.getComponentIds();
+        Colorization[][] zations = descrip.getColorizations();
+        Point[] xlations = descrip.getTranslations();
+        for (int ii = 0; ii < cids.length; ii++) {
+            buf.append("|").append(cids[ii]);
+            Colorization[] czations = (zations == null) ? null : zations[ii];
+            if (czations != null) {
+                for (Colorization zation : czations) {
+                    buf.append(":");
+                    if (zation != null) {
+                        buf.append(zation.colorizationId).append("/");
+                        buf.append(Integer.toHexString(zation.rootColor.getRGB())).append("/");
+                        buf.append(Arrays.toString(zation.range)).append("/");
+                        buf.append(Arrays.toString(zation.offsets));
+                    }
+                }
+            }
+            Point xlation = (xlations == null) ? null : xlations[ii];
+            if (xlation != null) {
+                buf.append("@").append(xlation.x).append(",").append(xlation.y);
+            }
+        }
+        return StringUtil.sha1hex(buf.toString()) + FILE_SUFFIX;
+    }
+
+    /**
+     * Deletes the least recently used files until we're back under our size limit.
+     */
+    protected void pruneFiles ()
+    {
+        synchronized (_files) {
+            for (Iterator<Map.Entry<String, Long>> iter = _files.entrySet().iterator();
+                 iter.hasNext() && _size > _maxSize; ) {
+                Map.Entry<String, Long> entry = iter.next();
+                iter.remove();
+                _size -= entry.getValue();
+                new File(_dir, entry.getKey()).delete();
+            }
+        }
+    }
+
+    /**
+     * Removes the named file from our index and deletes it.
+     */
+    protected void removeFile (String name)
+    {
+        synchronized (_files) {
+            Long size = _files.remove(name);
+            if (size != null) {
+                _size -= size;
+            }
+            new File(_dir, name).delete();
+        }
+    }
+
+    /** The frames and origins for a single orientation. */
+    protected static class CachedFrames
+    {
+        public Mirage[] images;
+        public Point[] origins;
+
+        public CachedFrames (int fcount)
+        {
+            images = new Mirage[fcount];
+            origins = new Point[fcount];
+        }
+    }
+
+    /** Action frames loaded from the cache. */
+    protected static class CachedActionFrames
+        implements ActionFrames
+    {
+        public CachedActionFrames (Map<Integer, CachedFrames> orients, int dx, int dy)
+        {
+            _orients = orients;
+            _dx = dx;
+            _dy = dy;
+        }
+
+        // documentation inherited from interface
+        public int getOrientationCount ()
+        {
+            return _orients.size();
+        }
+
+        // documentation inherited from interface
+        public TrimmedMultiFrameImage getFrames (int orient)
+        {
+            final CachedFrames frames = _orients.get(orient);
+            return new TrimmedMultiFrameImage() {
+                public int getFrameCount () {
+                    return frames.images.length;
+                }
+                public int getWidth (int index) {
+                    return frames.images[index].getWidth();
+                }
+                public int getHeight (int index) {
+                    return frames.images[index].getHeight();
+                }
+                public void paintFrame (Graphics2D g, int index, int x, int y) {
+                    frames.images[index].paint(g, x, y);
+                }
+                public boolean hitTest (int index, int x, int y) {
+                    return frames.images[index].hitTest(x, y);
+                }
+                public void getTrimmedBounds (int index, Rectangle bounds) {
+                    bounds.setBounds(0, 0, getWidth(index), getHeight(index));
+                }
+            };
+        }
+
+        // documentation inherited from interface
+        public int getXOrigin (int orient, int frameIdx)
+        {
+            return _orients.get(orient).origins[frameIdx].x - _dx;
+        }
+
+        // documentation inherited from interface
+        public int getYOrigin (int orient, int frameIdx)
+        {
+            return _orients.get(orient).origins[frameIdx].y - _dy;
+        }
+
+        // documentation inherited from interface
+        public ActionFrames cloneColorized (Colorization[] zations)
+        {
+            throw new UnsupportedOperationException("Cached frames are already colorized");
+        }
+
+        // documentation inherited from interface
+        public ActionFrames cloneTranslated (int dx, int dy)
+        {
+            return new CachedActionFrames(_orients, _dx + dx, _dy + dy);
+        }
+
+        /** Our frames, mapped by orientation. */
+        protected Map<Integer, CachedFrames> _orients;
+
+        /** A translation applied to our frames. */
+        protected int _dx, _dy;
+    }
+
+    /** The character manager whose frames we cache. */
+    protected CharacterManager _charmgr;
+
+    /** Used to create images for our loaded frames. */
+    protected ImageManager _imgr;
+
+    /** The directory in which we store our files. */
+    protected File _dir;
+
+    /** Identifies the version of the component imagery. */
+    protected String _version;
+
+    /** The maximum combined size of our files, in bytes. */
+    protected long _maxSize;
+
+    /** The combined size of our files, in bytes. */
+    protected long _size;
+
+    /** The sizes of our files, in least recently used order. */
+    protected LinkedHashMap<String, Long> _files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /** Writes our frames in the background. */
+    protected ThreadPoolExecutor _writer = new ThreadPoolExecutor(
+        1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_WRITES),
+        new ThreadFactoryBuilder().setNameFormat("Action cache writer").setDaemon(true).
+            setPriority(Thread.MIN_PRIORITY).build());
+
+    /** Identifies our cache files. */
+    protected static final int FILE_MAGIC = 0xCA57F4A3;
+
+    /** The suffix of our cache files. */
+    protected static final String FILE_SUFFIX = ".frames";
+
+    /** The maximum number of action frames that may be waiting to be written. */
+    protected static final int MAX_QUEUED_WRITES = 64;
+}
@@ -0,0 +1,257 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.cast;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import com.threerings.cast.CompositedActionFrames.ComponentFrames;
+import com.threerings.cast.bundle.BundledComponentRepository.TileSetFrameImage;
+
+/**
+ * Every frame of a set of orientations of a character's action, composited into a single packed
+ * image. Sprite sheets are created by {@link CharacterManager#createSpriteSheet} and are meant for
+ * rendering characters outside of a live display (thumbnails, portraits, export to other
+ * renderers), so they are plain ARGB images that need neither a screen nor the image manager.
+ */
+public class SpriteSheet
+{
+    /**
+     * Composites every frame of the specified orientations of the supplied sources into a packed
+     * sheet. Each source frame is visited once and written directly to its place in the sheet.
+     */
+    public SpriteSheet (String action, int[] orients, ComponentFrames[] sources)
+    {
+        _action = action;
+        _orients = orients.clone();
+        int ocount = _orients.length;
+        _frames = new Rectangle[ocount][];
+        _origins = new Point[ocount][];
+
+        // determine the bounds of each frame, which enclose the trimmed bounds of its sources
+        Rectangle[][] bounds = new Rectangle[ocount][];
+        Rectangle tbounds = new Rectangle();
+        long area = 0;
+        int maxWidth = 1, fcount = 0;
+        for (int oo = 0; oo < ocount; oo++) {
+            int orient = _orients[oo];
+            int frames = CompositedActionFrames.getSourceFrameCount(sources[0].frames, orient);
+            bounds[oo] = new Rectangle[frames];
+            _frames[oo] = new Rectangle[frames];
+            _origins[oo] = new Point[frames];
+            for (int ff = 0; ff < frames; ff++) {
+                Rectangle fbounds = null;
+                for (ComponentFrames source : sources) {
+                    CompositedActionFrames.getSourceBounds(source.frames, orient, ff, tbounds);
+                    if (fbounds == null) {
+                        fbounds = new Rectangle(tbounds);
+                    } else {
+                        fbounds.add(tbounds);
+                    }
+                }
+                fbounds.width = Math.max(fbounds.width, 1);
+                fbounds.height = Math.max(fbounds.height, 1);
+                bounds[oo][ff] = fbounds;
+                Point origin =
+                    CompositedActionFrames.getSourceOrigin(sources[0].frames, orient, ff);
+                origin.translate(-fbounds.x, -fbounds.y);
+                _origins[oo][ff] = origin;
+                area += fbounds.width * fbounds.height;
+                maxWidth = Math.max(maxWidth, fbounds.width);
+                fcount++;
+            }
+        }
+
+        // pack the frames onto shelves, tallest first, in a roughly square sheet
+        final Rectangle[][] fbounds = bounds;
+        int[][] order = new int[fcount][];
+        for (int oo = 0, ii = 0; oo < ocount; oo++) {
+            for (int ff = 0; ff < bounds[oo].length; ff++) {
+                order[ii++] = new int[] { oo, ff };
+            }
+        }
+        Arrays.sort(order, new Comparator<int[]>() {
+            public int compare (int[] f1, int[] f2) {
+                return fbounds[f2[0]][f2[1]].height - fbounds[f1[0]][f1[1]].height;
+            }
+        });
+        int swidth = Math.max(maxWidth, (int)Math.ceil(Math.sqrt(area)));
+        int x = 0, y = 0, shelf = 0;
+        for (int[] frame : order) {
+            Rectangle fb = bounds[frame[0]][frame[1]];
+            if (x + fb.width > swidth) {
+                x = 0;
+                y += shelf;
+                shelf = 0;
+            }
+            _frames[frame[0]][frame[1]] = new Rectangle(x, y, fb.width, fb.height);
+            x += fb.width;
+            shelf = Math.max(shelf, fb.height);
+        }
+        _image = new BufferedImage(swidth, Math.max(y + shelf, 1), BufferedImage.TYPE_INT_ARGB);
+
+        // now composite each frame from its sources in render order; sources with color mapped
+        // tileset images are written straight into the sheet's pixels, others (masked and
+        // shadow layers) are composited from their own sources and painted, so that nothing
+        // passes through the composited frame cache
+        int[] pixels = ((DataBufferInt)_image.getRaster().getDataBuffer()).getData();
+        boolean indexed = CompositedMultiFrameImage._indexedCompositing.getValue();
+        Graphics2D gfx = null;
+        try {
+            for (int oo = 0; oo < ocount; oo++) {
+                final int orient = _orients[oo];
+                ComponentFrames[] sorted = sources.clone();
+                Arrays.sort(sorted, new Comparator<ComponentFrames>() {
+                    public int compare (ComponentFrames cf1, ComponentFrames cf2) {
+                        return (cf1.ccomp.getRenderPriority(_action, orient) -
+                                cf2.ccomp.getRenderPriority(_action, orient));
+                    }
+                });
+                for (int ff = 0; ff < _frames[oo].length; ff++) {
+                    Rectangle dest = _frames[oo][ff];
+                    int dx = dest.x - bounds[oo][ff].x, dy = dest.y - bounds[oo][ff].y;
+                    for (ComponentFrames source : sorted) {
+                        if (indexed && source.frames instanceof TileSetFrameImage &&
+                            ((TileSetFrameImage)source.frames).compositeFrame(
+                                orient, ff, pixels, swidth, dx, dy)) {
+                            continue;
+                        }
+                        if (gfx == null) {
+                            gfx = _image.createGraphics();
+                        }
+                        gfx.setClip(dest.x, dest.y, dest.width, dest.height);
+                        CompositedActionFrames.paintSourceFrame(
+                            source.frames, gfx, orient, ff, dx, dy);
+                    }
+                }
+            }
+        } finally {
+            if (gfx != null) {
+                gfx.dispose();
+            }
+        }
+    }
+
+    /**
+     * Returns the action rendered in this sheet.
+     */
+    public String getAction ()
+    {
+        return _action;
+    }
+
+    /**
+     * Returns the orientations rendered in this sheet.
+     */
+    public int[] getOrientations ()
+    {
+        return _orients.clone();
+    }
+
+    /**
+     * Returns the image that contains all of our frames.
+     */
+    public BufferedImage getImage ()
+    {
+        return _image;
+    }
+
+    /**
+     * Returns the number of frames rendered for the specified orientation.
+     */
+    public int getFrameCount (int orient)
+    {
+        return _frames[getOrientIndex(orient)].length;
+    }
+
+    /**
+     * Returns the bounds in the sheet image of the specified frame. The returned rectangle must
+     * not be modified.
+     */
+    public Rectangle getFrameBounds (int orient, int index)
+    {
+        return _frames[getOrientIndex(orient)][index];
+    }
+
+    /**
+     * Returns the origin of the specified frame (the point at which the character stands),
+     * relative to the upper left of the frame's bounds.
+     */
+    public Point getOrigin (int orient, int index)
+    {
+        return new Point(_origins[getOrientIndex(orient)][index]);
+    }
+
+    /**
+     * Returns an image of the specified frame, which shares its data with the sheet image.
+     */
+    public BufferedImage getFrameImage (int orient, int index)
+    {
+        Rectangle bounds = getFrameBounds(orient, index);
+        return _image.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height);
+    }
+
+    /**
+     * Paints the specified frame such that its origin is at the specified coordinates.
+     */
+    public void paintFrame (Graphics2D g, int orient, int index, int x, int y)
+    {
+        int oidx = getOrientIndex(orient);
+        Rectangle bounds = _frames[oidx][index];
+        Point origin = _origins[oidx][index];
+        int dx = x - origin.x, dy = y - origin.y;
+        g.drawImage(_image, dx, dy, dx + bounds.width, dy + bounds.height, bounds.x, bounds.y,
+                    bounds.x + bounds.width, bounds.y + bounds.height, null);
+    }
+
+    /**
+     * Returns the index into our frame tables of the specified orientation.
+     */
+    protected int getOrientIndex (int orient)
+    {
+        for (int ii = 0; ii < _orients.length; ii++) {
+            if (_orients[ii] == orient) {
+                return ii;
+            }
+        }
+        throw new IllegalArgumentException("Orientation not in sprite sheet " + orient);
+    }
+
+    /** The action rendered in this sheet. */
+    protected String _action;
+
+    /** The orientations rendered in this sheet. */
+    protected int[] _orients;
+
+    /** The bounds of each frame in our image, by orientation index and frame. */
+    protected Rectangle[][] _frames;
+
+    /** The origin of each frame relative to its bounds, by orientation index and frame. */
+    protected Point[][] _origins;
+
+    /** Our packed frames. */
+    protected BufferedImage _image;
+}
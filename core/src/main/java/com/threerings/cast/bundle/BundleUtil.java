@@ -48,6 +48,9 @@ public class BundleUtil
     /** The path in the component bundle to the serialized component id to class/type mapping. */
     public static final String COMPONENTS_PATH = "components.dat";
 
+    /** The path in the component bundle to the mappable {@link ComponentIndex}. */
+    public static final String COMPONENT_INDEX_PATH = "components.idx";
+
     /** The file extension of our action tile images. */
     public static final String IMAGE_EXTENSION = ".png";
 
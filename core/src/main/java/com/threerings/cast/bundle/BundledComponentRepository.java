@@ -21,8 +21,14 @@ package com.threerings.cast.bundle;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import java.io.IOException;
 
@@ -30,11 +36,14 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 
-import com.google.common.base.Function;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Iterators;
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.samskivert.util.IntIntMap;
 import com.samskivert.util.IntMap;
@@ -51,11 +60,12 @@ import com.threerings.media.image.BufferedMirage;
 import com.threerings.media.image.Colorization;
 import com.threerings.media.image.ImageDataProvider;
 import com.threerings.media.image.ImageManager;
+import com.threerings.media.image.ImageUtil;
 import com.threerings.media.image.Mirage;
 import com.threerings.media.tile.IMImageProvider;
 import com.threerings.media.tile.Tile;
 import com.threerings.media.tile.TileSet;
-import com.threerings.media.tile.TrimmedTile;
+import com.threerings.media.tile.TrimmedTileSet;
 
 import com.threerings.cast.ActionFrames;
 import com.threerings.cast.ActionSequence;
@@ -129,23 +139,22 @@ public class BundledComponentRepository
 
             // now go back and load up all of the component information
             for (ResourceBundle rbundle : rbundles) {
-                @SuppressWarnings("unchecked") IntMap<Tuple<String, String>> comps =
-                    (IntMap<Tuple<String, String>>)BundleUtil.loadObject(
-                        rbundle, BundleUtil.COMPONENTS_PATH, true);
-                if (comps == null) {
-                    continue;
-                }
-
-                // create a frame provider for this bundle
-                FrameProvider fprov = new ResourceBundleProvider(_imgr, rbundle);
-
-                // now create char. component instances for each component in the serialized table
-                Iterator<Integer> iter = comps.keySet().iterator();
-                while (iter.hasNext()) {
-                    int componentId = iter.next().intValue();
-                    Tuple<String, String> info = comps.get(componentId);
-                    createComponent(componentId, info.left, info.right, fprov);
+                // prefer a component index, from which we create components only as they are
+                // requested
+                ComponentIndex index = loadComponentIndex(rbundle);
+                if (index == null) {
+                    @SuppressWarnings("unchecked") IntMap<Tuple<String, String>> comps =
+                        (IntMap<Tuple<String, String>>)BundleUtil.loadObject(
+                            rbundle, BundleUtil.COMPONENTS_PATH, true);
+                    if (comps == null) {
+                        continue;
+                    }
+                    // we index serialized tables as well, so that components are looked up in
+                    // all of our bundles in the same order: later bundles override earlier ones
+                    index = ComponentIndex.create(comps);
                 }
+                _indices.add(Tuple.newTuple(index, (FrameProvider)
+                                            new ResourceBundleProvider(_imgr, rbundle)));
             }
 
         } catch (ClassNotFoundException cnfe) {
@@ -178,7 +187,13 @@ public class BundledComponentRepository
     public CharacterComponent getComponent (int componentId)
         throws NoSuchComponentException
     {
-        CharacterComponent component = _components.get(componentId);
+        CharacterComponent component;
+        synchronized (_components) {
+            component = _components.get(componentId);
+            if (component == null) {
+                component = createIndexedComponent(componentId);
+            }
+        }
         if (component == null) {
             throw new NoSuchComponentException(componentId);
         }
@@ -189,15 +204,33 @@ public class BundledComponentRepository
     public CharacterComponent getComponent (String className, String compName)
         throws NoSuchComponentException
     {
-        // look up the list for that class
-        ArrayList<CharacterComponent> comps = _classComps.get(className);
-        if (comps != null) {
-            // scan the list for the named component
-            int ccount = comps.size();
-            for (int ii = 0; ii < ccount; ii++) {
-                CharacterComponent comp = comps.get(ii);
-                if (comp.name.equals(compName)) {
-                    return comp;
+        synchronized (_components) {
+            // check our indices, the last of which takes precedence
+            for (int ii = _indices.size() - 1; ii >= 0; ii--) {
+                ComponentIndex index = _indices.get(ii).left;
+                int record = index.indexOf(className, compName);
+                if (record >= 0) {
+                    int componentId = index.getComponentId(record);
+                    CharacterComponent comp = _components.get(componentId);
+                    if (comp == null) {
+                        comp = createIndexedComponent(componentId);
+                    }
+                    if (comp != null) {
+                        return comp;
+                    }
+                }
+            }
+
+            // then look for a component that was registered by some other means
+            ArrayList<CharacterComponent> comps = _classComps.get(className);
+            if (comps != null) {
+                // scan the list for the named component
+                int ccount = comps.size();
+                for (int ii = 0; ii < ccount; ii++) {
+                    CharacterComponent comp = comps.get(ii);
+                    if (comp.name.equals(compName)) {
+                        return comp;
+                    }
                 }
             }
         }
@@ -223,21 +256,145 @@ public class BundledComponentRepository
     }
 
     // documentation inherited
-    public Iterator<Integer> enumerateComponentIds (final ComponentClass compClass)
+    public Iterator<Integer> enumerateComponentIds (ComponentClass compClass)
     {
-        Predicate<Map.Entry<Integer,CharacterComponent>> pred =
-            new Predicate<Map.Entry<Integer,CharacterComponent>>() {
-                public boolean apply (Map.Entry<Integer,CharacterComponent> entry) {
-                    return entry.getValue().componentClass.equals(compClass);
+        Set<Integer> ids = Sets.newLinkedHashSet();
+        synchronized (_components) {
+            for (IntMap.IntEntry<CharacterComponent> entry : _components.intEntrySet()) {
+                if (entry.getValue().componentClass.name.equals(compClass.name)) {
+                    ids.add(entry.getIntKey());
                 }
-            };
-        Function<Map.Entry<Integer,CharacterComponent>,Integer> func =
-            new Function<Map.Entry<Integer,CharacterComponent>,Integer>() {
-                public Integer apply (Map.Entry<Integer,CharacterComponent> entry) {
-                    return entry.getKey();
+            }
+        }
+        // a component in a later index overrides one with the same id in an earlier index
+        Set<Integer> seen = Sets.newHashSet();
+        for (int ii = _indices.size() - 1; ii >= 0; ii--) {
+            ComponentIndex index = _indices.get(ii).left;
+            int cidx = index.getStringIndex(compClass.name);
+            for (int rr = 0, ll = index.size(); rr < ll; rr++) {
+                int componentId = index.getComponentId(rr);
+                if (seen.add(componentId) && cidx >= 0 && index.getClassIndex(rr) == cidx) {
+                    ids.add(componentId);
                 }
-            };
-        return Iterators.transform(Iterators.filter(_components.entrySet().iterator(), pred), func);
+            }
+        }
+        return ids.iterator();
+    }
+
+    /**
+     * Loads the component index from the supplied bundle, returning null if it has none or if the
+     * index could not be read, in which case the serialized component table will be used.
+     */
+    protected ComponentIndex loadComponentIndex (ResourceBundle rbundle)
+    {
+        try {
+            return ComponentIndex.load(rbundle, BundleUtil.COMPONENT_INDEX_PATH);
+        } catch (IOException ioe) {
+            log.warning("Failed to read component index", "bundle", rbundle, "error", ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Creates the component with the specified id from the last of our indices that contains it.
+     * The caller must hold the lock on the component table.
+     *
+     * @return the created component or null if no index contains a valid component with that id.
+     */
+    protected CharacterComponent createIndexedComponent (int componentId)
+    {
+        for (int ii = _indices.size() - 1; ii >= 0; ii--) {
+            Tuple<ComponentIndex, FrameProvider> tup = _indices.get(ii);
+            int record = tup.left.indexOf(componentId);
+            if (record >= 0) {
+                createComponent(componentId, tup.left.getClassName(record),
+                                tup.left.getComponentName(record), tup.right);
+                return _components.get(componentId);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the number of threads used by {@link #preloadComponents}. A value of zero (or less)
+     * disables preloading.
+     */
+    public synchronized void setPreloadThreads (int threads)
+    {
+        if (_preloader != null) {
+            _preloader.shutdown();
+            _preloader = null;
+        }
+        _preloadThreads = threads;
+    }
+
+    /**
+     * Loads the action tilesets (and their images) for the specified actions of the specified
+     * components in parallel on our preloading threads, so that they are ready when characters
+     * wearing those components are displayed. This method returns immediately; a frame request
+     * made while its tileset is being preloaded waits for the preload rather than loading it
+     * again.
+     */
+    public void preloadComponents (int[] componentIds, String[] actions)
+    {
+        Executor preloader = getPreloader();
+        if (preloader == null) {
+            return; // preloading is disabled
+        }
+
+        // determine which classes mask other classes, as those need their crop frames
+        Set<String> masks = Sets.newHashSet();
+        for (ComponentClass cclass : _classes.values()) {
+            if (cclass.mask != null) {
+                masks.add(cclass.mask);
+            }
+        }
+
+        for (int componentId : componentIds) {
+            final CharacterComponent ccomp;
+            try {
+                ccomp = getComponent(componentId);
+            } catch (NoSuchComponentException nsce) {
+                log.warning("Requested to preload unknown component", "id", componentId);
+                continue;
+            }
+            if (!(ccomp.getFrameProvider() instanceof ResourceBundleProvider)) {
+                continue;
+            }
+            final ResourceBundleProvider fprov = (ResourceBundleProvider)ccomp.getFrameProvider();
+            final boolean shadowed = ccomp.componentClass.isShadowed();
+            final boolean mask = masks.contains(ccomp.componentClass.name);
+            for (final String action : actions) {
+                preloader.execute(new Runnable() {
+                    public void run () {
+                        fprov.preload(ccomp, action, null);
+                        if (shadowed) {
+                            fprov.preload(ccomp, action, StandardActions.SHADOW_TYPE);
+                        }
+                        if (mask) {
+                            fprov.preload(ccomp, action, StandardActions.CROP_TYPE);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns the executor on which we preload components, creating it if necessary, or null if
+     * preloading is disabled.
+     */
+    protected synchronized Executor getPreloader ()
+    {
+        if (_preloader == null && _preloadThreads > 0) {
+            _preloader = new ThreadPoolExecutor(
+                _preloadThreads, _preloadThreads, PRELOADER_KEEPALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("Component preloader %d").
+                    setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+            _preloader.allowCoreThreadTimeOut(true);
+        }
+        return _preloader;
     }
 
     /**
@@ -325,30 +482,11 @@ public class BundledComponentRepository
             String cpath = root + imgpath + BundleUtil.TILESET_EXTENSION;
             String dpath = root + dimgpath + BundleUtil.TILESET_EXTENSION;
 
-            // look to see if this tileset is already cached (as the custom action or the default
-            // action)
-            TileSet aset = _setcache.get(cpath);
-            if (aset == null) {
-                aset = _setcache.get(dpath);
-                if (aset != null) {
-                    // save ourselves a lookup next time
-                    _setcache.put(cpath, aset);
-                }
-            }
-
             try {
-                // then try loading up a tileset customized for this action
-                if (aset == null) {
-                    aset = (TileSet)BundleUtil.loadObject(_bundle, cpath, false);
-                }
+                // load (or look up) the tileset customized for this action or the default tileset
+                TileSet aset = getTileSet(cpath, dpath);
 
-                // if that failed, try loading the default tileset
-                if (aset == null) {
-                    aset = (TileSet)BundleUtil.loadObject(_bundle, dpath, false);
-                    _setcache.put(dpath, aset);
-                }
-
-                // if that failed too, we're hosed
+                // if neither exists, we're hosed
                 if (aset == null) {
                     // if this is a shadow or crop image, no need to freak out as they are optional
                     if (!StandardActions.CROP_TYPE.equals(type) &&
@@ -362,10 +500,13 @@ public class BundledComponentRepository
                     return null;
                 }
 
-                aset.setImageProvider(this);
-                _setcache.put(cpath, aset);
                 return createTileSetFrameImage(aset, actseq);
 
+            } catch (ExecutionException ee) {
+                log.warning("Error loading tset for action '" + imgpath + "' " + component + ".",
+                    ee.getCause());
+                return null;
+
             } catch (Exception e) {
                 log.warning("Error loading tset for action '" + imgpath + "' " + component + ".",
                     e);
@@ -373,6 +514,42 @@ public class BundledComponentRepository
             }
         }
 
+        /**
+         * Loads the tileset (and its source image) that will provide the specified frames, so that
+         * they are ready when the frames are requested.
+         */
+        public void preload (CharacterComponent component, String action, String type) {
+            String root = component.componentClass.name + "/" + component.name + "/";
+            String suffix = ((type == null) ? "" : "_" + type) + BundleUtil.TILESET_EXTENSION;
+            try {
+                TileSet aset = getTileSet(root + action + suffix,
+                                          root + ActionSequence.DEFAULT_SEQUENCE + suffix);
+                if (aset != null) {
+                    aset.getRawTileSetImage();
+                }
+            } catch (ExecutionException ee) {
+                log.warning("Error preloading tset", "component", component, "action", action,
+                            "type", type, "error", ee.getCause());
+            }
+        }
+
+        /**
+         * Returns the tileset at the first path, if it exists, or at the second path. Tilesets are
+         * loaded once and cached, and a thread that requests a tileset while another thread is
+         * loading it waits for that load to complete.
+         *
+         * @return the tileset or null if neither path contains a tileset.
+         */
+        protected TileSet getTileSet (String cpath, String dpath)
+            throws ExecutionException
+        {
+            Optional<TileSet> aset = _setcache.get(cpath);
+            if (!aset.isPresent()) {
+                aset = _setcache.get(dpath);
+            }
+            return aset.orNull();
+        }
+
         // from interface FrameProvider
         public String getFramePath (CharacterComponent component, String action, String type,
             Set<String> existentPaths) {
@@ -408,8 +585,18 @@ public class BundledComponentRepository
         /** The resource bundle from which we obtain image data. */
         protected ResourceBundle _bundle;
 
-        /** Cache of tilesets loaded from our bundle. */
-        protected Map<String, TileSet> _setcache = Maps.newHashMap();
+        /** Cache of tilesets loaded from our bundle, including those that were not found. */
+        protected LoadingCache<String, Optional<TileSet>> _setcache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_TILESETS)
+            .build(new CacheLoader<String, Optional<TileSet>>() {
+                @Override public Optional<TileSet> load (String path) throws Exception {
+                    TileSet aset = (TileSet)BundleUtil.loadObject(_bundle, path, false);
+                    if (aset != null) {
+                        aset.setImageProvider(ResourceBundleProvider.this);
+                    }
+                    return Optional.fromNullable(aset);
+                }
+            });
     }
 
     /**
@@ -484,15 +671,45 @@ public class BundledComponentRepository
         }
 
         public void getTrimmedBounds (int orient, int index, Rectangle bounds) {
-            Tile tile = getTile(orient, index);
-            if (tile instanceof TrimmedTile) {
-                ((TrimmedTile)tile).getTrimmedBounds(bounds);
+            // we compute these from the tileset metadata so that we needn't create the tile
+            int tileIndex = getTileIndex(orient, index);
+            if (_set instanceof TrimmedTileSet) {
+                ((TrimmedTileSet)_set).getTrimmedBounds(tileIndex, bounds);
             } else {
-                bounds.setBounds(0, 0, tile.getWidth(), tile.getHeight());
+                _set.computeTileBounds(tileIndex, bounds);
+                bounds.setLocation(0, 0);
             }
             bounds.translate(_dx, _dy);
         }
 
+        /**
+         * Composites the specified frame directly from our (colorized) tileset image onto the
+         * supplied ARGB pixels, without creating the tile or converting its image to ARGB.
+         *
+         * @return false if our tileset image is not color mapped, in which case nothing is done
+         * and the frame must be painted normally.
+         */
+        public boolean compositeFrame (
+            int orient, int index, int[] dest, int dwidth, int x, int y) {
+            // the colorized tileset image shares its raster with the raw image and differs only
+            // in its color map, which is exactly what we need
+            BufferedImage image = _set.getRawTileSetImage();
+            if (image == null) {
+                return false;
+            }
+            int tileIndex = getTileIndex(orient, index);
+            Rectangle sbounds = _set.computeTileBounds(tileIndex, new Rectangle());
+            x += _dx;
+            y += _dy;
+            if (_set instanceof TrimmedTileSet) {
+                Rectangle tbounds = ((TrimmedTileSet)_set).getTrimmedBounds(
+                    tileIndex, new Rectangle());
+                x += tbounds.x;
+                y += tbounds.y;
+            }
+            return ImageUtil.compositeIndexed(image, sbounds, dest, dwidth, x, y);
+        }
+
         // documentation inherited from interface
         public int getXOrigin (int orient, int index) {
             return _actseq.origin.x;
@@ -560,6 +777,21 @@ public class BundledComponentRepository
     /** The component table. */
     protected IntMap<CharacterComponent> _components = IntMaps.newHashIntMap();
 
+    /** The component indices of our bundles, from which components are created on demand. */
+    protected List<Tuple<ComponentIndex, FrameProvider>> _indices = Lists.newArrayList();
+
     /** Whether or not we wipe our bundles on any failure. */
     protected boolean _wipeOnFailure;
+
+    /** The number of threads on which we preload components. */
+    protected int _preloadThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /** The threads on which we preload components, created when first needed. */
+    protected ThreadPoolExecutor _preloader;
+
+    /** The maximum number of action tilesets cached by each bundle's frame provider. */
+    protected static final int MAX_CACHED_TILESETS = 4096;
+
+    /** The number of milliseconds an idle preloading thread waits before exiting. */
+    protected static final long PRELOADER_KEEPALIVE = 30 * 1000L;
 }
@@ -0,0 +1,384 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.cast.bundle;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.TreeSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import com.samskivert.io.StreamUtil;
+import com.samskivert.util.IntMap;
+import com.samskivert.util.Tuple;
+
+import com.threerings.resource.FileResourceBundle;
+import com.threerings.resource.ResourceBundle;
+
+/**
+ * A compact, read-only table of the components in a bundle, used in place of the serialized
+ * component map at {@link BundleUtil#COMPONENTS_PATH}. The table is a string table of the
+ * distinct class and component names followed by fixed-size records, so it can be memory-mapped
+ * and searched in place; a name is only decoded into a string the first time it is requested.
+ *
+ * <p> The format is a header (magic, version, string count, record count), the string offsets
+ * (one more than the string count) and UTF-8 string data, padded to a four byte boundary, and
+ * then one record of component id, class name index and component name index per component.
+ * Strings are sorted so that they may be binary searched, and records are sorted by component
+ * id.
+ */
+public class ComponentIndex
+{
+    /**
+     * Loads the component index from the specified path in the supplied bundle. The index is
+     * mapped directly from disk if the bundle is able to provide it as a file.
+     *
+     * @return the index or null if the bundle contains no such index.
+     */
+    public static ComponentIndex load (ResourceBundle bundle, String path)
+        throws IOException
+    {
+        if (bundle instanceof FileResourceBundle) {
+            File file = ((FileResourceBundle)bundle).getResourceFile(path);
+            if (file != null) {
+                return map(file);
+            }
+        }
+        InputStream in = bundle.getResource(path);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return new ComponentIndex(ByteBuffer.wrap(StreamUtil.toByteArray(in)));
+        } finally {
+            StreamUtil.close(in);
+        }
+    }
+
+    /**
+     * Maps the component index contained in the supplied file.
+     */
+    public static ComponentIndex map (File file)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel fchan = raf.getChannel();
+            return new ComponentIndex(fchan.map(FileChannel.MapMode.READ_ONLY, 0, fchan.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Creates an in-memory index of the supplied component id to class/name mapping.
+     */
+    public static ComponentIndex create (IntMap<Tuple<String, String>> comps)
+        throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(comps, out);
+        return new ComponentIndex(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    /**
+     * Writes an index of the supplied component id to class/name mapping to the supplied stream.
+     * The stream is flushed, but not closed.
+     */
+    public static void write (IntMap<Tuple<String, String>> comps, OutputStream out)
+        throws IOException
+    {
+        // assemble our sorted string table
+        TreeSet<String> names = new TreeSet<String>();
+        for (Tuple<String, String> info : comps.values()) {
+            names.add(info.left);
+            names.add(info.right);
+        }
+        String[] strings = names.toArray(new String[names.size()]);
+        byte[][] data = new byte[strings.length][];
+        int dlength = 0;
+        for (int ii = 0; ii < strings.length; ii++) {
+            data[ii] = strings[ii].getBytes(StandardCharsets.UTF_8);
+            dlength += data[ii].length;
+        }
+
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(MAGIC);
+        dout.writeInt(VERSION);
+        dout.writeInt(strings.length);
+        dout.writeInt(comps.size());
+        for (int ii = 0, offset = 0; ii <= strings.length; ii++) {
+            dout.writeInt(offset);
+            offset += (ii < strings.length) ? data[ii].length : 0;
+        }
+        for (byte[] sdata : data) {
+            dout.write(sdata);
+        }
+        for (int ii = dlength; ii % 4 != 0; ii++) {
+            dout.writeByte(0);
+        }
+
+        // then our records, in component id order
+        int[] cids = new int[comps.size()];
+        int idx = 0;
+        for (IntMap.IntEntry<Tuple<String, String>> entry : comps.intEntrySet()) {
+            cids[idx++] = entry.getIntKey();
+        }
+        Arrays.sort(cids);
+        for (int cid : cids) {
+            Tuple<String, String> info = comps.get(cid);
+            dout.writeInt(cid);
+            dout.writeInt(Arrays.binarySearch(strings, info.left));
+            dout.writeInt(Arrays.binarySearch(strings, info.right));
+        }
+        dout.flush();
+    }
+
+    /**
+     * Creates an index that reads its data from the supplied buffer, which must contain an index
+     * previously written by {@link #write}.
+     */
+    public ComponentIndex (ByteBuffer buf)
+        throws IOException
+    {
+        if (buf.remaining() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            throw new IOException("Invalid component index");
+        }
+        if (buf.getInt(4) != VERSION) {
+            throw new IOException("Unsupported component index version " + buf.getInt(4));
+        }
+        _buf = buf;
+        _strings = new String[buf.getInt(8)];
+        _size = buf.getInt(12);
+        _dataStart = HEADER_SIZE + 4 * (_strings.length + 1);
+        int dlength = buf.getInt(_dataStart - 4);
+        _recordStart = _dataStart + ((dlength + 3) & ~3);
+        if (_recordStart + _size * RECORD_SIZE > buf.limit()) {
+            throw new IOException("Truncated component index");
+        }
+    }
+
+    /**
+     * Returns the number of components in this index.
+     */
+    public int size ()
+    {
+        return _size;
+    }
+
+    /**
+     * Returns the id of the component at the specified record index.
+     */
+    public int getComponentId (int record)
+    {
+        return _buf.getInt(_recordStart + record * RECORD_SIZE);
+    }
+
+    /**
+     * Returns the string table index of the class of the component at the specified record index.
+     */
+    public int getClassIndex (int record)
+    {
+        return _buf.getInt(_recordStart + record * RECORD_SIZE + 4);
+    }
+
+    /**
+     * Returns the string table index of the name of the component at the specified record index.
+     */
+    public int getNameIndex (int record)
+    {
+        return _buf.getInt(_recordStart + record * RECORD_SIZE + 8);
+    }
+
+    /**
+     * Returns the class name of the component at the specified record index.
+     */
+    public String getClassName (int record)
+    {
+        return getString(getClassIndex(record));
+    }
+
+    /**
+     * Returns the name of the component at the specified record index.
+     */
+    public String getComponentName (int record)
+    {
+        return getString(getNameIndex(record));
+    }
+
+    /**
+     * Returns the record index of the component with the specified id, or -1 if this index
+     * contains no such component.
+     */
+    public int indexOf (int componentId)
+    {
+        int low = 0, high = _size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cid = getComponentId(mid);
+            if (cid < componentId) {
+                low = mid + 1;
+            } else if (cid > componentId) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the record index of the component with the specified class and name, or -1 if this
+     * index contains no such component.
+     */
+    public int indexOf (String className, String compName)
+    {
+        int cidx = getStringIndex(className), nidx = getStringIndex(compName);
+        if (cidx < 0 || nidx < 0) {
+            return -1;
+        }
+        int[] order = getNameOrder();
+        int low = 0, high = _size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int record = order[mid];
+            int cmp = compare(getClassIndex(record), getNameIndex(record), cidx, nidx);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the string table index of the supplied string, or -1 if it is not in our table.
+     */
+    public int getStringIndex (String value)
+    {
+        int low = 0, high = _strings.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = getString(mid).compareTo(value);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the string at the specified index in our string table.
+     */
+    public String getString (int index)
+    {
+        String value = _strings[index];
+        if (value == null) {
+            int start = _buf.getInt(HEADER_SIZE + 4 * index);
+            int end = _buf.getInt(HEADER_SIZE + 4 * (index + 1));
+            byte[] data = new byte[end - start];
+            ByteBuffer sbuf = _buf.duplicate();
+            sbuf.position(_dataStart + start);
+            sbuf.get(data);
+            // racing decodes produce equal strings, so there's no need to synchronize
+            _strings[index] = value = new String(data, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    /**
+     * Returns our record indices sorted by class and then component name, creating the ordering
+     * the first time it is needed.
+     */
+    protected int[] getNameOrder ()
+    {
+        int[] order = _nameOrder;
+        if (order == null) {
+            Integer[] records = new Integer[_size];
+            for (int ii = 0; ii < _size; ii++) {
+                records[ii] = ii;
+            }
+            Arrays.sort(records, new Comparator<Integer>() {
+                public int compare (Integer r1, Integer r2) {
+                    return ComponentIndex.compare(getClassIndex(r1), getNameIndex(r1),
+                                                  getClassIndex(r2), getNameIndex(r2));
+                }
+            });
+            order = new int[_size];
+            for (int ii = 0; ii < _size; ii++) {
+                order[ii] = records[ii];
+            }
+            // racing sorts produce equal orderings, so there's no need to synchronize
+            _nameOrder = order;
+        }
+        return order;
+    }
+
+    /**
+     * Compares two components by the string table indices of their class and name.
+     */
+    protected static int compare (int cidx1, int nidx1, int cidx2, int nidx2)
+    {
+        return (cidx1 == cidx2) ? Integer.compare(nidx1, nidx2) : Integer.compare(cidx1, cidx2);
+    }
+
+    /** The buffer that contains our index data. */
+    protected ByteBuffer _buf;
+
+    /** Strings from our string table that have been decoded. */
+    protected String[] _strings;
+
+    /** Our record indices in class and name order, or null if not yet needed. */
+    protected volatile int[] _nameOrder;
+
+    /** The number of component records in the index. */
+    protected int _size;
+
+    /** The offsets of our string data and records. */
+    protected int _dataStart, _recordStart;
+
+    /** Identifies a component index. */
+    protected static final int MAGIC = 0x43494458;
+
+    /** The version of the index format. */
+    protected static final int VERSION = 1;
+
+    /** The size of our header, in bytes. */
+    protected static final int HEADER_SIZE = 16;
+
+    /** The size of a component record, in bytes. */
+    protected static final int RECORD_SIZE = 12;
+}
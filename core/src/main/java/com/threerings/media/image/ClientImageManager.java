@@ -99,6 +99,32 @@ public class ClientImageManager extends ImageManager
         }
     }
 
+    @Override
+    public Mirage[] getMirages (ImageKey key, Rectangle[] bounds, Colorization[] zations)
+    {
+        if (_runBlank.getValue()) {
+            Mirage[] mirages = new Mirage[bounds.length];
+            for (int ii = 0; ii < bounds.length; ii++) {
+                mirages[ii] = new BlankMirage(bounds[ii].width, bounds[ii].height);
+            }
+            return mirages;
+
+        } else if (_runPrepareImages) {
+            return super.getMirages(key, bounds, zations);
+        }
+
+        // if we're not preparing images, we can just share the source image's raster
+        BufferedImage src = getImage(key, zations);
+        float area = src.getWidth() * src.getHeight();
+        Mirage[] mirages = new Mirage[bounds.length];
+        for (int ii = 0; ii < bounds.length; ii++) {
+            Rectangle tb = bounds[ii];
+            mirages[ii] = new BufferedMirage(src.getSubimage(tb.x, tb.y, tb.width, tb.height),
+                tb.width * tb.height / area);
+        }
+        return mirages;
+    }
+
     /** Register our image cache size with the runtime adjustments framework. */
     protected static RuntimeAdjust.IntAdjust _cacheSize = new RuntimeAdjust.IntAdjust(
         "Size (in kb of memory used) of the image manager LRU cache [requires restart]",
@@ -21,9 +21,9 @@ package com.threerings.media.image;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -279,38 +279,7 @@ public class ImageManager
      */
     public BufferedImage getImage (ImageKey key, Colorization[] zations)
     {
-        CacheRecord crec = null;
-        synchronized (_ccache) {
-            crec = _ccache.get(key);
-        }
-        if (crec != null) {
-//             log.info("Cache hit", "key", key, "crec", crec);
-            return crec.getImage(zations, _ccache);
-        }
-//         log.info("Cache miss", "key", key, "crec", crec);
-
-        // load up the raw image
-        BufferedImage image = loadImage(key);
-        if (image == null) {
-            log.warning("Failed to load image " + key + ".");
-            // create a blank image instead
-            image = new BufferedImage(10, 10, BufferedImage.TYPE_BYTE_INDEXED);
-        }
-
-//         log.info("Loaded Image", "path", key.path, "image", image,
-//                  "size", ImageUtil.getEstimatedMemoryUsage(image));
-
-        // create a cache record
-        crec = new CacheRecord(key, image);
-        synchronized (_ccache) {
-            _ccache.put(key, crec);
-        }
-        _keySet.add(key);
-
-        // periodically report our image cache performance
-        reportCachePerformance();
-
-        return crec.getImage(zations, _ccache);
+        return getCacheRecord(key).getImage(zations, _ccache);
     }
 
     /**
@@ -366,6 +335,33 @@ public class ImageManager
 
     }
 
+    /**
+     * Creates mirages for each of the specified regions of the image identified by the supplied
+     * key. Rather than preparing a separate image for every region, the area spanning all of the
+     * regions is prepared once into a single page image, which is retained (and accounted for) in
+     * the image cache alongside the source, and each mirage renders its region of that page. This
+     * adds up when cutting a tileset image into a large number of small tiles.
+     */
+    public Mirage[] getMirages (ImageKey key, Rectangle[] bounds, Colorization[] zations)
+    {
+        Mirage[] mirages = new Mirage[bounds.length];
+        if (bounds.length == 0) {
+            return mirages;
+        }
+
+        Rectangle pbounds = new Rectangle(bounds[0]);
+        for (int ii = 1; ii < bounds.length; ii++) {
+            pbounds.add(bounds[ii]);
+        }
+        BufferedImage page = getCacheRecord(key).getPage(zations, pbounds, this, _ccache);
+        for (int ii = 0; ii < bounds.length; ii++) {
+            Rectangle region = new Rectangle(bounds[ii]);
+            region.translate(-pbounds.x, -pbounds.y);
+            mirages[ii] = new PageMirage(page, region);
+        }
+        return mirages;
+    }
+
     /**
      * Returns the image creator that can be used to create buffered images optimized for rendering
      * to the screen.
@@ -408,6 +404,46 @@ public class ImageManager
         return dprov;
     }
 
+    /**
+     * Returns the cache record for the image with the specified key, loading the image and
+     * caching it if it is not already cached.
+     */
+    protected CacheRecord getCacheRecord (ImageKey key)
+    {
+        CacheRecord crec = null;
+        synchronized (_ccache) {
+            crec = _ccache.get(key);
+        }
+        if (crec != null) {
+//             log.info("Cache hit", "key", key, "crec", crec);
+            return crec;
+        }
+//         log.info("Cache miss", "key", key, "crec", crec);
+
+        // load up the raw image
+        BufferedImage image = loadImage(key);
+        if (image == null) {
+            log.warning("Failed to load image " + key + ".");
+            // create a blank image instead
+            image = new BufferedImage(10, 10, BufferedImage.TYPE_BYTE_INDEXED);
+        }
+
+//         log.info("Loaded Image", "path", key.path, "image", image,
+//                  "size", ImageUtil.getEstimatedMemoryUsage(image));
+
+        // create a cache record
+        crec = new CacheRecord(key, image);
+        synchronized (_ccache) {
+            _ccache.put(key, crec);
+        }
+        _keySet.add(key);
+
+        // periodically report our image cache performance
+        reportCachePerformance();
+
+        return crec;
+    }
+
     /**
      * Loads and returns the image with the specified key from the supplied data provider.
      */
@@ -476,43 +512,104 @@ public class ImageManager
                 return _source;
             }
 
-            if (_colorized == null) {
-                _colorized = Lists.newArrayList();
+            // colorized images may be requested from multiple threads (by background character
+            // compositing, for example), so we hold our lock while searching and recoloring; we
+            // release it before updating the cache size, as the cache holds its lock while asking
+            // us for our memory usage
+            BufferedImage cimage;
+            synchronized (this) {
+                if (_colorized == null) {
+                    _colorized = Lists.newArrayList();
+                }
+
+                // we search linearly through our list of colorized copies because it is not
+                // likely to be very long
+                int csize = _colorized.size();
+                for (int ii = 0; ii < csize; ii++) {
+                    Tuple<Colorization[], BufferedImage> tup = _colorized.get(ii);
+                    Colorization[] tzations = tup.left;
+                    if (Arrays.equals(zations, tzations)) {
+                        return tup.right;
+                    }
+                }
+
+                try {
+                    cimage = ImageUtil.recolorImage(_source, zations);
+                    _colorized.add(new Tuple<Colorization[], BufferedImage>(zations, cimage));
+
+                } catch (Exception re) {
+                    log.warning("Failure recoloring image",
+                        "source", _key, "zations", StringUtil.toString(zations), "error", re);
+                    // return the uncolorized version
+                    return _source;
+                }
             }
 
-            // we search linearly through our list of colorized copies because it is not likely to
-            // be very long
-            int csize = _colorized.size();
-            for (int ii = 0; ii < csize; ii++) {
-                Tuple<Colorization[], BufferedImage> tup = _colorized.get(ii);
-                Colorization[] tzations = tup.left;
-                if (Arrays.equals(zations, tzations)) {
-                    return tup.right;
+            synchronized (cache) {
+                cache.adjustSize((int)ImageUtil.getEstimatedMemoryUsage(cimage));
+            }
+            return cimage;
+        }
+
+        /**
+         * Returns a page image holding the specified region of our (colorized) source, prepared
+         * in a format optimized for rendering. Pages are retained along with the source and
+         * colorized images, and their memory is accounted for in our cache size.
+         */
+        public BufferedImage getPage (Colorization[] zations, Rectangle bounds,
+                                      ImageManager imgr, LRUHashMap<ImageKey, CacheRecord> cache)
+        {
+            synchronized (this) {
+                BufferedImage page = findPage(zations, bounds);
+                if (page != null) {
+                    return page;
                 }
             }
 
+            // prepare the page outside our lock, as obtaining the colorized source may need to
+            // update the cache size; if someone else beats us to it, we use theirs
+            BufferedImage source = getImage(zations, cache);
+            BufferedImage page = imgr.createImage(
+                bounds.width, bounds.height, source.getColorModel().getTransparency());
+            Graphics2D gfx = page.createGraphics();
             try {
-                BufferedImage cimage = ImageUtil.recolorImage(_source, zations);
-                _colorized.add(new Tuple<Colorization[], BufferedImage>(zations, cimage));
-                synchronized (cache) {
-                    cache.adjustSize((int)ImageUtil.getEstimatedMemoryUsage(cimage));
+                gfx.drawImage(source.getSubimage(
+                                  bounds.x, bounds.y, bounds.width, bounds.height), 0, 0, null);
+            } finally {
+                gfx.dispose();
+            }
+
+            synchronized (this) {
+                BufferedImage opage = findPage(zations, bounds);
+                if (opage != null) {
+                    return opage;
+                }
+                if (_pages == null) {
+                    _pages = Lists.newArrayList();
                 }
-                return cimage;
+                _pages.add(new Tuple<Tuple<Colorization[], Rectangle>, BufferedImage>(
+                               new Tuple<Colorization[], Rectangle>(zations, bounds), page));
+            }
 
-            } catch (Exception re) {
-                log.warning("Failure recoloring image",
-                    "source", _key, "zations", StringUtil.toString(zations), "error", re);
-                // return the uncolorized version
-                return _source;
+            synchronized (cache) {
+                cache.adjustSize((int)ImageUtil.getEstimatedMemoryUsage(page));
             }
+            return page;
         }
 
         public long getEstimatedMemoryUsage ()
         {
             long usage = ImageUtil.getEstimatedMemoryUsage(_source);
-            if (_colorized != null) {
-                for (Tuple<Colorization[], BufferedImage> tup : _colorized) {
-                    usage += ImageUtil.getEstimatedMemoryUsage(tup.right);
+            synchronized (this) {
+                if (_colorized != null) {
+                    for (Tuple<Colorization[], BufferedImage> tup : _colorized) {
+                        usage += ImageUtil.getEstimatedMemoryUsage(tup.right);
+                    }
+                }
+                if (_pages != null) {
+                    for (Tuple<Tuple<Colorization[], Rectangle>, BufferedImage> tup : _pages) {
+                        usage += ImageUtil.getEstimatedMemoryUsage(tup.right);
+                    }
                 }
             }
             return usage;
@@ -525,9 +622,26 @@ public class ImageManager
                 ", ccount=" + ((_colorized == null) ? 0 : _colorized.size()) + "]";
         }
 
+        /**
+         * Returns the page prepared for the specified colorizations and region, or null. The
+         * caller must hold our lock.
+         */
+        protected BufferedImage findPage (Colorization[] zations, Rectangle bounds)
+        {
+            if (_pages != null) {
+                for (Tuple<Tuple<Colorization[], Rectangle>, BufferedImage> tup : _pages) {
+                    if (Arrays.equals(zations, tup.left.left) && bounds.equals(tup.left.right)) {
+                        return tup.right;
+                    }
+                }
+            }
+            return null;
+        }
+
         protected ImageKey _key;
         protected BufferedImage _source;
         protected ArrayList<Tuple<Colorization[], BufferedImage>> _colorized;
+        protected ArrayList<Tuple<Tuple<Colorization[], Rectangle>, BufferedImage>> _pages;
     }
 
     /** A reference to the resource manager via which we load image data by default. */
@@ -539,8 +653,9 @@ public class ImageManager
     /** A cache of loaded images. */
     protected LRUHashMap<ImageKey, CacheRecord> _ccache;
 
-    /** The set of all keys we've ever seen. */
-    protected HashSet<ImageKey> _keySet = Sets.newHashSet();
+    /** The set of all keys we've ever seen. Images may be loaded on multiple threads (by the scene
+     * block resolver and tileset prefetchers, for example), so this must be concurrent. */
+    protected Set<ImageKey> _keySet = Sets.newConcurrentHashSet();
 
     /** Throttle our cache status logging to once every 300 seconds. */
     protected Throttle _cacheStatThrottle = new Throttle(1, 300000L);
@@ -556,7 +671,7 @@ public class ImageManager
     };
 
     /** Data providers for different resource sets. */
-    protected Map<String, ImageDataProvider> _providers = Maps.newHashMap();
+    protected Map<String, ImageDataProvider> _providers = Maps.newConcurrentMap();
 
     /** Default amount of data we'll store in our image cache. */
     protected static int DEFAULT_CACHE_SIZE = 32768;
@@ -36,10 +36,12 @@ import java.awt.Transparency;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 
+import com.samskivert.util.IntIntMap;
 import com.samskivert.util.Logger;
 
 import com.samskivert.swing.Label;
@@ -164,6 +166,109 @@ public class ImageUtil
         return new BufferedImage(nicm, image.getRaster(), false, null);
     }
 
+    /**
+     * Composites a region of a color mapped image onto an array of non-premultiplied ARGB pixels,
+     * looking each pixel up in the image's color map and blending it over the existing pixel.
+     * This avoids converting the image to ARGB before compositing it.
+     *
+     * @param source the color mapped source image.
+     * @param sbounds the region of the source image to composite.
+     * @param dest the destination pixels, in row major order.
+     * @param dwidth the width of the destination.
+     * @param dx the x offset at which to composite the source region into the destination.
+     * @param dy the y offset at which to composite the source region into the destination.
+     *
+     * @return false if the source image is not color mapped, in which case nothing is done.
+     */
+    public static boolean compositeIndexed (
+        BufferedImage source, Rectangle sbounds, int[] dest, int dwidth, int dx, int dy)
+    {
+        Raster raster = source.getRaster();
+        if (!(source.getColorModel() instanceof IndexColorModel) ||
+            raster.getTransferType() != DataBuffer.TYPE_BYTE || raster.getNumBands() != 1) {
+            return false;
+        }
+
+        // map every possible pixel value, as the map may be smaller than our pixel size
+        IndexColorModel icm = (IndexColorModel)source.getColorModel();
+        int[] cmap = new int[256];
+        icm.getRGBs(cmap);
+
+        // clip the source region to the destination
+        int dheight = dest.length / dwidth;
+        int x0 = Math.max(dx, 0), x1 = Math.min(dx + sbounds.width, dwidth);
+        int y0 = Math.max(dy, 0), y1 = Math.min(dy + sbounds.height, dheight);
+        if (x1 <= x0 || y1 <= y0) {
+            return true;
+        }
+
+        int width = x1 - x0;
+        byte[] row = new byte[width];
+        for (int yy = y0; yy < y1; yy++) {
+            raster.getDataElements(sbounds.x + x0 - dx, sbounds.y + yy - dy, width, 1, row);
+            for (int ii = 0, dpos = yy * dwidth + x0; ii < width; ii++, dpos++) {
+                int argb = cmap[row[ii] & 0xFF];
+                int alpha = argb >>> 24;
+                if (alpha == 0xFF) {
+                    dest[dpos] = argb;
+                } else if (alpha != 0) {
+                    dest[dpos] = blendOver(argb, dest[dpos]);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Composites an ARGB image onto an array of non-premultiplied ARGB pixels, blending it over
+     * the existing pixels.
+     *
+     * @see #compositeIndexed
+     */
+    public static void compositeARGB (
+        BufferedImage source, int[] dest, int dwidth, int dx, int dy)
+    {
+        int dheight = dest.length / dwidth;
+        int x0 = Math.max(dx, 0), x1 = Math.min(dx + source.getWidth(), dwidth);
+        int y0 = Math.max(dy, 0), y1 = Math.min(dy + source.getHeight(), dheight);
+        if (x1 <= x0 || y1 <= y0) {
+            return;
+        }
+
+        int width = x1 - x0;
+        int[] row = new int[width];
+        for (int yy = y0; yy < y1; yy++) {
+            source.getRGB(x0 - dx, yy - dy, width, 1, row, 0, width);
+            for (int ii = 0, dpos = yy * dwidth + x0; ii < width; ii++, dpos++) {
+                int argb = row[ii];
+                int alpha = argb >>> 24;
+                if (alpha == 0xFF) {
+                    dest[dpos] = argb;
+                } else if (alpha != 0) {
+                    dest[dpos] = blendOver(argb, dest[dpos]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Blends one non-premultiplied ARGB pixel over another.
+     */
+    public static int blendOver (int src, int dst)
+    {
+        int sa = src >>> 24, da = dst >>> 24;
+        if (da == 0) {
+            return src;
+        }
+        // the destination's contribution is scaled by its alpha and what the source leaves
+        int dw = da * (0xFF - sa) / 0xFF;
+        int oa = sa + dw;
+        int r = (((src >> 16) & 0xFF) * sa + ((dst >> 16) & 0xFF) * dw) / oa;
+        int g = (((src >> 8) & 0xFF) * sa + ((dst >> 8) & 0xFF) * dw) / oa;
+        int b = ((src & 0xFF) * sa + (dst & 0xFF) * dw) / oa;
+        return (oa << 24) | (r << 16) | (g << 8) | b;
+    }
+
     /**
      * Paints multiple copies of the supplied image using the supplied graphics context such that
      * the requested area is filled with the image.
@@ -534,6 +639,40 @@ public class ImageUtil
         }
     }
 
+    /**
+     * Converts the supplied image to an 8-bit color mapped image with a transparent zeroth entry,
+     * or returns null if it has too many colors to do so.
+     */
+    public static BufferedImage createIndexedImage (BufferedImage image)
+    {
+        int width = image.getWidth(), height = image.getHeight();
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        byte[] data = new byte[argb.length];
+        int[] cmap = new int[256];
+        IntIntMap colors = new IntIntMap();
+        colors.put(0, 0);
+        int ccount = 1;
+        for (int ii = 0; ii < argb.length; ii++) {
+            // all fully transparent pixels map to our transparent entry
+            int color = ((argb[ii] >>> 24) == 0) ? 0 : argb[ii];
+            int index = colors.getOrElse(color, -1);
+            if (index == -1) {
+                if (ccount == cmap.length) {
+                    return null;
+                }
+                cmap[ccount] = color;
+                colors.put(color, index = ccount++);
+            }
+            data[ii] = (byte)index;
+        }
+
+        IndexColorModel cmodel = new IndexColorModel(
+            8, ccount, cmap, 0, true, 0, DataBuffer.TYPE_BYTE);
+        WritableRaster raster = Raster.createInterleavedRaster(
+            new DataBufferByte(data, data.length), width, height, width, 1, new int[] { 0 }, null);
+        return new BufferedImage(cmodel, raster, false, null);
+    }
+
     /**
      * Returns the estimated memory usage in bytes for the specified image.
      */
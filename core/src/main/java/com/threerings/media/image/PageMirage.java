@@ -0,0 +1,90 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.image;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/**
+ * A mirage that renders a region of a larger page image, allowing a sheet of tiles to be
+ * prepared into a single image rather than one image per tile.
+ *
+ * <p> These objects are never created directly, but always obtained from the {@link
+ * ImageManager}.
+ */
+public class PageMirage implements Mirage
+{
+    /**
+     * Creates a mirage that renders the specified region of the supplied page.
+     */
+    protected PageMirage (BufferedImage page, Rectangle region)
+    {
+        _page = page;
+        _region = region;
+    }
+
+    // documentation inherited from interface
+    public void paint (Graphics2D gfx, int x, int y)
+    {
+        gfx.drawImage(_page, x, y, x + _region.width, y + _region.height,
+                      _region.x, _region.y, _region.x + _region.width,
+                      _region.y + _region.height, null);
+    }
+
+    // documentation inherited from interface
+    public int getWidth ()
+    {
+        return _region.width;
+    }
+
+    // documentation inherited from interface
+    public int getHeight ()
+    {
+        return _region.height;
+    }
+
+    // documentation inherited from interface
+    public boolean hitTest (int x, int y)
+    {
+        return ImageUtil.hitTest(_page, _region.x + x, _region.y + y);
+    }
+
+    // documentation inherited from interface
+    public long getEstimatedMemoryUsage ()
+    {
+        // we report our share of the page, so that the tiles on a page add up to the page
+        float share = (float)(_region.width * _region.height) /
+            (_page.getWidth() * _page.getHeight());
+        return (long)(ImageUtil.getEstimatedMemoryUsage(_page.getRaster()) * share);
+    }
+
+    // documentation inherited from interface
+    public BufferedImage getSnapshot ()
+    {
+        return _page.getSubimage(_region.x, _region.y, _region.width, _region.height);
+    }
+
+    /** The page image containing our region. */
+    protected BufferedImage _page;
+
+    /** The region of the page that we render. */
+    protected Rectangle _region;
+}
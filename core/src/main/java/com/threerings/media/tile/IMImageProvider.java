@@ -57,6 +57,12 @@ public class IMImageProvider implements ImageProvider
         return _imgr.getMirage(getImageKey(path), bounds, zations);
     }
 
+    @Override
+    public Mirage[] getTileImages (String path, Rectangle[] bounds, Colorization[] zations)
+    {
+        return _imgr.getMirages(getImageKey(path), bounds, zations);
+    }
+
     protected final ImageManager.ImageKey getImageKey (String path)
     {
         return (_dprov == null) ? _imgr.getImageKey(_rset, path) : _imgr.getImageKey(_dprov, path);
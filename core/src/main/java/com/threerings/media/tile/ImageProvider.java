@@ -55,4 +55,23 @@ public interface ImageProvider
      * mirage.
      */
     public Mirage getTileImage (String path, Rectangle bounds, Colorization[] zations);
+
+    /**
+     * Obtains mirages for each of the supplied regions of the tileset image with the specified
+     * path. The default implementation obtains them one at a time via {@link #getTileImage};
+     * providers that can cut all of the regions from the image in a single pass should do so.
+     *
+     * @param path the path that identifies the desired image.
+     * @param bounds the regions of the image to be returned as mirages.
+     * @param zations if non-null, colorizations to apply to the image before converting it into
+     * mirages.
+     */
+    public default Mirage[] getTileImages (String path, Rectangle[] bounds, Colorization[] zations)
+    {
+        Mirage[] mirages = new Mirage[bounds.length];
+        for (int ii = 0; ii < bounds.length; ii++) {
+            mirages[ii] = getTileImage(path, bounds[ii], zations);
+        }
+        return mirages;
+    }
 }
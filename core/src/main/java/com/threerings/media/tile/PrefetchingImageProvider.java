@@ -0,0 +1,157 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.tile;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import com.google.common.collect.Maps;
+
+import com.threerings.media.image.Colorization;
+import com.threerings.media.image.Mirage;
+
+import static com.threerings.media.Log.log;
+
+/**
+ * Wraps another {@link ImageProvider} and allows tileset source images to be loaded ahead of
+ * time on a supplied executor. Loads for different images proceed in parallel; a request for an
+ * image that is currently being prefetched waits for that load rather than decoding the image a
+ * second time.
+ *
+ * <p> The delegate is expected to cache the images it loads (as {@link IMImageProvider} does via
+ * the image manager); this provider only tracks loads that are in flight.
+ */
+public class PrefetchingImageProvider implements ImageProvider
+{
+    /**
+     * Creates a prefetching provider that loads images from the supplied delegate using the
+     * supplied executor.
+     */
+    public PrefetchingImageProvider (ImageProvider delegate, Executor executor)
+    {
+        _delegate = delegate;
+        _executor = executor;
+    }
+
+    /**
+     * Returns the provider from which we actually load our images.
+     */
+    public ImageProvider getDelegate ()
+    {
+        return _delegate;
+    }
+
+    /**
+     * Schedules the raw tileset image with the specified path to be loaded. If a load is already
+     * in progress for that path, its future is returned rather than scheduling another.
+     */
+    public Future<BufferedImage> prefetch (final String path)
+    {
+        FutureTask<BufferedImage> task = _pending.get(path);
+        if (task != null) {
+            return task;
+        }
+
+        task = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+            public BufferedImage call () {
+                try {
+                    return _delegate.getTileSetImage(path, null);
+                } finally {
+                    // once loaded, the image lives in our delegate's cache
+                    _pending.remove(path);
+                }
+            }
+        });
+        FutureTask<BufferedImage> otask = _pending.putIfAbsent(path, task);
+        if (otask != null) {
+            return otask;
+        }
+        _executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Returns the number of prefetches that are queued or in progress.
+     */
+    public int getPendingCount ()
+    {
+        return _pending.size();
+    }
+
+    // documentation inherited from interface
+    public BufferedImage getTileSetImage (String path, Colorization[] zations)
+    {
+        awaitPrefetch(path);
+        return _delegate.getTileSetImage(path, zations);
+    }
+
+    // documentation inherited from interface
+    public Mirage getTileImage (String path, Rectangle bounds, Colorization[] zations)
+    {
+        awaitPrefetch(path);
+        return _delegate.getTileImage(path, bounds, zations);
+    }
+
+    @Override
+    public Mirage[] getTileImages (String path, Rectangle[] bounds, Colorization[] zations)
+    {
+        awaitPrefetch(path);
+        return _delegate.getTileImages(path, bounds, zations);
+    }
+
+    /**
+     * Blocks until any in-progress prefetch of the specified image completes. If the prefetch has
+     * not yet started, it is run on the calling thread instead.
+     */
+    protected void awaitPrefetch (String path)
+    {
+        FutureTask<BufferedImage> task = _pending.get(path);
+        if (task == null) {
+            return;
+        }
+        // running a task that is already running or done is a no-op, so this either does the
+        // load here or falls through to wait on the thread that is doing it
+        task.run();
+        try {
+            task.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            log.warning("Tileset image prefetch failed", "path", path, "error", ee.getCause());
+        }
+    }
+
+    /** The provider that actually loads our images. */
+    protected ImageProvider _delegate;
+
+    /** The executor on which we run our prefetches. */
+    protected Executor _executor;
+
+    /** Prefetches that have been scheduled but not yet completed, keyed by image path. */
+    protected ConcurrentMap<String, FutureTask<BufferedImage>> _pending =
+        Maps.newConcurrentMap();
+}
@@ -70,6 +70,21 @@ public abstract class SimpleCachingImageProvider implements ImageProvider
         return new BufferedMirage(tsimg);
     }
 
+    @Override
+    public Mirage[] getTileImages (String path, Rectangle[] bounds, Colorization[] zations)
+    {
+        // recolor the source image once and share its raster among all of the tiles
+        BufferedImage tsimg = getTileSetImage(path, zations);
+        float area = tsimg.getWidth() * tsimg.getHeight();
+        Mirage[] mirages = new Mirage[bounds.length];
+        for (int ii = 0; ii < bounds.length; ii++) {
+            Rectangle tb = bounds[ii];
+            mirages[ii] = new BufferedMirage(tsimg.getSubimage(tb.x, tb.y, tb.width, tb.height),
+                tb.width * tb.height / area);
+        }
+        return mirages;
+    }
+
     /**
      * Derived classes must implement this method to actually load the raw source images.
      */
@@ -21,12 +21,20 @@ package com.threerings.media.tile;
 
 import java.lang.ref.SoftReference;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
+import java.awt.image.BufferedImage;
+
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import com.samskivert.io.PersistenceException;
 
+import com.threerings.media.image.Colorization;
 import com.threerings.media.image.ImageManager;
 
 import static com.threerings.media.Log.log;
@@ -185,6 +193,53 @@ public class TileManager
         }
     }
 
+    /**
+     * Configures an executor on which tileset images will be loaded when they are requested via
+     * {@link #prefetchTileSets}. Prefetching is disabled if no executor is configured.
+     */
+    public void setPrefetchExecutor (Executor executor)
+    {
+        _prefetchExec = executor;
+        _prefetchers = (executor == null) ? null :
+            Maps.<ImageProvider, PrefetchingImageProvider>newConcurrentMap();
+    }
+
+    /**
+     * Returns true if a prefetch executor has been configured.
+     */
+    public boolean isPrefetching ()
+    {
+        return _prefetchExec != null;
+    }
+
+    /**
+     * Schedules the source images of the specified tilesets to be loaded in parallel on the
+     * prefetch executor, so that subsequent calls to {@link #getTile} find them already decoded.
+     * Tilesets that do not exist or that have no image provider are skipped.
+     *
+     * @return futures for the scheduled image loads, or an empty list if no prefetch executor is
+     * configured.
+     */
+    public List<Future<BufferedImage>> prefetchTileSets (Iterable<Integer> tileSetIds)
+    {
+        List<Future<BufferedImage>> futures = Lists.newArrayList();
+        if (_prefetchExec == null) {
+            return futures;
+        }
+        for (Integer tileSetId : tileSetIds) {
+            try {
+                TileSet set = getTileSet(tileSetId);
+                PrefetchingImageProvider prov = getPrefetchingProvider(set);
+                if (prov != null && set.getImagePath() != null) {
+                    futures.add(prov.prefetch(set.getImagePath()));
+                }
+            } catch (NoSuchTileSetException nstse) {
+                // the tile lookup proper will report this
+            }
+        }
+        return futures;
+    }
+
     /**
      * Returns the {@link Tile} object with the specified fully qualified tile id.
      *
@@ -220,7 +275,84 @@ public class TileManager
         throws NoSuchTileSetException
     {
         TileSet set = getTileSet(tileSetId);
-        return set.getTile(tileIndex, rizer);
+        TileUsageStats usage = _usage;
+        if (usage == null) {
+            return set.getTile(tileIndex, rizer);
+        }
+
+        // note whether the tile was already active before we fetch it
+        Colorization[] zations = set.getColorizations(tileIndex, rizer);
+        boolean miss = (set.getActiveTile(tileIndex, zations) == null);
+        usage.noteAccess(tileSetId, tileIndex, miss);
+        return set.getTile(tileIndex, zations);
+    }
+
+    /**
+     * Enables or disables tracking of tile usage. When enabled, every request made via
+     * {@link #getTile(int,int,TileSet.Colorizer)} is counted, and reuse distances are computed
+     * for one in every <code>sampleRate</code> tiles. Disabling tracking discards the figures.
+     */
+    public void setUsageTracking (boolean enabled, int sampleRate)
+    {
+        _usage = enabled ? new TileUsageStats(sampleRate) : null;
+    }
+
+    /**
+     * Returns a snapshot of the tile usage figures accumulated since tracking was enabled or last
+     * reset, or null if usage tracking is not enabled.
+     */
+    public TileUsageStats.Snapshot getUsageSnapshot ()
+    {
+        TileUsageStats usage = _usage;
+        return (usage == null) ? null : usage.getSnapshot();
+    }
+
+    /**
+     * Clears the accumulated tile usage figures, if usage tracking is enabled.
+     */
+    public void resetUsage ()
+    {
+        TileUsageStats usage = _usage;
+        if (usage != null) {
+            usage.reset();
+        }
+    }
+
+    /**
+     * Logs a summary of the tile usage figures, if usage tracking is enabled.
+     */
+    public void reportUsage ()
+    {
+        TileUsageStats.Snapshot snap = getUsageSnapshot();
+        if (snap != null) {
+            log.info("Tile usage", "hitRate", snap.getHitRate(), "usage", snap);
+        }
+    }
+
+    /**
+     * Returns the prefetching provider through which the supplied tileset loads its image,
+     * interposing one in front of its current provider if necessary. All tilesets sharing a
+     * provider share the same prefetching wrapper.
+     */
+    protected PrefetchingImageProvider getPrefetchingProvider (TileSet set)
+    {
+        ImageProvider improv = set._improv;
+        if (improv == null) {
+            return null;
+        } else if (improv instanceof PrefetchingImageProvider) {
+            return (PrefetchingImageProvider)improv;
+        }
+
+        PrefetchingImageProvider prov = _prefetchers.get(improv);
+        if (prov == null) {
+            prov = new PrefetchingImageProvider(improv, _prefetchExec);
+            PrefetchingImageProvider oprov = _prefetchers.putIfAbsent(improv, prov);
+            if (oprov != null) {
+                prov = oprov;
+            }
+        }
+        set.setImageProvider(prov);
+        return prov;
     }
 
     /** The entity through which we decode and cache images. */
@@ -234,4 +366,13 @@ public class TileManager
 
     /** Used to load tileset images from the default resource source. */
     protected ImageProvider _defaultProvider;
+
+    /** Tracks tile requests when usage tracking is enabled, null otherwise. */
+    protected volatile TileUsageStats _usage;
+
+    /** The executor on which we prefetch tileset images, or null. */
+    protected Executor _prefetchExec;
+
+    /** Prefetching wrappers for the image providers of tilesets we've prefetched. */
+    protected ConcurrentMap<ImageProvider, PrefetchingImageProvider> _prefetchers;
 }
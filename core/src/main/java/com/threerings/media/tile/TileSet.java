@@ -21,6 +21,7 @@ package com.threerings.media.tile;
 
 import java.lang.ref.SoftReference;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -160,6 +161,19 @@ public abstract class TileSet
      */
     public abstract Rectangle computeTileBounds (int tileIndex, Rectangle bounds);
 
+    /**
+     * Computes the bounds of each of the specified tiles. Derived classes may wish to override
+     * this to avoid repeating work shared by all tiles.
+     */
+    protected Rectangle[] computeTileBounds (int[] tileIndices)
+    {
+        Rectangle[] bounds = new Rectangle[tileIndices.length];
+        for (int ii = 0; ii < tileIndices.length; ii++) {
+            bounds[ii] = computeTileBounds(tileIndices[ii], new Rectangle());
+        }
+        return bounds;
+    }
+
     /**
      * Equivalent to {@link #getTile(int,Colorizer)} with a null <code>Colorizer</code> argument.
      */
@@ -201,19 +215,9 @@ public abstract class TileSet
      */
     public Tile getTile (int tileIndex, Colorization[] zations)
     {
-        Tile tile = null;
-
         // first look in the active set; if it's in use by anyone or in the cache, it will be in
         // the active set
-        synchronized (_atiles) {
-            _key.tileSet = this;
-            _key.tileIndex = tileIndex;
-            _key.zations = zations;
-            SoftReference<Tile> sref = _atiles.get(_key);
-            if (sref != null) {
-                tile = sref.get();
-            }
-        }
+        Tile tile = getActiveTile(tileIndex, zations);
 
         // if it's not in the active set, it's not in memory; so load it
         if (tile == null) {
@@ -231,6 +235,21 @@ public abstract class TileSet
         return tile;
     }
 
+    /**
+     * Returns the specified tile if it is in the active tile set, null if it would have to be
+     * created anew by {@link #getTile(int,Colorization[])}.
+     */
+    protected Tile getActiveTile (int tileIndex, Colorization[] zations)
+    {
+        synchronized (_atiles) {
+            _key.tileSet = this;
+            _key.tileIndex = tileIndex;
+            _key.zations = zations;
+            SoftReference<Tile> sref = _atiles.get(_key);
+            return (sref == null) ? null : sref.get();
+        }
+    }
+
     /**
      * Returns a prepared version of the image that would be used by the tile at the specified
      * index. Because tilesets are often used simply to provide access to a collection of uniform
@@ -250,7 +269,21 @@ public abstract class TileSet
      */
     public Mirage[] getTileMirages ()
     {
-        Mirage[] mirages = new Mirage[getTileCount()];
+        int tcount = getTileCount();
+        int[] indices = new int[tcount];
+        boolean uniform = true;
+        Colorization[] zations = getColorizations(0, null);
+        for (int ii = 0; ii < tcount; ii++) {
+            indices[ii] = ii;
+            uniform = uniform && Arrays.equals(zations, getColorizations(ii, null));
+        }
+
+        // if every tile is colorized the same way, we can cut them all out in one go
+        if (uniform && _improv != null) {
+            return _improv.getTileImages(_imagePath, computeTileBounds(indices), zations);
+        }
+
+        Mirage[] mirages = new Mirage[tcount];
         for (int ii = 0; ii < mirages.length; ii++) {
             mirages[ii] = getTileMirage(ii);
         }
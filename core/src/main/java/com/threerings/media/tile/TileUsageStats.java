@@ -0,0 +1,240 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.tile;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.samskivert.util.Histogram;
+import com.samskivert.util.IntIntMap;
+
+/**
+ * Tracks how tiles are requested from a {@link TileManager}: how often each tileset and each tile
+ * is accessed, how often the request missed the active tile cache, and a sampled estimate of the
+ * reuse distance (the number of distinct tiles touched between two requests for the same tile).
+ * The latter tells us how large a cache would need to be to capture a given fraction of reuse.
+ *
+ * <p> Reuse distances are computed exactly for a hash-selected subset of tiles, and scaled up by
+ * the sampling rate, which keeps the cost proportional to the sampled working set.
+ */
+public class TileUsageStats
+{
+    /** Usage figures for a single tileset. */
+    public static class TileSetUsage
+    {
+        /** The id of the tileset in question. */
+        public int tileSetId;
+
+        /** The number of tile requests made of this tileset. */
+        public int accesses;
+
+        /** The number of requests that had to create a new tile. */
+        public int misses;
+
+        /** The number of distinct tiles requested from this tileset. */
+        public int distinctTiles;
+
+        @Override
+        public String toString ()
+        {
+            return tileSetId + ":" + accesses + "/" + misses + "/" + distinctTiles;
+        }
+    }
+
+    /** A point in time copy of the usage figures. */
+    public static class Snapshot
+    {
+        /** The total number of tile requests. */
+        public long accesses;
+
+        /** The total number of requests that missed the active tile cache. */
+        public long misses;
+
+        /** The number of distinct tiles requested (our working set since the last reset). */
+        public int workingSet;
+
+        /** Per-tileset usage, sorted by descending access count. */
+        public TileSetUsage[] tileSets;
+
+        /** The fully qualified ids of all requested tiles. */
+        public int[] tileIds;
+
+        /** The access counts of the tiles in {@link #tileIds}. */
+        public int[] tileAccesses;
+
+        /** The sampled reuse distance histogram. */
+        public Histogram reuseDistances;
+
+        /**
+         * Returns the fraction of requests that were satisfied by the active tile cache.
+         */
+        public float getHitRate ()
+        {
+            return (accesses == 0) ? 0f : (accesses - misses) / (float)accesses;
+        }
+
+        @Override
+        public String toString ()
+        {
+            StringBuilder buf = new StringBuilder("[accesses=").append(accesses);
+            buf.append(", misses=").append(misses);
+            buf.append(", workingSet=").append(workingSet);
+            buf.append(", hot=");
+            for (int ii = 0, ll = Math.min(tileSets.length, 10); ii < ll; ii++) {
+                buf.append(ii == 0 ? "" : ",").append(tileSets[ii]);
+            }
+            buf.append(", reuse=").append(reuseDistances.summarize());
+            return buf.append("]").toString();
+        }
+    }
+
+    /**
+     * Creates a stats tracker that computes reuse distances for one in every
+     * <code>sampleRate</code> tiles.
+     */
+    public TileUsageStats (int sampleRate)
+    {
+        _sampleRate = Math.max(1, sampleRate);
+    }
+
+    /**
+     * Notes that the specified tile was requested.
+     *
+     * @param miss true if the request had to create a new tile.
+     */
+    public synchronized void noteAccess (int tileSetId, int tileIndex, boolean miss)
+    {
+        int fqTileId = TileUtil.getFQTileId(tileSetId, tileIndex);
+        _accesses++;
+        _setAccesses.increment(tileSetId, 1);
+        if (miss) {
+            _misses++;
+            _setMisses.increment(tileSetId, 1);
+        }
+        if (_tileAccesses.increment(fqTileId, 1) == 1) {
+            _setDistinct.increment(tileSetId, 1);
+        }
+
+        // only compute reuse distances for our sampled tiles
+        if (((fqTileId * HASH_MULT) >>> 16) % _sampleRate != 0) {
+            return;
+        }
+
+        // the stack is kept in access order, least recently used first, so the reuse distance is
+        // the number of entries that follow this tile in the stack
+        if (_stack.containsKey(fqTileId)) {
+            int depth = _stack.size();
+            for (Iterator<Integer> iter = _stack.keySet().iterator(); iter.hasNext(); ) {
+                depth--;
+                if (iter.next() == fqTileId) {
+                    break;
+                }
+            }
+            _reuse.addValue(depth * _sampleRate);
+        }
+        _stack.put(fqTileId, Boolean.TRUE);
+    }
+
+    /**
+     * Returns a copy of the current usage figures.
+     */
+    public synchronized Snapshot getSnapshot ()
+    {
+        Snapshot snap = new Snapshot();
+        snap.accesses = _accesses;
+        snap.misses = _misses;
+        snap.workingSet = _tileAccesses.size();
+        snap.tileIds = _tileAccesses.getKeys();
+        snap.tileAccesses = new int[snap.tileIds.length];
+        for (int ii = 0; ii < snap.tileIds.length; ii++) {
+            snap.tileAccesses[ii] = _tileAccesses.get(snap.tileIds[ii]);
+        }
+        int[] setIds = _setAccesses.getKeys();
+        snap.tileSets = new TileSetUsage[setIds.length];
+        for (int ii = 0; ii < setIds.length; ii++) {
+            TileSetUsage usage = new TileSetUsage();
+            usage.tileSetId = setIds[ii];
+            usage.accesses = _setAccesses.get(setIds[ii]);
+            usage.misses = _setMisses.getOrElse(setIds[ii], 0);
+            usage.distinctTiles = _setDistinct.getOrElse(setIds[ii], 0);
+            snap.tileSets[ii] = usage;
+        }
+        Arrays.sort(snap.tileSets, BY_ACCESSES);
+        snap.reuseDistances = _reuse.clone();
+        return snap;
+    }
+
+    /**
+     * Clears all accumulated figures.
+     */
+    public synchronized void reset ()
+    {
+        _accesses = _misses = 0;
+        _setAccesses.clear();
+        _setMisses.clear();
+        _setDistinct.clear();
+        _tileAccesses.clear();
+        _stack.clear();
+        _reuse.clear();
+    }
+
+    /** One in this many tiles has its reuse distance tracked. */
+    protected int _sampleRate;
+
+    /** Total requests and misses. */
+    protected long _accesses, _misses;
+
+    /** Per-tileset requests, misses and distinct tile counts. */
+    protected IntIntMap _setAccesses = new IntIntMap(), _setMisses = new IntIntMap(),
+        _setDistinct = new IntIntMap();
+
+    /** Per-tile request counts. */
+    protected IntIntMap _tileAccesses = new IntIntMap();
+
+    /** The LRU stack of sampled tiles used to compute reuse distances. */
+    protected LinkedHashMap<Integer, Boolean> _stack =
+        new LinkedHashMap<Integer, Boolean>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry (Map.Entry<Integer, Boolean> eldest) {
+                return size() > MAX_STACK_DEPTH;
+            }
+        };
+
+    /** Reuse distances, in distinct tiles. */
+    protected Histogram _reuse = new Histogram(0, REUSE_BUCKET_WIDTH, REUSE_BUCKETS);
+
+    /** Sorts tileset usage by descending access count. */
+    protected static final Comparator<TileSetUsage> BY_ACCESSES = new Comparator<TileSetUsage>() {
+        public int compare (TileSetUsage u1, TileSetUsage u2) {
+            return Integer.compare(u2.accesses, u1.accesses);
+        }
+    };
+
+    /** Used to spread tile ids before selecting samples. */
+    protected static final int HASH_MULT = 0x9E3779B1;
+
+    /** The maximum number of sampled tiles for which we track reuse. */
+    protected static final int MAX_STACK_DEPTH = 4096;
+
+    /** The width and number of our reuse distance histogram buckets. */
+    protected static final int REUSE_BUCKET_WIDTH = 64, REUSE_BUCKETS = 64;
+}
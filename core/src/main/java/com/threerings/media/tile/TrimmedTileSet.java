@@ -48,6 +48,20 @@ public class TrimmedTileSet extends TileSet
         return bounds;
     }
 
+    /**
+     * Fills in the bounds of the trimmed image of the specified tile within the coordinate
+     * system defined by the complete virtual tile, as {@link TrimmedTile#getTrimmedBounds} does,
+     * but without creating the tile.
+     *
+     * @return the rectangle passed into the bounds parameter.
+     */
+    public Rectangle getTrimmedBounds (int tileIndex, Rectangle bounds)
+    {
+        bounds.setBounds(_tbounds[tileIndex].x, _tbounds[tileIndex].y,
+                         _obounds[tileIndex].width, _obounds[tileIndex].height);
+        return bounds;
+    }
+
     @Override
     protected Tile createTile ()
     {
@@ -49,6 +49,19 @@ public class UniformTileSet extends TileSet
         return bounds;
     }
 
+    @Override
+    protected Rectangle[] computeTileBounds (int[] tileIndices)
+    {
+        // only look up our source image once rather than once per tile
+        BufferedImage tsimg = getRawTileSetImage();
+        Rectangle[] bounds = new Rectangle[tileIndices.length];
+        for (int ii = 0; ii < tileIndices.length; ii++) {
+            bounds[ii] = GeomUtil.getTile(
+                tsimg.getWidth(), tsimg.getHeight(), _width, _height, tileIndices[ii]);
+        }
+        return bounds;
+    }
+
     /**
      * Specifies the width of the tiles in this tileset.
      */
@@ -20,11 +20,13 @@
 package com.threerings.media.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 
 import com.google.common.collect.Lists;
 
@@ -37,6 +39,12 @@ import com.samskivert.util.HashIntMap;
  * <p> See the path-finding article on <a
  * href="http://www.gamasutra.com/features/19990212/sm_01.htm">Gamasutra</a> for more detailed
  * information.
+ *
+ * <p> Searches are normally run over primitive arrays in a workspace that is reused by each
+ * thread, which covers the square of tiles reachable within the longest allowed path and uses
+ * generation stamps rather than clearing, so a search allocates little more than its result.
+ * Searches that are too large for such a workspace (or custom steppers that step beyond it) are
+ * run with the original node-based implementation.
  */
 public class AStarPathUtil
 {
@@ -82,6 +90,7 @@ public class AStarPathUtil
         public void init (Info info, Node n) {
             _info = info;
             _node = n;
+            _search = null;
         }
 
         /**
@@ -102,13 +111,26 @@ public class AStarPathUtil
             }
         }
 
+        protected void init (Search search, int cell) {
+            _search = search;
+            _cell = cell;
+            _info = null;
+            _node = null;
+        }
+
         protected void considerStep (int x, int y, int cost) {
-            AStarPathUtil.considerStep(_info, _node, x, y, cost);
+            if (_search != null) {
+                _search.considerStep(_cell, x, y, cost);
+            } else {
+                AStarPathUtil.considerStep(_info, _node, x, y, cost);
+            }
         }
 
         protected boolean _considerDiagonals;
         protected Info _info;
         protected Node _node;
+        protected Search _search;
+        protected int _cell;
     }
 
     /** The standard cost to move between nodes. */
@@ -141,6 +163,55 @@ public class AStarPathUtil
     public static List<Point> getPath (
         TraversalPred tpred, Stepper stepper, Object trav, int longest,
         int ax, int ay, int bx, int by, boolean partial)
+    {
+        return getPath(tpred, stepper, trav, longest, null, ax, ay, bx, by, partial);
+    }
+
+    /**
+     * Computes a path as {@link #getPath(TraversalPred,Stepper,Object,int,int,int,int,int,boolean)}
+     * does, but without stepping outside the supplied bounds (in tile coordinates). A null
+     * stepper uses the default stepper and null bounds do not confine the search.
+     */
+    public static List<Point> getPath (
+        TraversalPred tpred, Stepper stepper, Object trav, int longest, Rectangle bounds,
+        int ax, int ay, int bx, int by, boolean partial)
+    {
+        // use our thread's workspace, unless a predicate is computing a path of its own
+        Search search = _searches.get();
+        if (search.busy) {
+            search = new Search();
+        }
+        search.busy = true;
+        try {
+            if (search.init(tpred, trav, longest, bounds, ax, ay, bx, by)) {
+                List<Point> path = search.getPath(
+                    (stepper == null) ? search.stepper : stepper, partial);
+                setConsidered(search.considered);
+                if (!search.overflowed) {
+                    return path;
+                }
+            }
+        } finally {
+            search.busy = false;
+            // don't let an unusually large search leave its workspace behind
+            search.trim();
+        }
+
+        // fall back to searching with nodes, which has no bounds of its own
+        if (bounds != null) {
+            tpred = new BoundedPred(tpred, bounds);
+        }
+        return getPathByNodes(tpred, (stepper == null) ? new Stepper() : stepper, trav, longest,
+                              ax, ay, bx, by, partial);
+    }
+
+    /**
+     * Computes a path using the original implementation, which allocates a node for each tile
+     * considered. This is used for searches that are too large for a {@link Search} workspace.
+     */
+    protected static List<Point> getPathByNodes (
+        TraversalPred tpred, Stepper stepper, Object trav, int longest,
+        int ax, int ay, int bx, int by, boolean partial)
     {
         Info info = new Info(tpred, trav, longest, bx, by);
 
@@ -152,38 +223,42 @@ public class AStarPathUtil
 
         // push starting node on the open list
         info.open.add(s);
-        _considered = 1;
+        info.considered = 1;
 
         // track the best path
         float bestdist = Float.MAX_VALUE;
         Node bestpath = null;
 
-        // while there are more nodes on the open list
-        while (info.open.size() > 0) {
-
-            // pop the best node so far from open
-            Node n = info.open.first();
-            info.open.remove(n);
-
-            // if node is a goal node
-            if (n.x == bx && n.y == by) {
-                // construct and return the acceptable path
-                return getNodePath(n);
-
-            } else if (partial) {
-                float pathdist = MathUtil.distance(n.x, n.y, bx, by);
-                if (pathdist < bestdist) {
-                    bestdist = pathdist;
-                    bestpath = n;
+        try {
+            // while there are more nodes on the open list
+            while (info.open.size() > 0) {
+
+                // pop the best node so far from open
+                Node n = info.open.first();
+                info.open.remove(n);
+
+                // if node is a goal node
+                if (n.x == bx && n.y == by) {
+                    // construct and return the acceptable path
+                    return getNodePath(n);
+
+                } else if (partial) {
+                    float pathdist = MathUtil.distance(n.x, n.y, bx, by);
+                    if (pathdist < bestdist) {
+                        bestdist = pathdist;
+                        bestpath = n;
+                    }
                 }
-            }
 
-            // consider each successor of the node
-            stepper.init(info, n);
-            stepper.considerSteps(n.x, n.y);
+                // consider each successor of the node
+                stepper.init(info, n);
+                stepper.considerSteps(n.x, n.y);
 
-            // push the node on the closed list
-            n.closed = true;
+                // push the node on the closed list
+                n.closed = true;
+            }
+        } finally {
+            setConsidered(info.considered);
         }
 
         // return the best path we could find if we were asked to do so
@@ -203,15 +278,24 @@ public class AStarPathUtil
         TraversalPred tpred, Object trav, int longest,
         int ax, int ay, int bx, int by, boolean partial)
     {
-        return getPath(tpred, new Stepper(), trav, longest, ax, ay, bx, by, partial);
+        return getPath(tpred, null, trav, longest, null, ax, ay, bx, by, partial);
     }
 
     /**
-     * Returns the number of nodes considered in computing the most recent path.
+     * Returns the number of nodes considered in computing the most recent path computed by the
+     * calling thread.
      */
     public static int getConsidered ()
     {
-        return _considered;
+        return _searches.get().lastConsidered;
+    }
+
+    /**
+     * Notes the number of nodes considered in computing the calling thread's most recent path.
+     */
+    protected static void setConsidered (int considered)
+    {
+        _searches.get().lastConsidered = considered;
     }
 
     /**
@@ -263,7 +347,7 @@ public class AStarPathUtil
 
         // add it to the open list for further consideration
         info.open.add(np);
-        _considered++;
+        info.considered++;
     }
 
     /**
@@ -327,6 +411,9 @@ public class AStarPathUtil
         /** The maximum cost of any path that we'll consider. */
         public int maxcost;
 
+        /** The number of nodes considered so far. */
+        public int considered;
+
         public Info (TraversalPred tpred, Object trav, int longest, int destx, int desty) {
             // save off references
             this.tpred = tpred;
@@ -390,6 +477,369 @@ public class AStarPathUtil
         protected HashIntMap<Node> _nodes = new HashIntMap<Node>();
     }
 
+    /**
+     * A reusable workspace in which a search is run over primitive arrays. Tiles are identified by
+     * their index in the (row major) rectangle of tiles that the search may reach, the open list
+     * is a binary heap of such indices, and per-tile state is only valid if the tile's stamp
+     * matches the current search's generation, so nothing need be cleared between searches.
+     */
+    protected static class Search
+    {
+        /** Used to step when the caller supplies no stepper of its own. */
+        public Stepper stepper = new Stepper();
+
+        /** Whether this workspace is in use. */
+        public boolean busy;
+
+        /** Set if a custom stepper stepped outside our implicit bounds. */
+        public boolean overflowed;
+
+        /** The number of tiles considered by the current (or last) search in this workspace. */
+        public int considered;
+
+        /** The number of nodes considered by the most recent search on this workspace's thread,
+         * which is reported by {@link AStarPathUtil#getConsidered}. */
+        public int lastConsidered;
+
+        /**
+         * Prepares this workspace for a search, returning false if the search may cover too many
+         * tiles to be run in a workspace.
+         */
+        public boolean init (TraversalPred tpred, Object trav, int longest, Rectangle bounds,
+                             int ax, int ay, int bx, int by) {
+            // a path can't take us more than the longest number of (standard) steps from the
+            // start, so unless we're told otherwise that's as far as our search may reach
+            long minx = (long)ax - longest, miny = (long)ay - longest;
+            long maxx = (long)ax + longest, maxy = (long)ay + longest;
+            _bounded = (bounds != null);
+            if (_bounded) {
+                minx = Math.max(minx, bounds.x);
+                miny = Math.max(miny, bounds.y);
+                maxx = Math.min(maxx, (long)bounds.x + bounds.width - 1);
+                maxy = Math.min(maxy, (long)bounds.y + bounds.height - 1);
+            }
+            long width = Math.max(0, maxx - minx + 1), height = Math.max(0, maxy - miny + 1);
+            if (width * height > MAX_SEARCH_AREA) {
+                return false;
+            }
+
+            _tpred = tpred;
+            _etpred = (tpred instanceof ExtendedTraversalPred) ?
+                (ExtendedTraversalPred)tpred : null;
+            _trav = trav;
+            _maxcost = longest * ADJACENT_COST;
+            _minx = (int)minx;
+            _miny = (int)miny;
+            _width = (int)width;
+            _height = (int)height;
+            _startx = ax;
+            _starty = ay;
+            _destx = bx;
+            _desty = by;
+            _size = 0;
+            _count = 0;
+            overflowed = false;
+
+            int area = _width * _height;
+            if (_stamps.length < area) {
+                int length = Math.max(area, Math.min(_stamps.length * 2, MAX_SEARCH_AREA));
+                _stamps = new int[length];
+                _g = new int[length];
+                _f = new int[length];
+                _order = new int[length];
+                _parent = new int[length];
+                _heapPos = new int[length];
+                _heap = new int[length];
+            }
+            if (++_gen == 0) {
+                // our generation wrapped around, so we have no choice but to clear our stamps
+                Arrays.fill(_stamps, 0);
+                _gen = 1;
+            }
+            return true;
+        }
+
+        /**
+         * Runs the search for which we were initialized.
+         */
+        public List<Point> getPath (Stepper stepper, boolean partial) {
+            if (!contains(_startx, _starty)) {
+                return null;
+            }
+
+            // set up the starting tile and push it on the open list
+            int start = index(_startx, _starty);
+            discover(start);
+            _g[start] = 0;
+            _f[start] = getDistanceEstimate(_startx, _starty, _destx, _desty);
+            _parent[start] = -1;
+            push(start);
+            considered = 1;
+
+            // track the best path
+            float bestdist = Float.MAX_VALUE;
+            int bestpath = -1;
+
+            try {
+                while (_size > 0) {
+                    // pop the best tile so far from open, which closes it
+                    int cell = pop();
+                    int x = _minx + cell % _width, y = _miny + cell / _width;
+                    if (x == _destx && y == _desty) {
+                        return getCellPath(cell);
+
+                    } else if (partial) {
+                        float pathdist = MathUtil.distance(x, y, _destx, _desty);
+                        if (pathdist < bestdist) {
+                            bestdist = pathdist;
+                            bestpath = cell;
+                        }
+                    }
+
+                    // consider each successor of the tile
+                    stepper.init(this, cell);
+                    stepper.considerSteps(x, y);
+                    if (overflowed) {
+                        return null;
+                    }
+                }
+            } finally {
+                // don't hang on to the caller's predicate and traverser
+                _tpred = null;
+                _etpred = null;
+                _trav = null;
+            }
+
+            // return the best path we could find if we were asked to do so
+            return (bestpath == -1) ? null : getCellPath(bestpath);
+        }
+
+        /**
+         * Considers a step from the specified tile to the specified coordinates, as {@link
+         * AStarPathUtil#considerStep} does.
+         */
+        public void considerStep (int from, int x, int y, int cost) {
+            int fx = _minx + from % _width, fy = _miny + from / _width;
+            if (!isStepValid(fx, fy, x, y)) {
+                return;
+            }
+
+            // make sure the cost is reasonable
+            int newg = _g[from] + cost;
+            if (newg > _maxcost) {
+                return;
+            }
+
+            // steps out of our bounds are either not allowed or something we can't handle
+            if (!contains(x, y)) {
+                if (!_bounded) {
+                    overflowed = true;
+                }
+                return;
+            }
+
+            // skip if it's already open or closed at no greater cost
+            int cell = index(x, y);
+            if (_stamps[cell] == _gen) {
+                if (_g[cell] <= newg) {
+                    return;
+                }
+            } else {
+                discover(cell);
+            }
+
+            _parent[cell] = from;
+            _g[cell] = newg;
+            _f[cell] = newg + getDistanceEstimate(x, y, _destx, _desty);
+            if (_heapPos[cell] >= 0) {
+                // our score only went down, so we can only need to move up
+                siftUp(_heapPos[cell]);
+            } else {
+                push(cell);
+            }
+            considered++;
+        }
+
+        /**
+         * Releases our per-tile state if it has grown beyond what we're willing to keep between
+         * searches; it will be reallocated if a later search needs it.
+         */
+        public void trim () {
+            if (_stamps.length > MAX_RETAINED_AREA) {
+                _stamps = _g = _f = _order = _parent = _heapPos = _heap = new int[0];
+                _gen = 0;
+            }
+        }
+
+        /**
+         * Returns whether moving from the given source to destination coordinates is a valid
+         * move, as {@link Info#isStepValid} does.
+         */
+        protected boolean isStepValid (int sx, int sy, int dx, int dy) {
+            if (_etpred != null) {
+                if (!_etpred.canTraverse(_trav, sx, sy, dx, dy)) {
+                    return false;
+                }
+            } else if (!_tpred.canTraverse(_trav, dx, dy)) {
+                return false;
+            }
+            if ((Math.abs(dx - sx) == 1) && (Math.abs(dy - sy) == 1)) {
+                return _tpred.canTraverse(_trav, dx, sy) && _tpred.canTraverse(_trav, sx, dy);
+            }
+            return true;
+        }
+
+        /**
+         * Returns the path from the start to the specified tile.
+         */
+        protected List<Point> getCellPath (int cell) {
+            int length = 0;
+            for (int cur = cell; cur != -1; cur = _parent[cur]) {
+                length++;
+            }
+            Point[] points = new Point[length];
+            for (int cur = cell; cur != -1; cur = _parent[cur]) {
+                points[--length] = new Point(_minx + cur % _width, _miny + cur / _width);
+            }
+            return Lists.newArrayList(points);
+        }
+
+        /** Returns true if the specified tile is in the bounds of our search. */
+        protected boolean contains (int x, int y) {
+            return x >= _minx && y >= _miny && x - _minx < _width && y - _miny < _height;
+        }
+
+        /** Returns the index of the specified tile. */
+        protected int index (int x, int y) {
+            return (y - _miny) * _width + (x - _minx);
+        }
+
+        /** Notes that the specified tile is now part of this search. */
+        protected void discover (int cell) {
+            _stamps[cell] = _gen;
+            _order[cell] = _count++;
+            _heapPos[cell] = -1;
+        }
+
+        /** Adds the specified tile to the open list. */
+        protected void push (int cell) {
+            _heap[_size] = cell;
+            _heapPos[cell] = _size;
+            siftUp(_size++);
+        }
+
+        /** Removes and returns the best tile on the open list. */
+        protected int pop () {
+            int cell = _heap[0];
+            _heapPos[cell] = -1;
+            if (--_size > 0) {
+                _heap[0] = _heap[_size];
+                _heapPos[_heap[0]] = 0;
+                siftDown(0);
+            }
+            return cell;
+        }
+
+        protected void siftUp (int pos) {
+            int cell = _heap[pos];
+            while (pos > 0) {
+                int ppos = (pos - 1) >> 1, parent = _heap[ppos];
+                if (!isBetter(cell, parent)) {
+                    break;
+                }
+                _heap[pos] = parent;
+                _heapPos[parent] = pos;
+                pos = ppos;
+            }
+            _heap[pos] = cell;
+            _heapPos[cell] = pos;
+        }
+
+        protected void siftDown (int pos) {
+            int cell = _heap[pos];
+            while (true) {
+                int cpos = 2*pos + 1;
+                if (cpos >= _size) {
+                    break;
+                }
+                if (cpos + 1 < _size && isBetter(_heap[cpos+1], _heap[cpos])) {
+                    cpos++;
+                }
+                int child = _heap[cpos];
+                if (!isBetter(child, cell)) {
+                    break;
+                }
+                _heap[pos] = child;
+                _heapPos[child] = pos;
+                pos = cpos;
+            }
+            _heap[pos] = cell;
+            _heapPos[cell] = pos;
+        }
+
+        /** Orders tiles by score and then by discovery, as {@link Node#compareTo} does. */
+        protected boolean isBetter (int c1, int c2) {
+            return (_f[c1] == _f[c2]) ? (_order[c1] < _order[c2]) : (_f[c1] < _f[c2]);
+        }
+
+        /** The search's predicates and traverser. */
+        protected TraversalPred _tpred;
+        protected ExtendedTraversalPred _etpred;
+        protected Object _trav;
+
+        /** Whether our bounds were supplied rather than implied by the longest path. */
+        protected boolean _bounded;
+
+        /** The maximum cost of any path that we'll consider. */
+        protected int _maxcost;
+
+        /** The tiles our search may reach. */
+        protected int _minx, _miny, _width, _height;
+
+        /** The start and destination coordinates. */
+        protected int _startx, _starty, _destx, _desty;
+
+        /** The current search generation. */
+        protected int _gen;
+
+        /** The number of tiles discovered and on the open list. */
+        protected int _count, _size;
+
+        /** Per-tile search state, valid for tiles whose stamp matches our generation. */
+        protected int[] _stamps = new int[0], _g = _stamps, _f = _stamps, _order = _stamps,
+            _parent = _stamps, _heapPos = _stamps;
+
+        /** The open list, a binary heap of tile indices. */
+        protected int[] _heap = _stamps;
+    }
+
+    /** Confines a predicate to the tiles in the supplied bounds. */
+    protected static class BoundedPred implements ExtendedTraversalPred
+    {
+        public BoundedPred (TraversalPred tpred, Rectangle bounds) {
+            _tpred = tpred;
+            _bounds = bounds;
+        }
+
+        // documentation inherited from interface
+        public boolean canTraverse (Object trav, int x, int y) {
+            return _bounds.contains(x, y) && _tpred.canTraverse(trav, x, y);
+        }
+
+        // documentation inherited from interface
+        public boolean canTraverse (Object trav, int sx, int sy, int dx, int dy) {
+            if (!_bounds.contains(dx, dy)) {
+                return false;
+            }
+            return (_tpred instanceof ExtendedTraversalPred) ?
+                ((ExtendedTraversalPred)_tpred).canTraverse(trav, sx, sy, dx, dy) :
+                _tpred.canTraverse(trav, dx, dy);
+        }
+
+        protected TraversalPred _tpred;
+        protected Rectangle _bounds;
+    }
+
     /**
      * A class that represents a single traversable node in the tile array
      * along with its current A*-specific search information.
@@ -441,6 +891,18 @@ public class AStarPathUtil
         protected static int _nextid = 0;
     }
 
-    /** The number of nodes considered in computing our path. */
-    protected static int _considered = 0;
+    /** Each thread's search workspace. */
+    protected static final ThreadLocal<Search> _searches = new ThreadLocal<Search>() {
+        @Override protected Search initialValue () {
+            return new Search();
+        }
+    };
+
+    /** The largest number of tiles a workspace search may cover; beyond this we use nodes. */
+    protected static final int MAX_SEARCH_AREA = 1 << 18;
+
+    /** The largest number of tiles for which a workspace retains its state between searches
+     * (each tile costs seven ints), so that every thread that has ever searched doesn't hold on
+     * to the state for the largest search it has made. */
+    protected static final int MAX_RETAINED_AREA = 1 << 14;
 }
@@ -0,0 +1,231 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The cost of the cheapest path from every tile in a region to a single goal, computed with a
+ * reverse Dijkstra search using the same steps and costs as the default {@link
+ * AStarPathUtil.Stepper}. Once computed, a path to the goal from any tile in the region is found
+ * by walking downhill, so a flow field is the efficient way to route many travellers to the same
+ * destination. A computed field is immutable and may be shared between threads, provided that its
+ * predicate may be.
+ *
+ * <p> Steps are assumed to be symmetric (as they are for a plain {@link
+ * AStarPathUtil.TraversalPred}), which is what lets us search outward from the goal.
+ */
+public class FlowField
+{
+    /**
+     * Computes the flow field toward the specified goal over the supplied region.
+     *
+     * @param maxcost tiles whose paths would cost more than this are treated as unreachable.
+     */
+    public FlowField (AStarPathUtil.TraversalPred tpred, Object trav, Rectangle bounds,
+                      int goalx, int goaly, int maxcost)
+    {
+        _tpred = tpred;
+        _trav = trav;
+        _bounds = new Rectangle(bounds);
+        _goalx = goalx;
+        _goaly = goaly;
+        _costs = new int[bounds.width * bounds.height];
+        Arrays.fill(_costs, -1);
+        if (_bounds.contains(goalx, goaly) && tpred.canTraverse(trav, goalx, goaly)) {
+            compute(maxcost);
+        }
+    }
+
+    /**
+     * Returns the goal toward which this field flows.
+     */
+    public Point getGoal ()
+    {
+        return new Point(_goalx, _goaly);
+    }
+
+    /**
+     * Returns the cost of the cheapest path from the specified tile to the goal, or -1 if the
+     * goal can't be reached from it.
+     */
+    public int getCost (int x, int y)
+    {
+        return _bounds.contains(x, y) ? _costs[index(x, y)] : -1;
+    }
+
+    /**
+     * Returns the path from the specified tile to the goal, inclusive, or null if the goal can't
+     * be reached from it. As with {@link AStarPathUtil}, the starting tile itself need not be
+     * traversable.
+     */
+    public List<Point> getPath (int x, int y)
+    {
+        if (!_bounds.contains(x, y)) {
+            return null;
+        }
+        List<Point> path = Lists.newArrayList();
+        path.add(new Point(x, y));
+        for (int cost = getCost(x, y); cost != 0; cost = getCost(x, y)) {
+            // step to the neighbor through which the cheapest path passes
+            int bcost = Integer.MAX_VALUE, bx = 0, by = 0;
+            for (int ii = 0; ii < DXS.length; ii++) {
+                int tx = x + DXS[ii], ty = y + DYS[ii];
+                int tcost = getCost(tx, ty);
+                if (tcost < 0 || !isStepValid(x, y, tx, ty)) {
+                    continue;
+                }
+                tcost += stepCost(x, y, tx, ty);
+                if (tcost < bcost) {
+                    bcost = tcost;
+                    bx = tx;
+                    by = ty;
+                }
+            }
+            if (bcost == Integer.MAX_VALUE) {
+                return null;
+            }
+            x = bx;
+            y = by;
+            path.add(new Point(x, y));
+        }
+        return path;
+    }
+
+    /**
+     * Runs our search outward from the goal.
+     */
+    protected void compute (int maxcost)
+    {
+        long[] heap = new long[16];
+        int size = 0;
+        _costs[index(_goalx, _goaly)] = 0;
+        heap[size++] = index(_goalx, _goaly);
+        while (size > 0) {
+            // pop the cheapest entry (a cost in the high word and a tile in the low)
+            long entry = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size);
+            int idx = (int)entry, cost = (int)(entry >>> 32);
+            if (cost > _costs[idx]) {
+                continue; // superseded
+            }
+            int x = _bounds.x + idx % _bounds.width, y = _bounds.y + idx / _bounds.width;
+            for (int ii = 0; ii < DXS.length; ii++) {
+                int tx = x + DXS[ii], ty = y + DYS[ii];
+                if (!_bounds.contains(tx, ty) || !_tpred.canTraverse(_trav, tx, ty) ||
+                    !isStepValid(tx, ty, x, y)) {
+                    continue;
+                }
+                int tcost = cost + stepCost(x, y, tx, ty);
+                int tidx = index(tx, ty);
+                if (tcost > maxcost || (_costs[tidx] >= 0 && _costs[tidx] <= tcost)) {
+                    continue;
+                }
+                _costs[tidx] = tcost;
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, size * 2);
+                }
+                heap[size] = ((long)tcost << 32) | tidx;
+                siftUp(heap, size++);
+            }
+        }
+    }
+
+    /**
+     * Returns whether a traveller may step from the first tile to the second, as {@link
+     * AStarPathUtil} would allow (which doesn't require that the first tile be traversable).
+     */
+    protected boolean isStepValid (int sx, int sy, int dx, int dy)
+    {
+        if (!_tpred.canTraverse(_trav, dx, dy)) {
+            return false;
+        }
+        // diagonal steps may not cut corners
+        return (sx == dx || sy == dy) ||
+            (_tpred.canTraverse(_trav, dx, sy) && _tpred.canTraverse(_trav, sx, dy));
+    }
+
+    /** Returns the index of the specified tile in our costs. */
+    protected int index (int x, int y)
+    {
+        return (y - _bounds.y) * _bounds.width + (x - _bounds.x);
+    }
+
+    /** Returns the cost of a step between the specified adjacent tiles. */
+    protected static int stepCost (int sx, int sy, int dx, int dy)
+    {
+        return (sx == dx || sy == dy) ? AStarPathUtil.ADJACENT_COST : AStarPathUtil.DIAGONAL_COST;
+    }
+
+    protected static void siftUp (long[] heap, int pos)
+    {
+        long entry = heap[pos];
+        while (pos > 0 && heap[(pos - 1) >> 1] > entry) {
+            heap[pos] = heap[(pos - 1) >> 1];
+            pos = (pos - 1) >> 1;
+        }
+        heap[pos] = entry;
+    }
+
+    protected static void siftDown (long[] heap, int size)
+    {
+        if (size == 0) {
+            return;
+        }
+        long entry = heap[0];
+        int pos = 0;
+        while (2*pos + 1 < size) {
+            int cpos = 2*pos + 1;
+            if (cpos + 1 < size && heap[cpos+1] < heap[cpos]) {
+                cpos++;
+            }
+            if (heap[cpos] >= entry) {
+                break;
+            }
+            heap[pos] = heap[cpos];
+            pos = cpos;
+        }
+        heap[pos] = entry;
+    }
+
+    /** The traversability of the tiles in our region, and the traverser to which it applies. */
+    protected AStarPathUtil.TraversalPred _tpred;
+    protected Object _trav;
+
+    /** The region covered by the field. */
+    protected Rectangle _bounds;
+
+    /** The goal toward which the field flows. */
+    protected int _goalx, _goaly;
+
+    /** The cost of the cheapest path from each tile to the goal (or -1), in row major order. */
+    protected int[] _costs;
+
+    /** The offsets of the neighbors of a tile, orthogonal neighbors first. */
+    protected static final int[] DXS = { 0, 0, -1, 1, -1, 1, -1, 1 };
+    protected static final int[] DYS = { -1, 1, 0, 0, -1, -1, 1, 1 };
+}
@@ -19,19 +19,27 @@
 
 package com.threerings.miso.client;
 
-
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
+import java.util.Map;
 
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import com.samskivert.util.SortableArrayList;
 
+import com.samskivert.swing.RuntimeAdjust;
+
 import com.threerings.media.sprite.Sprite;
 import com.threerings.media.tile.ObjectTile;
 
+import com.threerings.miso.MisoPrefs;
+
 import static com.threerings.media.Log.log;
 
 /**
@@ -115,22 +123,15 @@ public class DirtyItemList
                 log.info("Sorted by rear-depth", "items", toString(_ditems));
             }
 
-            // now insertion sort the items from back to front into the render-sorted array
+            // now order the items from back to front into the render-sorted array
             _items.clear();
-          POS_LOOP:
-            for (int ii = 0; ii < size; ii++) {
-                DirtyItem item = _ditems.get(ii);
-                for (int rr = _items.size()-1; rr >= 0; rr--) {
-                    DirtyItem pitem = _items.get(rr);
-                    // if we render in front of this item, insert
-                    // ourselves immediately following it
-                    if (_rcomp.compare(item, pitem) > 0) {
-                        _items.add(rr+1, item);
-                        continue POS_LOOP;
-                    }
+            if (_graphSort.getValue()) {
+                graphSort(_items);
+                if (_checkGraphSort.getValue()) {
+                    checkGraphSort();
                 }
-                // we don't render in front of anyone, so we go at the front of the list
-                _items.add(0, item);
+            } else {
+                insertionSort(_items);
             }
 
             // clear out our temporary arrays
@@ -151,6 +152,182 @@ public class DirtyItemList
         }
     }
 
+    /**
+     * Insertion sorts the rear-depth sorted items from back to front into the supplied list,
+     * comparing each item against those already placed until it finds one it renders in front
+     * of. This takes time quadratic in the number of items.
+     */
+    protected void insertionSort (SortableArrayList<DirtyItem> items)
+    {
+      POS_LOOP:
+        for (int ii = 0, size = _ditems.size(); ii < size; ii++) {
+            DirtyItem item = _ditems.get(ii);
+            for (int rr = items.size()-1; rr >= 0; rr--) {
+                DirtyItem pitem = items.get(rr);
+                // if we render in front of this item, insert
+                // ourselves immediately following it
+                if (_rcomp.compare(item, pitem) > 0) {
+                    items.add(rr+1, item);
+                    continue POS_LOOP;
+                }
+            }
+            // we don't render in front of anyone, so we go at the front of the list
+            items.add(0, item);
+        }
+    }
+
+    /**
+     * Sorts the rear-depth sorted items from back to front into the supplied list. Only items
+     * whose screen bounds overlap can affect one another's appearance, so we find those pairs
+     * with a sweep line over the items' bounds, order each pair with the render comparator and
+     * then topologically sort the resulting graph, preferring items of lesser rear-depth when
+     * more than one item is free to be placed. Should the comparator produce a cycle, it is
+     * broken by placing the waiting item of least rear-depth.
+     */
+    protected void graphSort (SortableArrayList<DirtyItem> items)
+    {
+        int size = _ditems.size();
+        findOverlaps();
+
+        // count the incoming edges of each item and arrange the outgoing edges by item
+        int[] incount = new int[size], outstart = new int[size+1], outs = new int[_edgeCount];
+        for (int ee = 0; ee < _edgeCount; ee++) {
+            incount[_edgeTo[ee]]++;
+            outstart[_edgeFrom[ee]+1]++;
+        }
+        for (int ii = 0; ii < size; ii++) {
+            outstart[ii+1] += outstart[ii];
+        }
+        int[] fill = Arrays.copyOf(outstart, size);
+        for (int ee = 0; ee < _edgeCount; ee++) {
+            outs[fill[_edgeFrom[ee]]++] = _edgeTo[ee];
+        }
+
+        // place the items in topological order
+        BitSet ready = new BitSet(size), placed = new BitSet(size);
+        for (int ii = 0; ii < size; ii++) {
+            if (incount[ii] == 0) {
+                ready.set(ii);
+            }
+        }
+        for (int pcount = 0; pcount < size; pcount++) {
+            int idx = ready.nextSetBit(0);
+            if (idx == -1) {
+                // we have a cycle; break it
+                idx = placed.nextClearBit(0);
+                if (DEBUG_SORT) {
+                    log.info("Breaking render order cycle", "item", _ditems.get(idx));
+                }
+            } else {
+                ready.clear(idx);
+            }
+            placed.set(idx);
+            items.add(_ditems.get(idx));
+            for (int oo = outstart[idx], ll = outstart[idx+1]; oo < ll; oo++) {
+                int next = outs[oo];
+                if (--incount[next] == 0 && !placed.get(next)) {
+                    ready.set(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds all pairs of items whose screen bounds overlap by sweeping a line across them in
+     * order of their left edges, and records an edge (in {@link #_edgeFrom} and {@link
+     * #_edgeTo}, as indices into the rear-depth sorted items) from the item that renders behind
+     * to the item that renders in front for each such pair that the render comparator orders.
+     */
+    protected void findOverlaps ()
+    {
+        int size = _ditems.size();
+        _edgeCount = 0;
+
+        // sort the item indices by the left edges of their bounds
+        Rectangle[] bounds = new Rectangle[size];
+        Integer[] order = new Integer[size];
+        for (int ii = 0; ii < size; ii++) {
+            bounds[ii] = _ditems.get(ii).getBounds();
+            order[ii] = ii;
+        }
+        final Rectangle[] fbounds = bounds;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare (Integer i1, Integer i2) {
+                return Integer.compare(fbounds[i1].x, fbounds[i2].x);
+            }
+        });
+
+        // sweep, keeping track of the items whose bounds span the sweep line
+        int[] active = new int[size];
+        int acount = 0;
+        for (int oo = 0; oo < size; oo++) {
+            int idx = order[oo];
+            Rectangle ibounds = bounds[idx];
+            int pp = 0;
+            for (int aa = 0; aa < acount; aa++) {
+                int aidx = active[aa];
+                Rectangle abounds = bounds[aidx];
+                if (abounds.x + abounds.width <= ibounds.x) {
+                    continue; // the sweep line has passed this item
+                }
+                active[pp++] = aidx;
+                if (abounds.y < ibounds.y + ibounds.height &&
+                    ibounds.y < abounds.y + abounds.height) {
+                    int result = _rcomp.compare(_ditems.get(idx), _ditems.get(aidx));
+                    if (result > 0) {
+                        addEdge(aidx, idx);
+                    } else if (result < 0) {
+                        addEdge(idx, aidx);
+                    }
+                }
+            }
+            active[pp++] = idx;
+            acount = pp;
+        }
+    }
+
+    /**
+     * Records that the first item (rear-depth index) must be rendered before the second.
+     */
+    protected void addEdge (int from, int to)
+    {
+        if (_edgeCount == _edgeFrom.length) {
+            _edgeFrom = Arrays.copyOf(_edgeFrom, _edgeCount * 2);
+            _edgeTo = Arrays.copyOf(_edgeTo, _edgeCount * 2);
+        }
+        _edgeFrom[_edgeCount] = from;
+        _edgeTo[_edgeCount++] = to;
+    }
+
+    /**
+     * Compares the graph sorted order of our items against the order produced by insertion
+     * sorting them, and warns about any pair of overlapping items that the two sorts render in
+     * different orders or that the graph sort placed in violation of the render comparator.
+     */
+    protected void checkGraphSort ()
+    {
+        SortableArrayList<DirtyItem> isorted = new SortableArrayList<DirtyItem>();
+        insertionSort(isorted);
+        Map<DirtyItem, Integer> gpos = Maps.newIdentityHashMap();
+        Map<DirtyItem, Integer> ipos = Maps.newIdentityHashMap();
+        for (int ii = 0, ll = _items.size(); ii < ll; ii++) {
+            gpos.put(_items.get(ii), ii);
+            ipos.put(isorted.get(ii), ii);
+        }
+        for (int ee = 0; ee < _edgeCount; ee++) {
+            DirtyItem behind = _ditems.get(_edgeFrom[ee]), front = _ditems.get(_edgeTo[ee]);
+            boolean gbehind = gpos.get(behind) < gpos.get(front);
+            boolean ibehind = ipos.get(behind) < ipos.get(front);
+            if (!gbehind) {
+                log.warning("Graph sort violated render order (cycle?)",
+                            "behind", behind, "front", front);
+            } else if (!ibehind) {
+                log.warning("Graph sort differs from insertion sort",
+                            "behind", behind, "front", front);
+            }
+        }
+    }
+
     /**
      * Paints all the dirty items in this list using the supplied graphics context. The items are
      * removed from the dirty list after being painted and the dirty list ends up empty.
@@ -302,6 +479,17 @@ public class DirtyItemList
             }
         }
 
+        /**
+         * Returns the screen bounds of the dirtied object.
+         */
+        public Rectangle getBounds () {
+            if (obj instanceof Sprite) {
+                return ((Sprite)obj).getBounds();
+            } else {
+                return ((SceneObject)obj).bounds;
+            }
+        }
+
         /**
          * Returns the "depth" of our rear-most tile.
          */
@@ -631,9 +819,27 @@ public class DirtyItemList
     /** The render comparator we'll use for our final, magical sort. */
     protected Comparator<DirtyItem> _rcomp = new RenderComparator();
 
+    /** The render order edges found by {@link #findOverlaps}. */
+    protected int[] _edgeFrom = new int[64], _edgeTo = new int[64];
+
+    /** The number of edges in {@link #_edgeFrom} and {@link #_edgeTo}. */
+    protected int _edgeCount;
+
     /** Unused dirty items. */
     protected ArrayList<DirtyItem> _freelist = Lists.newArrayList();
 
+    /** Selects the overlap graph sort rather than the insertion sort. */
+    protected static RuntimeAdjust.BooleanAdjust _graphSort = new RuntimeAdjust.BooleanAdjust(
+        "Sorts dirty items for rendering by topologically sorting the render order of " +
+        "overlapping items rather than by insertion sorting all items.",
+        "narya.miso.graph_sort_dirty_items", MisoPrefs.config, false);
+
+    /** Checks the results of the graph sort against the insertion sort. */
+    protected static RuntimeAdjust.BooleanAdjust _checkGraphSort = new RuntimeAdjust.BooleanAdjust(
+        "Checks the graph sort of dirty items against the insertion sort, logging any pairs " +
+        "of overlapping items that are rendered in different orders (slow).",
+        "narya.miso.check_graph_sort", MisoPrefs.config, false);
+
     /** Whether to log debug info when comparing pairs of dirty items. */
     protected static final boolean DEBUG_COMPARE = false;
 
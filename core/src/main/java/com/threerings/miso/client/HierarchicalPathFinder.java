@@ -0,0 +1,511 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.client;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.HashIntMap;
+
+import com.threerings.media.util.AStarPathUtil;
+import com.threerings.media.util.MathUtil;
+
+/**
+ * Computes long paths through a scene hierarchically: the scene is divided into rectangular
+ * clusters of scene blocks, the passages (portals) between neighboring clusters and the costs of
+ * travelling between the portals of each cluster are precomputed, and a path is found by first
+ * searching the (much smaller) graph of portals and then refining each leg of that coarse path
+ * with a regular A* search confined to a single cluster.
+ *
+ * <p> The resulting paths are not always optimal, but the cost of finding them grows with the
+ * number of clusters crossed rather than the number of tiles, which makes paths spanning the
+ * whole scene practical.
+ *
+ * <p> Cluster graphs are computed lazily, when a search first passes through a cluster, and are
+ * discarded when {@link #invalidate} is called for any of the tiles on which they depend. They are
+ * computed using a <code>null</code> traverser; the legs of a path are refined using the actual
+ * traverser, and if any of them cannot be, no path is returned. This class is not thread-safe.
+ */
+public class HierarchicalPathFinder
+{
+    /**
+     * Creates a path finder that obtains traversability information from the supplied predicate
+     * and divides the scene into clusters of the specified dimensions (in tiles).
+     */
+    public HierarchicalPathFinder (AStarPathUtil.TraversalPred tpred, int cwidth, int cheight)
+    {
+        _tpred = tpred;
+        _cwidth = cwidth;
+        _cheight = cheight;
+    }
+
+    /**
+     * Configures the maximum number of portals to expand in the coarse search for a single path,
+     * which bounds the time spent looking for paths that do not exist.
+     */
+    public void setMaxExpansions (int maxExpansions)
+    {
+        _maxExpansions = maxExpansions;
+    }
+
+    /**
+     * Notes that the traversability of the tiles in the specified region may have changed, which
+     * discards the graphs of any clusters that depend on them.
+     */
+    public void invalidate (Rectangle tiles)
+    {
+        // clusters look one tile outside themselves to locate their portals
+        int minx = MathUtil.floorDiv(tiles.x - 1, _cwidth);
+        int miny = MathUtil.floorDiv(tiles.y - 1, _cheight);
+        int maxx = MathUtil.floorDiv(tiles.x + tiles.width, _cwidth);
+        int maxy = MathUtil.floorDiv(tiles.y + tiles.height, _cheight);
+        for (int cy = miny; cy <= maxy; cy++) {
+            for (int cx = minx; cx <= maxx; cx++) {
+                _clusters.remove(MisoScenePanel.compose(cx, cy));
+            }
+        }
+    }
+
+    /**
+     * Discards all cluster graphs.
+     */
+    public void clear ()
+    {
+        _clusters.clear();
+    }
+
+    /**
+     * Returns the number of clusters for which graphs are currently computed.
+     */
+    public int getClusterCount ()
+    {
+        return _clusters.size();
+    }
+
+    /**
+     * Returns the number of portals expanded in computing the most recent path.
+     */
+    public int getConsidered ()
+    {
+        return _considered;
+    }
+
+    /**
+     * Returns a list of the tile coordinates of a path from <code>(ax, ay)</code> to
+     * <code>(bx, by)</code>, inclusive, or null if no path could be found.
+     *
+     * @param trav the traverser to follow the path.
+     * @param longest the longest allowable path in tile traversals (see {@link
+     * AStarPathUtil#getPath(AStarPathUtil.TraversalPred,Object,int,int,int,int,int,boolean)}).
+     */
+    public List<Point> getPath (Object trav, int longest, int ax, int ay, int bx, int by)
+    {
+        _considered = 0;
+        if (!_tpred.canTraverse(trav, ax, ay) || !_tpred.canTraverse(trav, bx, by)) {
+            return null;
+        }
+
+        // don't let the clusters visited by searches through unresolved regions accumulate; we
+        // only let them go between searches, as a search relies on each cluster being computed
+        // once (and compares them by identity)
+        if (_clusters.size() >= MAX_CLUSTERS) {
+            _clusters.clear();
+        }
+
+        Cluster scluster = getCluster(ax, ay), gcluster = getCluster(bx, by);
+
+        // if we're already in the goal's cluster, try to get there without leaving it
+        if (scluster == gcluster) {
+            List<Point> path = refine(scluster, trav, ax, ay, bx, by);
+            if (path != null) {
+                return path;
+            }
+        }
+
+        // compute the costs from the start and goal to the portals of their clusters
+        int[] scosts = scluster.getCosts(ax, ay);
+        int[] gcosts = gcluster.getCosts(bx, by);
+        int maxcost = longest * AStarPathUtil.ADJACENT_COST;
+
+        Map<Long, Node> nodes = Maps.newHashMap();
+        TreeSet<Node> open = new TreeSet<Node>();
+        Node start = getNode(nodes, ax, ay);
+        start.g = 0;
+        start.f = estimate(ax, ay, bx, by);
+        open.add(start);
+
+        Node goal = null;
+        while (!open.isEmpty() && _considered < _maxExpansions) {
+            Node n = open.pollFirst();
+            if (n.x == bx && n.y == by) {
+                goal = n;
+                break;
+            }
+            n.closed = true;
+            _considered++;
+
+            Cluster cluster = getCluster(n.x, n.y);
+            int tidx = cluster.index(n.x, n.y);
+            if (n == start) {
+                // the start connects to every portal it can reach
+                for (int pp = 0; pp < cluster.portals.length; pp += 4) {
+                    consider(nodes, open, n, cluster.portals[pp], cluster.portals[pp+1],
+                             scosts[cluster.index(cluster.portals[pp], cluster.portals[pp+1])],
+                             maxcost, bx, by);
+                }
+            }
+            for (int pp = 0; pp < cluster.portals.length; pp += 4) {
+                if (cluster.portals[pp] != n.x || cluster.portals[pp+1] != n.y) {
+                    continue;
+                }
+                // step across to the neighboring cluster
+                consider(nodes, open, n, cluster.portals[pp+2], cluster.portals[pp+3],
+                         AStarPathUtil.ADJACENT_COST, maxcost, bx, by);
+                // and travel to this cluster's other portals
+                int[] costs = cluster.costs[pp/4];
+                for (int oo = 0; oo < cluster.portals.length; oo += 4) {
+                    consider(nodes, open, n, cluster.portals[oo], cluster.portals[oo+1],
+                             costs[oo/4], maxcost, bx, by);
+                }
+            }
+            if (cluster == gcluster) {
+                consider(nodes, open, n, bx, by, gcosts[tidx], maxcost, bx, by);
+            }
+        }
+        if (goal == null) {
+            return null;
+        }
+
+        // refine each leg of the coarse path into a tile path
+        List<Node> coarse = Lists.newArrayList();
+        for (Node n = goal; n != null; n = n.parent) {
+            coarse.add(0, n);
+        }
+        List<Point> path = Lists.newArrayList();
+        path.add(new Point(ax, ay));
+        for (int ii = 1, ll = coarse.size(); ii < ll; ii++) {
+            Node from = coarse.get(ii-1), to = coarse.get(ii);
+            Cluster cluster = getCluster(from.x, from.y);
+            if (!cluster.contains(to.x, to.y)) {
+                // this leg steps through a portal into the neighboring cluster
+                if (!_tpred.canTraverse(trav, to.x, to.y)) {
+                    return null;
+                }
+                path.add(new Point(to.x, to.y));
+                continue;
+            }
+            List<Point> leg = refine(cluster, trav, from.x, from.y, to.x, to.y);
+            if (leg == null) {
+                return null;
+            }
+            path.addAll(leg.subList(1, leg.size()));
+        }
+        return path;
+    }
+
+    /**
+     * Adds or updates the node for the specified tile if reaching it via the supplied node with
+     * the specified additional cost is an improvement.
+     */
+    protected void consider (Map<Long, Node> nodes, TreeSet<Node> open, Node from,
+                             int x, int y, int cost, int maxcost, int bx, int by)
+    {
+        if (cost < 0 || (x == from.x && y == from.y)) {
+            return;
+        }
+        int g = from.g + cost;
+        if (g > maxcost) {
+            return;
+        }
+        Node n = getNode(nodes, x, y);
+        if (n.g <= g) {
+            return;
+        }
+        open.remove(n);
+        n.g = g;
+        n.f = g + estimate(x, y, bx, by);
+        n.parent = from;
+        n.closed = false;
+        open.add(n);
+    }
+
+    /**
+     * Finds a path between two tiles in the supplied cluster without leaving it.
+     */
+    protected List<Point> refine (Cluster cluster, Object trav, int ax, int ay, int bx, int by)
+    {
+        return AStarPathUtil.getPath(_tpred, null, trav, cluster.width * cluster.height,
+                                     cluster.bounds, ax, ay, bx, by, false);
+    }
+
+    /**
+     * Returns the graph of the cluster that contains the specified tile, computing it if
+     * necessary.
+     */
+    protected Cluster getCluster (int x, int y)
+    {
+        int cx = MathUtil.floorDiv(x, _cwidth), cy = MathUtil.floorDiv(y, _cheight);
+        int key = MisoScenePanel.compose(cx, cy);
+        Cluster cluster = _clusters.get(key);
+        if (cluster == null) {
+            _clusters.put(key, cluster = new Cluster(cx * _cwidth, cy * _cheight));
+        }
+        return cluster;
+    }
+
+    /**
+     * Returns the search node for the specified tile, creating it if necessary.
+     */
+    protected static Node getNode (Map<Long, Node> nodes, int x, int y)
+    {
+        Long key = ((long)x << 32) | (y & 0xFFFFFFFFL);
+        Node node = nodes.get(key);
+        if (node == null) {
+            nodes.put(key, node = new Node(x, y, nodes.size()));
+        }
+        return node;
+    }
+
+    /**
+     * Returns the cost of the cheapest possible path between the specified tiles.
+     */
+    protected static int estimate (int ax, int ay, int bx, int by)
+    {
+        int dx = Math.abs(bx - ax), dy = Math.abs(by - ay);
+        int diag = Math.min(dx, dy);
+        return AStarPathUtil.DIAGONAL_COST * diag +
+            AStarPathUtil.ADJACENT_COST * (Math.max(dx, dy) - diag);
+    }
+
+    /** The portals of a cluster and the costs of travelling between them. */
+    protected class Cluster
+    {
+        /** The tile bounds of this cluster. */
+        public final int x, y, width, height;
+
+        /** Our tile bounds as a rectangle. */
+        public final Rectangle bounds;
+
+        /** The traversability of each of our tiles, in row major order. */
+        public final boolean[] passable;
+
+        /** Our portals: the coordinates of a tile in this cluster followed by those of the tile
+         * in the neighboring cluster to which it leads, four ints per portal. */
+        public final int[] portals;
+
+        /** The cost of travelling from each portal to each other, or -1 if it can't be done. */
+        public final int[][] costs;
+
+        public Cluster (int x, int y) {
+            this.x = x;
+            this.y = y;
+            width = _cwidth;
+            height = _cheight;
+            bounds = new Rectangle(x, y, width, height);
+
+            passable = new boolean[width * height];
+            for (int yy = 0; yy < height; yy++) {
+                for (int xx = 0; xx < width; xx++) {
+                    passable[yy*width + xx] = _tpred.canTraverse(null, x + xx, y + yy);
+                }
+            }
+
+            // locate the portals on each of our edges
+            int[] ports = new int[0];
+            ports = findPortals(ports, x, y, 1, 0, width, 0, -1);
+            ports = findPortals(ports, x, y + height - 1, 1, 0, width, 0, 1);
+            ports = findPortals(ports, x, y, 0, 1, height, -1, 0);
+            ports = findPortals(ports, x + width - 1, y, 0, 1, height, 1, 0);
+            portals = ports;
+
+            // and compute the costs between them
+            costs = new int[portals.length/4][];
+            for (int pp = 0; pp < portals.length; pp += 4) {
+                int[] tcosts = getCosts(portals[pp], portals[pp+1]);
+                costs[pp/4] = new int[portals.length/4];
+                for (int oo = 0; oo < portals.length; oo += 4) {
+                    costs[pp/4][oo/4] = tcosts[index(portals[oo], portals[oo+1])];
+                }
+            }
+        }
+
+        /** Returns true if this cluster contains the specified tile. */
+        public boolean contains (int tx, int ty) {
+            return tx >= x && ty >= y && tx < x + width && ty < y + height;
+        }
+
+        /** Returns the index of the specified tile in our row major arrays. */
+        public int index (int tx, int ty) {
+            return (ty - y) * width + (tx - x);
+        }
+
+        /**
+         * Computes the cost of travelling from the specified tile to each of the tiles in this
+         * cluster, without leaving it, using the same steps as {@link AStarPathUtil}. Unreachable
+         * tiles have a cost of -1.
+         */
+        public int[] getCosts (int tx, int ty) {
+            int[] dist = new int[passable.length];
+            Arrays.fill(dist, -1);
+            PriorityQueue<Long> queue = new PriorityQueue<Long>();
+            int sidx = index(tx, ty);
+            dist[sidx] = 0;
+            queue.add((long)sidx);
+            while (!queue.isEmpty()) {
+                long entry = queue.poll();
+                int idx = (int)entry, cost = (int)(entry >>> 32);
+                if (cost > dist[idx]) {
+                    continue;
+                }
+                int cx = idx % width, cy = idx / width;
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int nx = cx + dx, ny = cy + dy;
+                        if ((dx == 0 && dy == 0) || !isPassable(nx, ny)) {
+                            continue;
+                        }
+                        int ncost = cost + AStarPathUtil.ADJACENT_COST;
+                        if (dx != 0 && dy != 0) {
+                            // diagonal steps may not cut corners
+                            if (!isPassable(nx, cy) || !isPassable(cx, ny)) {
+                                continue;
+                            }
+                            ncost = cost + AStarPathUtil.DIAGONAL_COST;
+                        }
+                        int nidx = ny * width + nx;
+                        if (dist[nidx] < 0 || ncost < dist[nidx]) {
+                            dist[nidx] = ncost;
+                            queue.add(((long)ncost << 32) | nidx);
+                        }
+                    }
+                }
+            }
+            return dist;
+        }
+
+        /** Returns whether the specified cluster-relative tile is in bounds and passable. */
+        protected boolean isPassable (int cx, int cy) {
+            return cx >= 0 && cy >= 0 && cx < width && cy < height && passable[cy*width + cx];
+        }
+
+        /**
+         * Appends to the supplied array the portals along the edge that starts at the specified
+         * tile, runs for the specified length in the specified direction, and borders the tiles
+         * offset from it by the specified amount. Each maximal run of tiles that is passable on
+         * both sides of the edge yields a portal in its middle, or one at either end if it is
+         * long. Our neighbor computes the same runs, so we agree on where the portals are.
+         */
+        protected int[] findPortals (int[] ports, int sx, int sy, int dx, int dy, int length,
+                                     int ox, int oy) {
+            int start = -1;
+            for (int ii = 0; ii <= length; ii++) {
+                int tx = sx + ii*dx, ty = sy + ii*dy;
+                boolean open = (ii < length) && passable[index(tx, ty)] &&
+                    _tpred.canTraverse(null, tx + ox, ty + oy);
+                if (open && start < 0) {
+                    start = ii;
+                } else if (!open && start >= 0) {
+                    int end = ii - 1;
+                    if (end - start + 1 >= LONG_ENTRANCE) {
+                        ports = addPortal(ports, sx + start*dx, sy + start*dy, ox, oy);
+                        ports = addPortal(ports, sx + end*dx, sy + end*dy, ox, oy);
+                    } else {
+                        int mid = (start + end) / 2;
+                        ports = addPortal(ports, sx + mid*dx, sy + mid*dy, ox, oy);
+                    }
+                    start = -1;
+                }
+            }
+            return ports;
+        }
+
+        protected int[] addPortal (int[] ports, int tx, int ty, int ox, int oy) {
+            int[] nports = Arrays.copyOf(ports, ports.length + 4);
+            nports[ports.length] = tx;
+            nports[ports.length+1] = ty;
+            nports[ports.length+2] = tx + ox;
+            nports[ports.length+3] = ty + oy;
+            return nports;
+        }
+    }
+
+    /** A node in our coarse search. */
+    protected static class Node implements Comparable<Node>
+    {
+        /** The tile coordinates of this node. */
+        public final int x, y;
+
+        /** The cost of reaching this node and the estimated cost of a path through it. */
+        public int g = Integer.MAX_VALUE, f;
+
+        /** The node from which we reached this node. */
+        public Node parent;
+
+        /** Whether this node has been expanded. */
+        public boolean closed;
+
+        /** Distinguishes nodes with equal scores. */
+        public final int id;
+
+        public Node (int x, int y, int id) {
+            this.x = x;
+            this.y = y;
+            this.id = id;
+        }
+
+        // documentation inherited from interface
+        public int compareTo (Node o) {
+            return (f == o.f) ? Integer.compare(id, o.id) : Integer.compare(f, o.f);
+        }
+    }
+
+    /** Provides our traversability information. */
+    protected AStarPathUtil.TraversalPred _tpred;
+
+    /** The dimensions of our clusters in tiles. */
+    protected int _cwidth, _cheight;
+
+    /** The maximum number of portals to expand in search of a single path. */
+    protected int _maxExpansions = DEFAULT_MAX_EXPANSIONS;
+
+    /** The graphs of our clusters, keyed by their composed cluster coordinates. */
+    protected HashIntMap<Cluster> _clusters = new HashIntMap<Cluster>();
+
+    /** The number of portals expanded in computing the most recent path. */
+    protected int _considered;
+
+    /** Runs of passable edge tiles at least this long have a portal at each end. */
+    protected static final int LONG_ENTRANCE = 6;
+
+    /** The default maximum number of portals to expand in search of a single path. */
+    protected static final int DEFAULT_MAX_EXPANSIONS = 8192;
+
+    /** The maximum number of cluster graphs we retain between searches. */
+    protected static final int MAX_CLUSTERS = 4096;
+}
@@ -38,8 +38,6 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
-import java.awt.image.BufferedImage;
-import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -76,7 +74,7 @@ import com.threerings.miso.client.DirtyItemList.DirtyItem;
 import com.threerings.miso.data.MisoSceneModel;
 import com.threerings.miso.data.ObjectInfo;
 import com.threerings.miso.tile.BaseTile;
-import com.threerings.miso.tile.AutoFringer.FringeTile;
+import com.threerings.miso.tile.FringeCache;
 import com.threerings.miso.util.MisoContext;
 import com.threerings.miso.util.MisoSceneMetrics;
 import com.threerings.miso.util.MisoUtil;
@@ -112,13 +110,16 @@ public class MisoScenePanel extends VirtualMediaPanel
         // create the resolver if it's not already around
         _resolver = _resolvers.get(_ctx);
         if (_resolver == null) {
-            _resolver = new SceneBlockResolver();
+            _resolver = new SceneBlockResolver(_resolverThreads.getValue());
             _resolver.setDaemon(true);
             _resolver.setPriority(Thread.MIN_PRIORITY);
             _resolver.start();
             _resolvers.put(_ctx, _resolver);
         }
 
+        _fringeCache = createFringeCache();
+        _pathFinder = createPathFinder();
+
         addZoomListener((oldZoom, newZoom) -> {
             rethink();
         });
@@ -149,8 +150,14 @@ public class MisoScenePanel extends VirtualMediaPanel
     {
         _blocks.clear();
         _vizobjs.clear();
-        _fringes.clear();
-        _masks.clear();
+        _objindex.clear();
+        _dirtyBlocks.clear();
+        _pathFinder.clear();
+        _tsnapshot = null;
+        _lastTraversed = null;
+        if (_fringeCache != _ctx.getTileManager().getFringeCache()) {
+            _fringeCache.clear();
+        }
         if (_dpanel != null) {
             _dpanel.newScene();
         }
@@ -273,6 +280,20 @@ public class MisoScenePanel extends VirtualMediaPanel
         return _blocks.get(compose(bx, by));
     }
 
+    /**
+     * Informs the panel that the bounds of the supplied object, which is in one of our blocks,
+     * have changed. The object is reindexed and its block is marked as changed, so that the
+     * object's coverage and our visible objects are recomputed.
+     */
+    public void objectBoundsChanged (SceneObject scobj)
+    {
+        _objindex.reindex(scobj);
+        SceneBlock block = getBlock(scobj.info.x, scobj.info.y);
+        if (block != null) {
+            blockChanged(block);
+        }
+    }
+
     /**
      * Computes a path for the specified sprite to the specified tile coordinates.
      *
@@ -294,18 +315,28 @@ public class MisoScenePanel extends VirtualMediaPanel
             _metrics, sprite.getX(), sprite.getY(), new Point());
         Point dest = MisoUtil.screenToTile(_metrics, x, y, new Point());
 
-        // compute our longest path from the screen size
-        int longestPath = 3 * (getWidth() / _metrics.tilewid);
+        int longestPath = getLongestPath();
 
-        // get a reasonable tile path through the scene
+        // get a reasonable tile path through the scene; paths that leave the starting block are
+        // first sought hierarchically, which can find paths of any length
         long start = System.currentTimeMillis();
-        List<Point> points = AStarPathUtil.getPath(
-            this, sprite, longestPath, src.x, src.y, dest.x, dest.y, loose);
+        List<Point> points = null;
+        int considered = 0;
+        if (_hierarchicalPaths.getValue() && getBlock(src.x, src.y) != getBlock(dest.x, dest.y)) {
+            points = _pathFinder.getPath(
+                sprite, Integer.MAX_VALUE / (2 * AStarPathUtil.ADJACENT_COST),
+                src.x, src.y, dest.x, dest.y);
+            considered = _pathFinder.getConsidered();
+        }
+        if (points == null) {
+            points = AStarPathUtil.getPath(
+                this, sprite, longestPath, src.x, src.y, dest.x, dest.y, loose);
+            considered += AStarPathUtil.getConsidered();
+        }
         long duration = System.currentTimeMillis() - start;
 
         // sanity check the number of nodes searched so that we can keep an eye out for bogosity
         if (duration > 500L) {
-            int considered = AStarPathUtil.getConsidered();
             log.warning("Considered " + considered + " nodes for path from " +
                         StringUtil.toString(src) + " to " +
                         StringUtil.toString(dest) +
@@ -317,6 +348,50 @@ public class MisoScenePanel extends VirtualMediaPanel
             new TilePath(_metrics, sprite, points, x, y);
     }
 
+    /**
+     * Computes paths for a batch of sprites on worker threads, informing the observer on the AWT
+     * thread once they are all done. The paths are found in a snapshot of the traversability of
+     * the currently resolved blocks (see {@link #getTraversalSnapshot}), and requests that share
+     * a goal share the work of finding it.
+     *
+     * <p> Note that the snapshot is shared by all traversers and is captured with a null
+     * traverser, so any rules by which a derived class's {@link #canTraverse} treats particular
+     * traversers differently are not applied; paths for such traversers must be computed with
+     * {@link #getPath}.
+     */
+    public void getPaths (List<ScenePathService.Request> requests,
+                          ScenePathService.Observer obs)
+    {
+        if (_pathService == null) {
+            _pathService = new ScenePathService(_metrics);
+        }
+        _pathService.computePaths(getTraversalSnapshot(), requests, getLongestPath(), obs);
+    }
+
+    /**
+     * Returns an immutable snapshot of the traversability of the tiles in our resolved blocks,
+     * as reported by {@link #canTraverse} for a null traverser. The snapshot is reused until the
+     * traversability of a block's tiles changes.
+     */
+    public TraversalSnapshot getTraversalSnapshot ()
+    {
+        if (_tsnapshot == null) {
+            Rectangle bounds = null;
+            for (SceneBlock block : _blocks.values()) {
+                if (!block.isResolved()) {
+                    continue;
+                }
+                if (bounds == null) {
+                    bounds = new Rectangle(block.getBounds());
+                } else {
+                    bounds.add(block.getBounds());
+                }
+            }
+            _tsnapshot = new TraversalSnapshot(this, (bounds == null) ? new Rectangle() : bounds);
+        }
+        return _tsnapshot;
+    }
+
     /**
      * Converts the supplied full coordinates to screen coordinates.
      */
@@ -649,9 +724,48 @@ public class MisoScenePanel extends VirtualMediaPanel
     // documentation inherited
     public boolean canTraverse (Object traverser, int tx, int ty)
     {
-        SceneBlock block = getBlock(tx, ty);
-        return (block == null) ? canTraverseUnresolved(traverser, tx, ty) :
-            block.canTraverse(traverser, tx, ty);
+        // path searches make many queries of the same block, so we skip the block lookup when
+        // we can; the block itself answers with a single bit test
+        SceneBlock block = _lastTraversed;
+        if (block == null || !block.getBounds().contains(tx, ty)) {
+            block = getBlock(tx, ty);
+            if (block == null) {
+                return canTraverseUnresolved(traverser, tx, ty);
+            }
+            _lastTraversed = block;
+        }
+        return block.canTraverse(traverser, tx, ty);
+    }
+
+    /**
+     * Returns the longest path we'll search for, in tile traversals, which is computed from the
+     * screen size.
+     */
+    protected int getLongestPath ()
+    {
+        return 3 * (getWidth() / _metrics.tilewid);
+    }
+
+    /**
+     * Called by a scene block when its base or fringe tiles have been changed after it was
+     * resolved.
+     */
+    protected void blockTilesChanged (SceneBlock block)
+    {
+        _pathFinder.invalidate(block.getBounds());
+        _tsnapshot = null;
+    }
+
+    /**
+     * Creates the path finder used to compute paths that leave a sprite's starting block. Its
+     * clusters span whole blocks and are at least {@link #MIN_PATH_CLUSTER_SIZE} tiles on a side.
+     */
+    protected HierarchicalPathFinder createPathFinder ()
+    {
+        int bwide = (MIN_PATH_CLUSTER_SIZE + _metrics.blockwid - 1) / _metrics.blockwid;
+        int bhigh = (MIN_PATH_CLUSTER_SIZE + _metrics.blockhei - 1) / _metrics.blockhei;
+        return new HierarchicalPathFinder(
+            this, bwide * _metrics.blockwid, bhigh * _metrics.blockhei);
     }
 
     /**
@@ -810,10 +924,22 @@ public class MisoScenePanel extends VirtualMediaPanel
             key.y = block.getBounds().y;
             if (!_rethinkOp.blocks.contains(key)) {
                 log.debug("Flushing block " + block + ".");
+                iter.remove();
+                _objindex.removeObjects(block);
+                blockChanged(block);
+                // if the block has yet to start resolving, drop it from the queue; it will be
+                // reported back to us as abandoned
+                if (_resolver.cancelBlock(block)) {
+                    continue;
+                }
                 if (_dpanel != null) {
                     _dpanel.blockCleared(block);
                 }
-                iter.remove();
+            } else if (!block.isResolved()) {
+                // the view has moved, so blocks that are still waiting may now be more or less
+                // urgent than they were
+                boolean visible = _visiBlocks.contains(block);
+                _resolver.reprioritize(block, getResolvePriority(block, visible));
             }
         }
 
@@ -827,19 +953,21 @@ public class MisoScenePanel extends VirtualMediaPanel
                 boolean visible = block.getFootprint().getBounds().intersects(_vibounds);
                 block.setVisiBlock(visible);
                 _blocks.put(bkey, block);
+                blockChanged(block);
 
                 // queue the block up to be resolved
                 _pendingBlocks++;
                 if (visible) {
                     _visiBlocks.add(block);
                 }
-                _resolver.resolveBlock(block, visible);
+                _resolver.resolveBlock(block, getResolvePriority(block, visible));
                 if (_dpanel != null) {
                     _dpanel.queuedBlock(block);
                 }
             }
         }
         _rethinkOp.blocks.clear();
+        _lastCenter.setLocation(_vbounds.getCenterX(), _vbounds.getCenterY());
 
         // recompute our visible object set
         recomputeVisible();
@@ -847,6 +975,33 @@ public class MisoScenePanel extends VirtualMediaPanel
         log.debug("Rethunk [pending=" + _pendingBlocks + ", visible=" + _visiBlocks.size() + "].");
         return _visiBlocks.size();
     }
+
+    /**
+     * Computes the priority with which the supplied block should be resolved; lower values are
+     * resolved first. Blocks needed to display the view come before all others, and within those
+     * groups blocks are ordered by their distance from the center of the view, with blocks lying
+     * in the direction in which the view is scrolling treated as closer than those behind it.
+     */
+    protected int getResolvePriority (SceneBlock block, boolean visible)
+    {
+        Rectangle fbounds = block.getFootprint().getBounds();
+        double cx = _vbounds.getCenterX(), cy = _vbounds.getCenterY();
+        double dx = fbounds.getCenterX() - cx, dy = fbounds.getCenterY() - cy;
+        double dist = Math.sqrt(dx*dx + dy*dy);
+
+        // the view has moved from where it was at the last rethink, note which way it went
+        double mx = cx - _lastCenter.x, my = cy - _lastCenter.y;
+        double mlen = Math.sqrt(mx*mx + my*my);
+        if (dist > 0 && mlen > 0) {
+            // scale the distance down by up to half for blocks straight ahead and up by up to
+            // half for those straight behind
+            double cos = (dx*mx + dy*my) / (dist * mlen);
+            dist *= (1 - cos * SCROLL_BIAS);
+        }
+        int priority = (int)Math.min(dist, Integer.MAX_VALUE / 2);
+        return visible ? priority : Integer.MAX_VALUE / 2 + priority;
+    }
+
     /**
      * Calls through to {@link #computeInfluentialBounds(Rectangle, Rectangle, Rectangle)} with
      * _vbounds, _ibounds and _vibounds.
@@ -920,6 +1075,7 @@ public class MisoScenePanel extends VirtualMediaPanel
         if (_dpanel != null) {
             _dpanel.resolvedBlock(block);
         }
+        blockChanged(block);
 
         Rectangle sbounds = block.getScreenBounds();
         if (!_delayRepaint && sbounds != null && sbounds.intersects(_vbounds)) {
@@ -935,6 +1091,33 @@ public class MisoScenePanel extends VirtualMediaPanel
         blockFinished(block);
     }
 
+    /**
+     * Notes that the supplied block has been added to or removed from the scene, has been
+     * resolved, or has had its objects changed, such that it and its neighbors need to be relinked
+     * and have their objects reindexed when we next recompute our visible objects.
+     */
+    protected void blockChanged (SceneBlock block)
+    {
+        Rectangle bounds = block.getBounds();
+        // objects may cover tiles in neighboring blocks, so their paths may change as well
+        _pathFinder.invalidate(new Rectangle(
+            bounds.x - bounds.width, bounds.y - bounds.height, 3 * bounds.width,
+            3 * bounds.height));
+        _tsnapshot = null;
+        _lastTraversed = null;
+
+        int bx = MathUtil.floorDiv(bounds.x, _metrics.blockwid);
+        int by = MathUtil.floorDiv(bounds.y, _metrics.blockhei);
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                SceneBlock neigh = _blocks.get(compose(bx + dx, by + dy));
+                if (neigh != null) {
+                    _dirtyBlocks.add(neigh);
+                }
+            }
+        }
+    }
+
     /**
      * Called whenever a block is done resolving, whether it was successfully resolved or if it
      * was abandoned.
@@ -988,23 +1171,28 @@ public class MisoScenePanel extends VirtualMediaPanel
             _vbounds.width+2*_metrics.tilewid,
             _vbounds.height+2*_metrics.tilehei);
 
-        for (SceneBlock block : _blocks.values()) {
-            if (!block.isResolved()) {
+        // bring the blocks that have changed since we were last here up to date
+        for (SceneBlock block : _dirtyBlocks) {
+            Rectangle bounds = block.getBounds();
+            if (!block.isResolved() || getBlock(bounds.x, bounds.y) != block) {
                 continue;
             }
 
-            // links this block to its neighbors; computes coverage
-            block.update(_blocks);
-
-            // see which of this block's objects are visible
-            SceneObject[] objs = block.getObjects();
-            for (SceneObject obj : objs) {
-                if (obj.bounds != null &&
-                    vbounds.intersects(obj.bounds)) {
-                    _vizobjs.add(obj);
-                }
+            // links this block to its neighbors; computes coverage, which changes the
+            // traversability of the touched tiles
+            Rectangle touched = block.update(_blocks);
+            if (touched != null) {
+                _pathFinder.invalidate(touched);
+                _tsnapshot = null;
             }
+
+            // (re)index this block's objects
+            _objindex.setObjects(block, block.getObjects());
         }
+        _dirtyBlocks.clear();
+
+        // see which objects are visible
+        _objindex.getIntersecting(vbounds, _vizobjs);
 
         // recompute our object indicators
         computeIndicators();
@@ -1364,10 +1552,27 @@ public class MisoScenePanel extends VirtualMediaPanel
      */
     protected void paintTiles (Graphics2D gfx, Rectangle clip)
     {
-        // go through rendering our tiles
+        // the debug renderings annotate each tile, so they need the tiles painted one by one
+        if (!_cacheGround.getValue() || _traverseDebug.getValue() || _coordsDebug.getValue()) {
+            // go through rendering our tiles
+            _paintOp.setGraphics(gfx);
+            _applicator.applyToTiles(clip, _paintOp);
+            _paintOp.setGraphics(null);
+            return;
+        }
+
+        // resolved blocks paint their ground from a cached image
+        for (SceneBlock block : _blocks.values()) {
+            if (block.isResolved()) {
+                block.paintGround(gfx, clip);
+            }
+        }
+
+        // and we paint whatever tiles are left uncovered by those
         _paintOp.setGraphics(gfx);
-        _applicator.applyToTiles(clip, _paintOp);
+        _applicator.applyToTiles(clip, _unresolvedPaintOp);
         _paintOp.setGraphics(null);
+        _unresolvedPaintOp._block = null;
     }
 
     /**
@@ -1399,11 +1604,31 @@ public class MisoScenePanel extends VirtualMediaPanel
         return (block == null) ? null : block.getFringeTile(tx, ty);
     }
 
+    /**
+     * Creates the cache in which we keep the fringe tiles composed for our scene. By default we
+     * use the tile manager's shared cache, if it has one, or create our own.
+     */
+    protected FringeCache createFringeCache ()
+    {
+        FringeCache cache = _ctx.getTileManager().getFringeCache();
+        return (cache == null) ? new FringeCache() : cache;
+    }
+
     /** Computes the fringe tile for the specified coordinate. */
     protected BaseTile computeFringeTile (int tx, int ty)
     {
-        return _ctx.getTileManager().getAutoFringer().getFringeTile(_model, tx, ty, _fringes,
-            _masks);
+        return _ctx.getTileManager().getAutoFringer().getFringeTile(_model, tx, ty, _fringeCache);
+    }
+
+    /**
+     * Computes the fringe tiles for the specified region, placing them into <code>fringes</code>
+     * in row major order. Only the locations flagged in <code>wanted</code> are fringed.
+     */
+    protected void computeFringeTiles (Rectangle bounds, boolean[] wanted, BaseTile[] fringes)
+    {
+        _ctx.getTileManager().getAutoFringer().getFringeTiles(
+            _model, bounds.x, bounds.y, bounds.width, bounds.height, wanted, fringes,
+            _fringeCache);
     }
 
     /**
@@ -1415,6 +1640,22 @@ public class MisoScenePanel extends VirtualMediaPanel
         return true;
     }
 
+    /** Used by {@link MisoScenePanel#paintTiles} to paint the tiles of unresolved blocks. */
+    protected class UnresolvedPaintTileOp implements TileOp
+    {
+        public void apply (int tx, int ty, Rectangle tbounds) {
+            if (_block == null || !_block.getBounds().contains(tx, ty)) {
+                _block = getBlock(tx, ty);
+            }
+            if (_block == null || !_block.isResolved()) {
+                _paintOp.apply(tx, ty, tbounds);
+            }
+        }
+
+        /** The block last consulted, which saves us a lookup for most tiles. */
+        protected SceneBlock _block;
+    }
+
     /** Used by {@link MisoScenePanel#paintTiles}. */
     protected class PaintTileOp implements TileOp
     {
@@ -1550,20 +1791,28 @@ public class MisoScenePanel extends VirtualMediaPanel
     /** A list of the potentially visible objects in the scene. */
     protected List<SceneObject> _vizobjs = Lists.newArrayList();
 
-    /**
-     * Map of the masks used to calculate fringes in this scene.
-     */
-    protected Map<Long, BufferedImage> _masks = Maps.newHashMap();
+    /** A spatial index of the objects in our resolved blocks. */
+    protected SceneObjectIndex _objindex = new SceneObjectIndex();
 
-    /**
-     * Map of active fringe tiles. Scene blocks have hard references to fringe tiles in this map
-     * for the tiles they're using, so the blocks coming in and out of the influential bounds
-     * determines which tiles remain in the map. The map is from FringeTile to FringeTile so a
-     * fully created FringeTile can be extracted from the map using a tile that contains only
-     * what's needed for hashCode and equals: id and passability.
-     */
-    protected Map<FringeTile, WeakReference<FringeTile>> _fringes =
-        new WeakHashMap<FringeTile, WeakReference<FringeTile>>();
+    /** Blocks that need to be relinked and reindexed; see {@link #blockChanged}. */
+    protected Set<SceneBlock> _dirtyBlocks = Sets.newIdentityHashSet();
+
+    /** Computes paths that leave a sprite's starting block. */
+    protected HierarchicalPathFinder _pathFinder;
+
+    /** Computes batches of paths off of the AWT thread, created when first needed. */
+    protected ScenePathService _pathService;
+
+    /** The traversability of our resolved blocks, or null if it must be recaptured. */
+    protected TraversalSnapshot _tsnapshot;
+
+    /** The block last consulted by {@link #canTraverse}. */
+    protected SceneBlock _lastTraversed;
+
+    /** The fringe tiles and masks used to fringe this scene. Scene blocks have hard references to
+     * the fringe tiles they're using, so the blocks coming in and out of the influential bounds
+     * determine which tiles remain in the cache. */
+    protected FringeCache _fringeCache;
 
     /** The dirty sprites and objects that need to be re-painted. */
     protected DirtyItemList _dirtyItems = new DirtyItemList();
@@ -1574,6 +1823,9 @@ public class MisoScenePanel extends VirtualMediaPanel
     /** Used to paint tiles. */
     protected PaintTileOp _paintOp = new PaintTileOp();
 
+    /** Used to paint the tiles not covered by cached block images. */
+    protected UnresolvedPaintTileOp _unresolvedPaintOp = new UnresolvedPaintTileOp();
+
     /** Temporary point used for intermediate calculations. */
     protected Point _tcoords = new Point();
 
@@ -1609,6 +1861,9 @@ public class MisoScenePanel extends VirtualMediaPanel
     /** The scene block resolver for this scene panel's context. */
     protected SceneBlockResolver _resolver;
 
+    /** The center of the view when we last rethought, used to determine the scroll direction. */
+    protected Point _lastCenter = new Point();
+
     /** Scene block resolvers shared by all scene panels in a context. */
     protected static Map<MisoContext, SceneBlockResolver> _resolvers =
         new WeakHashMap<MisoContext, SceneBlockResolver>();
@@ -1645,6 +1900,32 @@ public class MisoScenePanel extends VirtualMediaPanel
             "Enables a view displaying the status of scene block resolution.",
             "narya.miso.iso_paths_debug_resolve", MisoPrefs.config, false);
 
+    /** A debug hook that toggles hierarchical path finding. */
+    protected static RuntimeAdjust.BooleanAdjust _hierarchicalPaths =
+        new RuntimeAdjust.BooleanAdjust(
+            "Toggles hierarchical path finding for paths that leave the starting block.",
+            "narya.miso.hierarchical_paths", MisoPrefs.config, true);
+
+    /** Toggles painting the base and fringe tiles of each block from a cached image, which
+     * trades an image per resolved block for far fewer draw calls. */
+    protected static RuntimeAdjust.BooleanAdjust _cacheGround =
+        new RuntimeAdjust.BooleanAdjust(
+            "Toggles painting scene block base and fringe tiles from cached block images.",
+            "narya.miso.cache_block_ground", MisoPrefs.config, false);
+
+    /** The number of threads on which scene blocks are resolved. */
+    protected static RuntimeAdjust.IntAdjust _resolverThreads =
+        new RuntimeAdjust.IntAdjust(
+            "Number of threads used to resolve scene blocks [requires restart].",
+            "narya.miso.resolver_threads", MisoPrefs.config, 2);
+
+    /** The fraction by which the resolution distance of blocks ahead of (or behind) the
+     * direction of scrolling is reduced (or increased). */
+    protected static final double SCROLL_BIAS = 0.5;
+
+    /** The minimum width and height of the clusters used in hierarchical path finding. */
+    protected static final int MIN_PATH_CLUSTER_SIZE = 16;
+
     /** The stroke used to draw dirty rectangles. */
     protected static final Stroke DIRTY_RECT_STROKE = new BasicStroke(2);
 
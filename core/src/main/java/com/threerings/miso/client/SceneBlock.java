@@ -25,11 +25,18 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Point;
 import java.awt.Polygon;
 import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
 
 import com.google.common.collect.Lists;
 
+import com.samskivert.util.ArrayIntSet;
 import com.samskivert.util.ArrayUtil;
 import com.samskivert.util.StringUtil;
 
@@ -77,6 +84,7 @@ public class SceneBlock
         _base = new BaseTile[width*height];
         _fringe = new BaseTile[width*height];
         _covered = new boolean[width*height];
+        _passable = new long[(width*height + 63) / 64];
 
         // compute our screen-coordinate footprint polygon
         _footprint = MisoUtil.getFootprintPolygon(_metrics, tx, ty, width, height);
@@ -116,6 +124,13 @@ public class SceneBlock
         Rectangle sbounds = new Rectangle(_footprint.getBounds());
         Rectangle obounds = null;
 
+        // look up our objects and get the tile manager started loading all of our tileset images
+        ObjectSet set = new ObjectSet();
+        _model.getObjects(_bounds, set);
+        if (_tileMgr.isPrefetching()) {
+            _tileMgr.prefetchTileSets(getTileSetIds(set));
+        }
+
         // resolve our base tiles
         long now = System.currentTimeMillis();
         int baseCount = 0, fringeCount = 0;
@@ -130,18 +145,19 @@ public class SceneBlock
                 // load up this base tile
                 updateBaseTile(fqTileId, x, y);
                 baseCount++;
+            }
+        }
 
-                // if there's no tile here, we don't need no fringe
-                int tidx = index(x, y);
-                if (_base[tidx] == null) {
-                    continue;
-                }
-
-                // compute the fringe for this tile
-                _fringe[tidx] = computeFringeTile(x, y);
+        // compute the fringes for the whole block at once, skipping locations for which there's
+        // no base tile (we don't need no fringe)
+        boolean[] based = new boolean[_base.length];
+        for (int tidx = 0; tidx < _base.length; tidx++) {
+            if (_base[tidx] != null) {
+                based[tidx] = true;
                 fringeCount++;
             }
         }
+        computeFringeTiles(based, _fringe);
 
         // DEBUG: check for long resolution times
         long stamp = System.currentTimeMillis();
@@ -154,8 +170,6 @@ public class SceneBlock
         }
 
         // resolve our objects
-        ObjectSet set = new ObjectSet();
-        _model.getObjects(_bounds, set);
         ArrayList<SceneObject> scobjs = Lists.newArrayList();
         now = System.currentTimeMillis();
         for (int ii = 0, ll = set.size(); ii < ll; ii++) {
@@ -201,6 +215,31 @@ public class SceneBlock
         return true;
     }
 
+    /**
+     * Returns the ids of all tilesets referenced by the base tiles in this block and by the
+     * supplied objects.
+     */
+    protected ArrayIntSet getTileSetIds (ObjectSet objects)
+    {
+        ArrayIntSet tsids = new ArrayIntSet();
+        for (int yy = 0; yy < _bounds.height; yy++) {
+            for (int xx = 0; xx < _bounds.width; xx++) {
+                int fqTileId = _model.getBaseTileId(_bounds.x + xx, _bounds.y + yy);
+                if (fqTileId > 0) {
+                    tsids.add(TileUtil.getTileSetId(fqTileId));
+                }
+            }
+        }
+        for (int ii = 0, ll = objects.size(); ii < ll; ii++) {
+            tsids.add(TileUtil.getTileSetId(objects.get(ii).tileId));
+        }
+        int bsetid = _model.getDefaultBaseTileSet();
+        if (bsetid > 0) {
+            tsids.add(bsetid);
+        }
+        return tsids;
+    }
+
     protected SceneObject makeSceneObject (ObjectInfo info)
     {
         return new SceneObject(_metrics, _tileMgr,
@@ -213,12 +252,34 @@ public class SceneBlock
         return _panel == null ? null : _panel.computeFringeTile(tx, ty);
     }
 
+    /**
+     * Computes the fringe tiles for the locations in this block flagged in <code>wanted</code>,
+     * placing them into <code>fringes</code> in row major order.
+     */
+    protected void computeFringeTiles (boolean[] wanted, BaseTile[] fringes)
+    {
+        if (_panel != null) {
+            _panel.computeFringeTiles(_bounds, wanted, fringes);
+        }
+    }
+
     /**
      * This is called by the {@link SceneBlockResolver} on the AWT thread when our resolution has
      * completed. We inform our containing panel.
      */
     protected void wasResolved ()
     {
+        // now that we have all of our tiles, note which of them are traversable; this is done
+        // here rather than on the resolver thread because our neighbors update our coverage (and
+        // with it our traversability) on the AWT thread
+        if (!_wasAbandoned && isResolved()) {
+            for (int yy = 0; yy < _bounds.height; yy++) {
+                for (int xx = 0; xx < _bounds.width; xx++) {
+                    updatePassable(_bounds.x + xx, _bounds.y + yy);
+                }
+            }
+        }
+
         if (_panel != null) {
             if (_wasAbandoned) {
                 _panel.blockAbandoned(this);
@@ -228,6 +289,16 @@ public class SceneBlock
         }
     }
 
+    /**
+     * This is called by the {@link SceneBlockResolver} on the AWT thread when our resolution was
+     * cancelled before it started. We are treated as having been abandoned.
+     */
+    protected void wasCancelled ()
+    {
+        _wasAbandoned = true;
+        wasResolved();
+    }
+
     /**
      * Returns true if this block has been resolved, false if not.
      */
@@ -312,6 +383,7 @@ public class SceneBlock
     {
         String errmsg = null;
         int tidx = index(tx, ty);
+        _ground = null;
 
         // this is a bit magical: we pass the fully qualified tile id to
         // the tile manager which loads up from the configured tileset
@@ -337,6 +409,12 @@ public class SceneBlock
             log.warning(errmsg + " [fqtid=" + fqTileId +
                         ", x=" + tx + ", y=" + ty + "].");
         }
+
+        // changes made while we're resolving are no news to anyone
+        if (_panel != null && isResolved()) {
+            updatePassable(tx, ty);
+            _panel.blockTilesChanged(this);
+        }
     }
 
     /**
@@ -346,9 +424,71 @@ public class SceneBlock
     public void updateFringe (int tx, int ty)
     {
         int tidx = index(tx, ty);
+        _ground = null;
         if (_base[tidx] != null) {
             _fringe[tidx] = computeFringeTile(tx, ty);
         }
+        if (_panel != null && isResolved()) {
+            updatePassable(tx, ty);
+            _panel.blockTilesChanged(this);
+        }
+    }
+
+    /**
+     * Paints the portion of our base and fringe tiles that falls within the supplied clipping
+     * rectangle. The tiles are rendered into an image the first time they are painted and that
+     * image is drawn thereafter, until {@link #updateBaseTile} or {@link #updateFringe} changes
+     * them. This should only be called on a resolved block.
+     */
+    public void paintGround (Graphics2D gfx, Rectangle clip)
+    {
+        Rectangle gbounds = _footprint.getBounds();
+        int x1 = Math.max(clip.x, gbounds.x), y1 = Math.max(clip.y, gbounds.y);
+        int x2 = Math.min(clip.x + clip.width, gbounds.x + gbounds.width);
+        int y2 = Math.min(clip.y + clip.height, gbounds.y + gbounds.height);
+        if (x1 >= x2 || y1 >= y2) {
+            return;
+        }
+
+        if (_ground == null) {
+            _ground = renderGround(gfx.getDeviceConfiguration(), gbounds);
+        }
+        gfx.drawImage(_ground, x1, y1, x2, y2, x1 - gbounds.x, y1 - gbounds.y,
+                      x2 - gbounds.x, y2 - gbounds.y, null);
+    }
+
+    /**
+     * Renders our base and fringe tiles into an image covering the supplied screen bounds.
+     */
+    protected BufferedImage renderGround (GraphicsConfiguration gc, Rectangle gbounds)
+    {
+        BufferedImage image = gc.createCompatibleImage(
+            gbounds.width, gbounds.height, Transparency.TRANSLUCENT);
+        Graphics2D gfx = image.createGraphics();
+        try {
+            gfx.translate(-gbounds.x, -gbounds.y);
+            Point spos = new Point();
+            for (int yy = 0; yy < _bounds.height; yy++) {
+                for (int xx = 0; xx < _bounds.width; xx++) {
+                    int tx = _bounds.x + xx, ty = _bounds.y + yy;
+                    MisoUtil.tileToScreen(_metrics, tx, ty, spos);
+                    Tile tile = getBaseTile(tx, ty);
+                    if (tile != null) {
+                        tile.paint(gfx, spos.x, spos.y);
+                    } else {
+                        // draw black where there are no tiles
+                        gfx.setColor(Color.black);
+                        gfx.fill(MisoUtil.getTilePolygon(_metrics, tx, ty));
+                    }
+                    if ((tile = getFringeTile(tx, ty)) != null) {
+                        tile.paint(gfx, spos.x, spos.y);
+                    }
+                }
+            }
+        } finally {
+            gfx.dispose();
+        }
+        return image;
     }
 
     /**
@@ -374,6 +514,9 @@ public class SceneBlock
         // clear out our neighbors array so that the subsequent update
         // causes us to recompute our coverage
         Arrays.fill(_neighbors, null);
+        if (_panel != null) {
+            _panel.blockChanged(this);
+        }
         return true;
     }
 
@@ -396,11 +539,16 @@ public class SceneBlock
         if (oidx == -1) {
             return false;
         }
+        // the tiles this object covered will be uncovered on our next update
+        _removed = ArrayUtil.append(_removed, _objects[oidx]);
         _objects = ArrayUtil.splice(_objects, oidx, 1);
 
         // clear out our neighbors array so that the subsequent update
         // causes us to recompute our coverage
         Arrays.fill(_neighbors, null);
+        if (_panel != null) {
+            _panel.blockChanged(this);
+        }
         return true;
     }
 
@@ -410,19 +558,25 @@ public class SceneBlock
      */
     public boolean canTraverse (Object traverser, int tx, int ty)
     {
-        if (_covered[index(tx, ty)]) {
-            return false;
-        }
+        int tidx = index(tx, ty);
+        return (_passable[tidx >> 6] & (1L << tidx)) != 0;
+    }
 
-        // null base or impassable base kills traversal
-        BaseTile base = getBaseTile(tx, ty);
-        if ((base == null) || !base.isPassable()) {
-            return false;
+    /**
+     * Recomputes the traversability of the specified tile: it must have a passable base tile,
+     * must not have an impassable fringe (fringe only kills traversal if it is present) and must
+     * not be covered by an object.
+     */
+    protected void updatePassable (int tx, int ty)
+    {
+        int tidx = index(tx, ty);
+        BaseTile base = getBaseTile(tx, ty), fringe = _fringe[tidx];
+        if (!_covered[tidx] && base != null && base.isPassable() &&
+            (fringe == null || fringe.isPassable())) {
+            _passable[tidx >> 6] |= (1L << tidx);
+        } else {
+            _passable[tidx >> 6] &= ~(1L << tidx);
         }
-
-        // fringe can only kill traversal if it is present
-        BaseTile fringe = getFringeTile(tx, ty);
-        return (fringe == null) || fringe.isPassable();
     }
 
     /**
@@ -509,10 +663,38 @@ public class SceneBlock
     /**
      * Links this block to its neighbors; informs neighboring blocks of
      * object coverage.
+     *
+     * @return the region of tiles (in this and neighboring blocks) whose coverage may have
+     * changed, or null if no coverage was changed.
      */
-    protected void update (Map<Integer, SceneBlock> blocks)
+    protected Rectangle update (Map<Integer, SceneBlock> blocks)
     {
         boolean recover = false;
+        _touched = null;
+
+        // uncover the tiles covered by our deleted objects, then restore the coverage of the
+        // other objects that cover any of the same tiles; objects extend up and to the left of
+        // their origin, and may be large enough to reach beyond our neighbors, so those may be
+        // in any block that isn't above or to the left of the uncovered tiles
+        if (_removed.length > 0) {
+            for (SceneObject scobj : _removed) {
+                setCovered(blocks, scobj, false);
+            }
+            _removed = new SceneObject[0];
+            Rectangle uncovered = new Rectangle(_touched);
+            for (SceneBlock block : blocks.values()) {
+                Rectangle bbounds = block._bounds;
+                if (!block.isResolved() || bbounds.x + bbounds.width <= uncovered.x ||
+                    bbounds.y + bbounds.height <= uncovered.y) {
+                    continue;
+                }
+                for (SceneObject scobj : block._objects) {
+                    if (scobj.objectFootprintOverlaps(uncovered)) {
+                        setCovered(blocks, scobj, true);
+                    }
+                }
+            }
+        }
 
         // link up to our neighbors
         for (int ii = 0; ii < DX.length; ii++) {
@@ -533,6 +715,10 @@ public class SceneBlock
                 setCovered(blocks, _object);
             }
         }
+
+        Rectangle touched = _touched;
+        _touched = null;
+        return touched;
     }
 
     /** Computes the key of our neighbor. */
@@ -555,15 +741,31 @@ public class SceneBlock
      * Sets the footprint of this object tile
      */
     protected void setCovered (Map<Integer, SceneBlock> blocks, SceneObject scobj)
+    {
+        setCovered(blocks, scobj, true);
+    }
+
+    /**
+     * Marks the tiles in the footprint of the supplied object as covered or uncovered.
+     */
+    protected void setCovered (Map<Integer, SceneBlock> blocks, SceneObject scobj,
+                               boolean covered)
     {
         int endx = scobj.info.x - scobj.tile.getBaseWidth() + 1;
         int endy = scobj.info.y - scobj.tile.getBaseHeight() + 1;
+        Rectangle footprint = new Rectangle(
+            endx, endy, scobj.info.x - endx + 1, scobj.info.y - endy + 1);
+        if (_touched == null) {
+            _touched = footprint;
+        } else {
+            _touched.add(footprint);
+        }
 
         for (int xx = scobj.info.x; xx >= endx; xx--) {
             for (int yy = scobj.info.y; yy >= endy; yy--) {
                 SceneBlock block = blocks.get(blockKey(xx, yy));
                 if (block != null) {
-                    block.setCovered(xx, yy);
+                    block.setCovered(xx, yy, covered);
                 }
             }
         }
@@ -576,9 +778,25 @@ public class SceneBlock
      */
     protected void setCovered (int tx, int ty)
     {
-        _covered[index(tx, ty)] = true;
+        setCovered(tx, ty, true);
+    }
+
+    /**
+     * Indicates whether this tile is covered by an object footprint.
+     */
+    protected void setCovered (int tx, int ty, boolean covered)
+    {
+        _covered[index(tx, ty)] = covered;
+        // our traversability is computed when we're resolved; until then our resolver may be
+        // writing to the tiles from which it is computed
+        if (isResolved()) {
+            updatePassable(tx, ty);
+        }
     }
 
+    /** The tiles whose coverage has been changed during an {@link #update}. */
+    protected Rectangle _touched;
+
     /** The panel for which we contain a block or null if we aren't backed by a panel. */
     protected MisoScenePanel _panel;
 
@@ -609,12 +827,21 @@ public class SceneBlock
     /** Our fringe tiles. */
     protected BaseTile[] _fringe;
 
+    /** Our base and fringe tiles rendered by {@link #paintGround}, or null. */
+    protected BufferedImage _ground;
+
     /** Indicates whether our tiles are covered by an object. */
     protected boolean[] _covered;
 
+    /** The traversability of our tiles, one bit per tile in row major order. */
+    protected long[] _passable;
+
     /** Info on our objects. */
     protected SceneObject[] _objects;
 
+    /** Objects deleted since our last update, whose coverage is yet to be removed. */
+    protected SceneObject[] _removed = new SceneObject[0];
+
     /** Our neighbors in the eight cardinal directions. */
     protected SceneBlock[] _neighbors = new SceneBlock[DX.length];
 
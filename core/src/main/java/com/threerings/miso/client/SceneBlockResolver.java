@@ -19,22 +19,46 @@
 
 package com.threerings.miso.client;
 
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
 import java.awt.EventQueue;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
 import com.samskivert.util.Histogram;
 import com.samskivert.util.LoopingThread;
-import com.samskivert.util.Queue;
 
 import static com.threerings.miso.Log.log;
 
 /**
- * A separate thread for resolving miso scene blocks.
+ * Resolves miso scene blocks on a pool of separate threads. This thread is the first of the
+ * resolution threads and starts the others when it is started.
+ *
+ * <p> Blocks are resolved in order of priority (lower values first), which the scene panel
+ * computes from their distance to the current view and the direction in which the view is
+ * scrolling, and updates as the view moves. Blocks that are no longer needed may be cancelled
+ * before they are resolved.
  */
 public class SceneBlockResolver extends LoopingThread
 {
+    /** The priority given to blocks queued via {@link #resolveBlock(SceneBlock,boolean)}. */
+    public static final int HIGH_PRIORITY = Integer.MIN_VALUE, LOW_PRIORITY = Integer.MAX_VALUE;
+
     public SceneBlockResolver ()
+    {
+        this(1);
+    }
+
+    /**
+     * Creates a resolver that will resolve blocks on the specified number of threads.
+     */
+    public SceneBlockResolver (int threads)
     {
         super("SceneBlockResolver");
+        _threads = Math.max(threads, 1);
     }
 
     /**
@@ -42,30 +66,97 @@ public class SceneBlockResolver extends LoopingThread
      */
     public void resolveBlock (SceneBlock block, boolean hipri)
     {
-        log.debug("Queueing block for resolution", "block", block, "hipri", hipri);
-        if (hipri) {
-            _queue.prepend(block);
-        } else {
-            _queue.append(block);
+        resolveBlock(block, hipri ? HIGH_PRIORITY : LOW_PRIORITY);
+    }
+
+    /**
+     * Queues up a scene block for resolution with the specified priority. Blocks with lower
+     * priority values are resolved first, and blocks with equal priority in the order they were
+     * queued.
+     */
+    public void resolveBlock (SceneBlock block, int priority)
+    {
+        log.debug("Queueing block for resolution", "block", block, "priority", priority);
+        synchronized (_queue) {
+            if (_pending.containsKey(block)) {
+                reprioritize(block, priority);
+                return;
+            }
+            PendingBlock pblock = new PendingBlock(block, priority, _sequence++);
+            _pending.put(block, pblock);
+            _queue.add(pblock);
+            _queue.notify();
+        }
+    }
+
+    /**
+     * Changes the priority of a block that is awaiting resolution.
+     *
+     * @return true if the block was awaiting resolution, false if it has already been (or is
+     * being) resolved or was never queued.
+     */
+    public boolean reprioritize (SceneBlock block, int priority)
+    {
+        synchronized (_queue) {
+            PendingBlock pblock = _pending.get(block);
+            if (pblock == null) {
+                return false;
+            }
+            if (pblock.priority != priority) {
+                _queue.remove(pblock);
+                pblock.priority = priority;
+                _queue.add(pblock);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Removes a block that is awaiting resolution from the queue. The block will not be resolved,
+     * but will be reported as abandoned to its panel on the AWT thread, as if it had been
+     * abandoned during resolution.
+     *
+     * @return true if the block was cancelled, false if it has already been (or is being)
+     * resolved or was never queued.
+     */
+    public boolean cancelBlock (final SceneBlock block)
+    {
+        synchronized (_queue) {
+            PendingBlock pblock = _pending.remove(block);
+            if (pblock == null) {
+                return false;
+            }
+            _queue.remove(pblock);
         }
+        log.debug("Cancelled block resolution", "block", block);
+        EventQueue.invokeLater(new Runnable() {
+            public void run () {
+                block.wasCancelled();
+            }
+        });
+        return true;
     }
 
     /**
-     * Temporarily suspends the scene block resolution thread.
+     * Temporarily suspends the scene block resolution threads.
      */
-    public synchronized void suspendResolution ()
+    public void suspendResolution ()
     {
-        _resolving = false;
+        synchronized (_queue) {
+            _resolving = false;
+        }
     }
 
     /**
-     * Restores the operation of the scene block resolution thread after a
+     * Restores the operation of the scene block resolution threads after a
      * previous call to {@link #suspendResolution}.
      */
-    public synchronized void restoreResolution ()
+    public void restoreResolution ()
     {
-        _resolving = true;
-        notify();
+        synchronized (_queue) {
+            _resolving = true;
+            _queue.notifyAll();
+        }
     }
 
     /**
@@ -73,24 +164,79 @@ public class SceneBlockResolver extends LoopingThread
      */
     public int queueSize ()
     {
-        return _queue.size();
+        synchronized (_queue) {
+            return _queue.size();
+        }
+    }
+
+    @Override
+    public void shutdown ()
+    {
+        super.shutdown();
+        for (Worker worker : _workers) {
+            worker.shutdown();
+        }
+    }
+
+    @Override
+    protected void willStart ()
+    {
+        // start up our fellow resolution threads
+        for (int ii = 1; ii < _threads; ii++) {
+            Worker worker = new Worker(getName() + "-" + ii);
+            worker.setDaemon(isDaemon());
+            worker.setPriority(getPriority());
+            _workers.add(worker);
+            worker.start();
+        }
+    }
+
+    @Override
+    protected void kick ()
+    {
+        synchronized (_queue) {
+            _queue.notifyAll();
+        }
     }
 
     @Override
     public void iterate ()
     {
-        final SceneBlock block = _queue.get();
+        SceneBlock block = nextBlock(this);
+        if (block != null) {
+            resolve(block);
+        }
+    }
 
-        while (!_resolving) {
-            synchronized (this) {
+    /**
+     * Waits until a block is available and resolution is not suspended and returns the block
+     * with the highest priority, or null if the supplied thread was shut down while waiting.
+     */
+    protected SceneBlock nextBlock (LoopingThread thread)
+    {
+        synchronized (_queue) {
+            while (_queue.isEmpty() || !_resolving) {
+                if (!thread.isRunning()) {
+                    return null;
+                }
                 try {
-                    wait();
+                    _queue.wait();
                 } catch (InterruptedException ie) {
                     log.info("Resolver interrupted.");
                 }
             }
+            PendingBlock pblock = _queue.poll();
+            _pending.remove(pblock.block);
+            return pblock.block;
         }
+    }
 
+    /**
+     * Resolves the supplied block and queues up the completion of its resolution on the AWT
+     * thread.
+     */
+    protected void resolve (final SceneBlock block)
+    {
         try {
             long start = System.currentTimeMillis();
             log.debug("Resolving block " + block + ".");
@@ -98,7 +244,9 @@ public class SceneBlockResolver extends LoopingThread
                 log.debug("Resolved block " + block + ".");
             }
             long elapsed = System.currentTimeMillis() - start;
-            _histo.addValue((int)elapsed);
+            synchronized (_histo) {
+                _histo.addValue((int)elapsed);
+            }
 
             // warn if a block takes a long time to resolve
             if (elapsed > LONG_RESOLVE_TIME) {
@@ -107,15 +255,10 @@ public class SceneBlockResolver extends LoopingThread
             }
 
             // queue it up on the AWT thread to complete its resolution
-//             final boolean report = (_queue.size() == 0);
             EventQueue.invokeLater(new Runnable() {
                 public void run () {
                     // let the block's panel know that it is resolved
                     block.wasResolved();
-                    // report statistics
-//                    if (report) {
-//                        log.info("Resolution histogram " + _histo.summarize() + ".");
-//                    }
                 }
             });
 
@@ -124,8 +267,63 @@ public class SceneBlockResolver extends LoopingThread
         }
     }
 
-    /** The invoker's queue of units to be executed. */
-    protected Queue<SceneBlock> _queue = new Queue<SceneBlock>();
+    /** A block awaiting resolution. */
+    protected static class PendingBlock
+        implements Comparable<PendingBlock>
+    {
+        public SceneBlock block;
+        public int priority;
+        public long sequence;
+
+        public PendingBlock (SceneBlock block, int priority, long sequence) {
+            this.block = block;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        // from interface Comparable
+        public int compareTo (PendingBlock other) {
+            int cmp = Integer.compare(priority, other.priority);
+            return (cmp != 0) ? cmp : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /** An additional resolution thread. */
+    protected class Worker extends LoopingThread
+    {
+        public Worker (String name) {
+            super(name);
+        }
+
+        @Override
+        protected void kick () {
+            SceneBlockResolver.this.kick();
+        }
+
+        @Override
+        protected void iterate () {
+            SceneBlock block = nextBlock(this);
+            if (block != null) {
+                resolve(block);
+            }
+        }
+    }
+
+    /** The number of threads on which we resolve blocks. */
+    protected int _threads;
+
+    /** Our additional resolution threads. */
+    protected List<Worker> _workers = Lists.newArrayList();
+
+    /** The blocks awaiting resolution, highest priority first. All of our queue state is
+     * protected by synchronizing on this queue. */
+    protected PriorityQueue<PendingBlock> _queue = new PriorityQueue<PendingBlock>();
+
+    /** The queue entries of the blocks awaiting resolution. */
+    protected Map<SceneBlock, PendingBlock> _pending = Maps.newIdentityHashMap();
+
+    /** Used to resolve equal priority blocks in the order in which they were queued. */
+    protected long _sequence;
 
     /** Indicates whether or not we are resolving or suspended. */
     protected boolean _resolving = true;
@@ -243,7 +243,8 @@ public class SceneObject
 
     /**
      * Updates this object's origin tile coordinate. Its bounds and other
-     * cached screen coordinate information are updated.
+     * cached screen coordinate information are updated. If this object is displayed in a panel,
+     * {@link MisoScenePanel#objectBoundsChanged} must be called afterwards.
      */
     public void relocateObject (MisoSceneMetrics metrics, int tx, int ty)
     {
@@ -264,6 +265,8 @@ public class SceneObject
     {
         refreshObjectTile(panel.getSceneMetrics(), panel.getTileManager(),
             panel.getColorizer(info));
+        // our bounds may have changed with our tile, so we need to be reindexed
+        panel.objectBoundsChanged(this);
     }
 
     /**
@@ -271,6 +274,9 @@ public class SceneObject
      * by a scene object to change in its lifetime, only attributes of that object like its
      * colorizations. So don't do anything crazy like change our {@link ObjectInfo}'s
      * <code>tileId</code> and call this method or things might break.
+     *
+     * <p> If this object is displayed in a panel, {@link MisoScenePanel#objectBoundsChanged}
+     * must be called afterwards, or use {@link #refreshObjectTile(MisoScenePanel)}.
      */
     public void refreshObjectTile (MisoSceneMetrics metrics, TileManager mgr, Colorizer colorizer)
     {
@@ -0,0 +1,242 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import java.awt.Rectangle;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.HashIntMap;
+
+import com.threerings.media.util.MathUtil;
+
+/**
+ * A spatial index of the objects in the resolved blocks of a scene, which allows the objects
+ * intersecting a region of the screen to be found in time proportional to the size of that
+ * region rather than the number of resolved blocks. Objects are indexed by their screen bounds in
+ * a uniform grid, and are added and removed a block at a time as blocks are resolved and
+ * flushed.
+ */
+public class SceneObjectIndex
+{
+    /**
+     * Creates an index with the default cell size.
+     */
+    public SceneObjectIndex ()
+    {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * Creates an index whose grid cells are the specified number of pixels on a side.
+     */
+    public SceneObjectIndex (int cellSize)
+    {
+        _cellSize = cellSize;
+    }
+
+    /**
+     * Indexes the supplied objects as those of the specified block, replacing any objects
+     * previously indexed for the block.
+     */
+    public void setObjects (SceneBlock block, SceneObject[] objects)
+    {
+        SceneObject[] oobjects = _blocks.get(block);
+        if (oobjects == objects) {
+            return;
+        }
+        if (oobjects != null) {
+            removeAll(oobjects);
+        }
+        _blocks.put(block, objects);
+        for (SceneObject scobj : objects) {
+            if (scobj.bounds != null) {
+                add(scobj);
+            }
+        }
+    }
+
+    /**
+     * Moves the supplied object, which must already be indexed, to the cells its current bounds
+     * overlap. This must be called when the bounds of an indexed object change.
+     */
+    public void reindex (SceneObject scobj)
+    {
+        if (_ranges.containsKey(scobj)) {
+            removeAll(new SceneObject[] { scobj });
+            if (scobj.bounds != null) {
+                add(scobj);
+            }
+        }
+    }
+
+    /**
+     * Removes all objects indexed for the specified block.
+     */
+    public void removeObjects (SceneBlock block)
+    {
+        SceneObject[] objects = _blocks.remove(block);
+        if (objects != null) {
+            removeAll(objects);
+        }
+    }
+
+    /**
+     * Returns true if objects are indexed for the specified block.
+     */
+    public boolean containsBlock (SceneBlock block)
+    {
+        return _blocks.containsKey(block);
+    }
+
+    /**
+     * Removes everything from the index.
+     */
+    public void clear ()
+    {
+        _blocks.clear();
+        _cells.clear();
+        _ranges.clear();
+    }
+
+    /**
+     * Returns the number of objects in the index.
+     */
+    public int size ()
+    {
+        return _ranges.size();
+    }
+
+    /**
+     * Adds to the supplied list every indexed object whose bounds intersect the supplied bounds.
+     * Each object is added once.
+     */
+    public void getIntersecting (Rectangle bounds, List<SceneObject> into)
+    {
+        if (bounds.isEmpty()) {
+            return;
+        }
+        int cx1 = toCell(bounds.x), cy1 = toCell(bounds.y);
+        int cx2 = toCell(bounds.x + bounds.width - 1), cy2 = toCell(bounds.y + bounds.height - 1);
+        for (int cy = cy1; cy <= cy2; cy++) {
+            for (int cx = cx1; cx <= cx2; cx++) {
+                ArrayList<SceneObject> cell = _cells.get(MisoScenePanel.compose(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (int ii = 0, nn = cell.size(); ii < nn; ii++) {
+                    SceneObject scobj = cell.get(ii);
+                    Rectangle obounds = scobj.bounds;
+                    if (!obounds.intersects(bounds)) {
+                        continue;
+                    }
+                    // an object spanning several cells is reported only by the cell containing
+                    // the upper left of its intersection with the query bounds
+                    if (toCell(Math.max(obounds.x, bounds.x)) == cx &&
+                        toCell(Math.max(obounds.y, bounds.y)) == cy) {
+                        into.add(scobj);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the supplied object to every cell its bounds overlap.
+     */
+    protected void add (SceneObject scobj)
+    {
+        Rectangle obounds = scobj.bounds;
+        Rectangle range = new Rectangle(toCell(obounds.x), toCell(obounds.y), 0, 0);
+        range.add(toCell(obounds.x + Math.max(obounds.width, 1) - 1),
+                  toCell(obounds.y + Math.max(obounds.height, 1) - 1));
+        _ranges.put(scobj, range);
+        for (int cy = range.y; cy <= range.y + range.height; cy++) {
+            for (int cx = range.x; cx <= range.x + range.width; cx++) {
+                int key = MisoScenePanel.compose(cx, cy);
+                ArrayList<SceneObject> cell = _cells.get(key);
+                if (cell == null) {
+                    _cells.put(key, cell = Lists.newArrayListWithCapacity(4));
+                }
+                cell.add(scobj);
+            }
+        }
+    }
+
+    /**
+     * Removes the supplied objects from the cells to which they were added (which may differ
+     * from those they now overlap, if their bounds have since changed).
+     */
+    protected void removeAll (SceneObject[] objects)
+    {
+        for (SceneObject scobj : objects) {
+            Rectangle range = _ranges.remove(scobj);
+            if (range == null) {
+                continue;
+            }
+            for (int cy = range.y; cy <= range.y + range.height; cy++) {
+                for (int cx = range.x; cx <= range.x + range.width; cx++) {
+                    int key = MisoScenePanel.compose(cx, cy);
+                    ArrayList<SceneObject> cell = _cells.get(key);
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (int ii = cell.size() - 1; ii >= 0; ii--) {
+                        if (cell.get(ii) == scobj) {
+                            cell.remove(ii);
+                            break;
+                        }
+                    }
+                    if (cell.isEmpty()) {
+                        _cells.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cell coordinate of the supplied screen coordinate.
+     */
+    protected final int toCell (int coord)
+    {
+        return MathUtil.floorDiv(coord, _cellSize);
+    }
+
+    /** The size of our cells in pixels. */
+    protected int _cellSize;
+
+    /** The objects we have indexed for each block. */
+    protected Map<SceneBlock, SceneObject[]> _blocks = Maps.newIdentityHashMap();
+
+    /** The cell ranges to which each of our objects was added. */
+    protected Map<SceneObject, Rectangle> _ranges = Maps.newIdentityHashMap();
+
+    /** The objects overlapping each of our cells, keyed by composed cell coordinates. */
+    protected HashIntMap<ArrayList<SceneObject>> _cells = new HashIntMap<ArrayList<SceneObject>>();
+
+    /** The default size of our cells in pixels. */
+    protected static final int DEFAULT_CELL_SIZE = 256;
+}
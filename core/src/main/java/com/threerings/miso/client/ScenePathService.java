@@ -0,0 +1,234 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.client;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.awt.EventQueue;
+import java.awt.Point;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.threerings.media.sprite.Sprite;
+import com.threerings.media.util.AStarPathUtil;
+import com.threerings.media.util.FlowField;
+
+import com.threerings.miso.util.MisoSceneMetrics;
+import com.threerings.miso.util.MisoUtil;
+
+import static com.threerings.miso.Log.log;
+
+/**
+ * Computes paths for many sprites at once, off of the AWT thread. A batch of requests is searched
+ * in parallel on worker threads against a {@link TraversalSnapshot} of the scene, and the
+ * resulting {@link TilePath}s are delivered back on the AWT thread. Requests that share a goal
+ * share the work as well: a single {@link FlowField} is computed from the goal and each of those
+ * requests simply follows it.
+ */
+public class ScenePathService
+{
+    /** A request for a path from one tile to another. */
+    public static class Request
+    {
+        /** The sprite that will follow the path. */
+        public final Sprite sprite;
+
+        /** The tile coordinates of the start and goal of the path. */
+        public final int startX, startY, goalX, goalY;
+
+        /** The computed path, which is null if no path could be found. Filled in before the
+         * request is delivered to its observer. */
+        public TilePath path;
+
+        public Request (Sprite sprite, int startX, int startY, int goalX, int goalY)
+        {
+            this.sprite = sprite;
+            this.startX = startX;
+            this.startY = startY;
+            this.goalX = goalX;
+            this.goalY = goalY;
+        }
+
+        /** The tiles of the path, computed by a worker. */
+        protected List<Point> _points;
+    }
+
+    /** Informed when a batch of paths has been computed. */
+    public static interface Observer
+    {
+        /**
+         * Called on the AWT thread with the requests of a batch once all of them have been
+         * processed.
+         */
+        public void pathsComputed (List<Request> requests);
+    }
+
+    /**
+     * Creates a path service that searches on a shared pool of daemon threads.
+     */
+    public ScenePathService (MisoSceneMetrics metrics)
+    {
+        this(metrics, getDefaultExecutor());
+    }
+
+    /**
+     * Creates a path service that searches using the supplied executor.
+     */
+    public ScenePathService (MisoSceneMetrics metrics, Executor executor)
+    {
+        _metrics = metrics;
+        _executor = executor;
+    }
+
+    /**
+     * Computes paths for the supplied requests through the supplied snapshot, informing the
+     * observer on the AWT thread once all of them are done. This must be called on the AWT thread
+     * and the requests must not be modified until they are delivered.
+     *
+     * @param longest the longest allowable path in tile traversals.
+     */
+    public void computePaths (final TraversalSnapshot snapshot, final List<Request> requests,
+                              final int longest, final Observer obs)
+    {
+        // group the requests by their goals
+        Map<Point, List<Request>> byGoal = Maps.newLinkedHashMap();
+        for (Request req : requests) {
+            Point goal = new Point(req.goalX, req.goalY);
+            List<Request> group = byGoal.get(goal);
+            if (group == null) {
+                byGoal.put(goal, group = Lists.newArrayList());
+            }
+            group.add(req);
+        }
+
+        // create a task for each shared goal and for each request with a goal of its own
+        List<Runnable> tasks = Lists.newArrayList();
+        for (final List<Request> group : byGoal.values()) {
+            if (group.size() >= FLOW_FIELD_REQUESTS) {
+                tasks.add(new Runnable() {
+                    public void run () {
+                        Request req = group.get(0);
+                        FlowField field = new FlowField(
+                            snapshot, null, snapshot.getBounds(), req.goalX, req.goalY,
+                            longest * AStarPathUtil.ADJACENT_COST);
+                        for (Request greq : group) {
+                            greq._points = field.getPath(greq.startX, greq.startY);
+                        }
+                    }
+                });
+            } else {
+                for (final Request req : group) {
+                    tasks.add(new Runnable() {
+                        public void run () {
+                            req._points = AStarPathUtil.getPath(
+                                snapshot, req.sprite, longest, req.startX, req.startY,
+                                req.goalX, req.goalY, false);
+                        }
+                    });
+                }
+            }
+        }
+
+        final Runnable deliver = new Runnable() {
+            public void run () {
+                deliverPaths(requests, obs);
+            }
+        };
+        if (tasks.isEmpty()) {
+            EventQueue.invokeLater(deliver);
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(tasks.size());
+        for (final Runnable task : tasks) {
+            _executor.execute(new Runnable() {
+                public void run () {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        log.warning("Failed to compute paths", t);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            EventQueue.invokeLater(deliver);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Converts the computed tiles of the supplied requests into paths and passes them to their
+     * observer. Called on the AWT thread, where it's safe to look at our sprites.
+     */
+    protected void deliverPaths (List<Request> requests, Observer obs)
+    {
+        Point dest = new Point();
+        for (Request req : requests) {
+            if (req._points != null) {
+                // send the sprite to the center of its goal tile
+                MisoUtil.tileToScreen(_metrics, req.goalX, req.goalY, dest);
+                req.path = new TilePath(_metrics, req.sprite, req._points,
+                                        dest.x + _metrics.tilehwid, dest.y + _metrics.tilehhei);
+                req._points = null;
+            }
+        }
+        obs.pathsComputed(requests);
+    }
+
+    /**
+     * Returns the shared pool of daemon threads on which paths are computed by default.
+     */
+    protected static synchronized Executor getDefaultExecutor ()
+    {
+        if (_defaultExecutor == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            _defaultExecutor = new ThreadPoolExecutor(
+                threads, threads, WORKER_KEEPALIVE, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("Scene path finder %d").
+                    setDaemon(true).build());
+            _defaultExecutor.allowCoreThreadTimeOut(true);
+        }
+        return _defaultExecutor;
+    }
+
+    /** The metrics of the scene whose paths we compute. */
+    protected MisoSceneMetrics _metrics;
+
+    /** The executor on which we search. */
+    protected Executor _executor;
+
+    /** The pool shared by services that were not given an executor. */
+    protected static ThreadPoolExecutor _defaultExecutor;
+
+    /** The number of requests with the same goal that warrant computing a flow field. */
+    protected static final int FLOW_FIELD_REQUESTS = 3;
+
+    /** The time for which idle workers are kept around. */
+    protected static final long WORKER_KEEPALIVE = 30 * 1000L;
+}
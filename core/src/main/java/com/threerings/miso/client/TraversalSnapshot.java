@@ -0,0 +1,76 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.client;
+
+import java.awt.Rectangle;
+
+import com.threerings.media.util.AStarPathUtil;
+
+/**
+ * An immutable copy of the traversability of a rectangular region of a scene, which may be
+ * searched for paths on any thread while the scene itself continues to change. Tiles outside the
+ * region are impassable. Traversability is captured for a <code>null</code> traverser, so the
+ * traverser supplied to {@link #canTraverse} is ignored.
+ */
+public class TraversalSnapshot
+    implements AStarPathUtil.TraversalPred
+{
+    /**
+     * Captures the traversability of the tiles in the supplied region as reported by the supplied
+     * predicate.
+     */
+    public TraversalSnapshot (AStarPathUtil.TraversalPred tpred, Rectangle bounds)
+    {
+        _bounds = new Rectangle(bounds);
+        _bits = new long[(bounds.width * bounds.height + 63) / 64];
+        for (int yy = 0; yy < bounds.height; yy++) {
+            for (int xx = 0; xx < bounds.width; xx++) {
+                if (tpred.canTraverse(null, bounds.x + xx, bounds.y + yy)) {
+                    int idx = yy * bounds.width + xx;
+                    _bits[idx >> 6] |= 1L << idx;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the region covered by this snapshot. Do not modify the returned rectangle.
+     */
+    public Rectangle getBounds ()
+    {
+        return _bounds;
+    }
+
+    // documentation inherited from interface
+    public boolean canTraverse (Object traverser, int x, int y)
+    {
+        if (!_bounds.contains(x, y)) {
+            return false;
+        }
+        int idx = (y - _bounds.y) * _bounds.width + (x - _bounds.x);
+        return (_bits[idx >> 6] & (1L << idx)) != 0;
+    }
+
+    /** The region of the scene we cover. */
+    protected final Rectangle _bounds;
+
+    /** The traversability of our tiles, one bit per tile in row major order. */
+    protected final long[] _bits;
+}
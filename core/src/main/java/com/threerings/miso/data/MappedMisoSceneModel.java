@@ -0,0 +1,678 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.data;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.awt.Rectangle;
+
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.LRUHashMap;
+
+import com.threerings.media.util.MathUtil;
+
+import com.threerings.miso.data.SparseMisoSceneModel.Section;
+import com.threerings.miso.util.ObjectSet;
+
+/**
+ * A scene model for very large scenes that keeps its sections in a file on disk rather than in
+ * memory. The file is memory-mapped in fixed-size chunks as they are first needed; base tile ids
+ * are read directly from the mapped file and sections are decoded into {@link Section} records
+ * only when their objects are requested, and only the most recently used of those are retained.
+ *
+ * <p> Edits are copy-on-write: a section is copied into memory the first time it is modified,
+ * and remains there (overriding its copy in the file) until the model is written out via
+ * {@link #save}. The file itself is never modified.
+ *
+ * <p> Lookups may be made by any number of threads at once, as is the case when scene blocks are
+ * resolved in parallel. This model is not meant to be streamed; use a {@link
+ * SparseMisoSceneModel} (see {@link #toSparseModel}) to ship a scene over the wire.
+ *
+ * <p> The file format is a header (magic, version, section width and height, default tileset,
+ * chunk size, section count and the position of the section index), the sections and finally
+ * the section index: the key, position and length of each section, sorted by key. Sections never
+ * span a chunk boundary, so each may be read from a single mapped chunk.
+ */
+public class MappedMisoSceneModel extends MisoSceneModel
+{
+    /**
+     * Writes the supplied scene to the specified file in a form that may be opened by this
+     * model. Blank sections are omitted.
+     */
+    public static void write (SparseMisoSceneModel model, File file)
+        throws IOException
+    {
+        TreeSet<Integer> keys = new TreeSet<Integer>();
+        final Map<Integer, Section> sections = Maps.newHashMap();
+        for (Iterator<Section> iter = model.getSections(); iter.hasNext(); ) {
+            Section sect = iter.next();
+            int key = key(sect.x, sect.y, model.swidth, model.sheight);
+            keys.add(key);
+            sections.put(key, sect);
+        }
+        write(file, model.swidth, model.sheight, model.defTileSet, keys, new SectionLookup() {
+            public Section lookupSection (int key) {
+                return sections.get(key);
+            }
+        });
+    }
+
+    /**
+     * Opens the scene stored in the specified file (as written by {@link #write} or {@link
+     * #save}), retaining a default number of decoded sections.
+     */
+    public MappedMisoSceneModel (File file)
+        throws IOException
+    {
+        this(file, DEFAULT_CACHED_SECTIONS);
+    }
+
+    /**
+     * Opens the scene stored in the specified file, retaining at most the specified number of
+     * decoded sections.
+     */
+    public MappedMisoSceneModel (File file, int maxCachedSections)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            _channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(_channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a mapped scene file: " + file);
+            }
+            if (header.getInt() != VERSION) {
+                throw new IOException("Unsupported mapped scene version: " + file);
+            }
+            _swidth = header.getInt();
+            _sheight = header.getInt();
+            _defTileSet = header.getInt();
+            _chunkSize = header.getInt();
+            int count = header.getInt();
+            long indexPos = header.getLong();
+
+            ByteBuffer index = ByteBuffer.allocate(count * INDEX_ENTRY_SIZE);
+            readFully(_channel, index, indexPos);
+            index.flip();
+            _keys = new int[count];
+            _positions = new long[count];
+            for (int ii = 0; ii < count; ii++) {
+                _keys[ii] = index.getInt();
+                _positions[ii] = index.getLong();
+                index.getInt(); // the length, which we don't need to read a section
+            }
+            _chunks = new AtomicReferenceArray<MappedByteBuffer>(
+                (int)((_channel.size() + _chunkSize - 1) / _chunkSize));
+            _file = file;
+            _raf = raf;
+            raf = null;
+
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+        _cache = new LRUHashMap<Integer, Section>(maxCachedSections);
+    }
+
+    /**
+     * Returns the file from which this scene is read.
+     */
+    public File getFile ()
+    {
+        return _file;
+    }
+
+    /**
+     * Returns true if this scene has been modified since it was opened.
+     */
+    public boolean isModified ()
+    {
+        return !_dirty.isEmpty() || _defTileSetModified;
+    }
+
+    /**
+     * Writes this scene, including any modifications, to the specified file, which must not be
+     * the file from which this scene is read. Sections are written one at a time, so the scene
+     * need not fit in memory.
+     */
+    public void save (File file)
+        throws IOException
+    {
+        if (file.getCanonicalFile().equals(_file.getCanonicalFile())) {
+            throw new IOException("Can't overwrite the file from which a scene is mapped");
+        }
+        TreeSet<Integer> keys = new TreeSet<Integer>(_dirty.keySet());
+        for (int key : _keys) {
+            keys.add(key);
+        }
+        write(file, _swidth, _sheight, _defTileSet, keys, new SectionSource());
+    }
+
+    /**
+     * Closes the file from which this scene is read and unmaps the chunks that were mapped from
+     * it. The scene may not be used thereafter, nor may this be called while other threads are
+     * still reading from the scene.
+     */
+    public void close ()
+        throws IOException
+    {
+        for (int ii = 0, nn = _chunks.length(); ii < nn; ii++) {
+            MappedByteBuffer chunk = _chunks.getAndSet(ii, null);
+            if (chunk != null) {
+                unmap(chunk);
+            }
+        }
+        _raf.close();
+    }
+
+    /**
+     * Copies this entire scene into a sparse scene model.
+     */
+    public SparseMisoSceneModel toSparseModel ()
+    {
+        SparseMisoSceneModel model = new SparseMisoSceneModel(_swidth, _sheight);
+        model.defTileSet = _defTileSet;
+        TreeSet<Integer> keys = new TreeSet<Integer>(_dirty.keySet());
+        for (int key : _keys) {
+            keys.add(key);
+        }
+        SectionSource source = new SectionSource();
+        for (int key : keys) {
+            Section sect = source.lookupSection(key);
+            if (sect != null) {
+                model.setSection(_dirty.containsKey(key) ? sect.clone() : sect);
+            }
+        }
+        return model;
+    }
+
+    @Override
+    public int getBaseTileId (int col, int row)
+    {
+        int key = key(col, row, _swidth, _sheight);
+        if (!_dirty.isEmpty()) {
+            Section sect = _dirty.get(key);
+            if (sect != null) {
+                synchronized (sect) {
+                    return sect.getBaseTileId(col, row);
+                }
+            }
+        }
+
+        int idx = Arrays.binarySearch(_keys, key);
+        if (idx < 0) {
+            return -1;
+        }
+        int sx = col - MathUtil.floorDiv(col, _swidth) * _swidth;
+        int sy = row - MathUtil.floorDiv(row, _sheight) * _sheight;
+        long pos = _positions[idx] + SECTION_HEADER_SIZE + 4L * (sy * _swidth + sx);
+        return getChunk(pos).getInt((int)(pos % _chunkSize));
+    }
+
+    @Override
+    public boolean setBaseTile (int fqBaseTileId, int col, int row)
+    {
+        Section sect = getDirtySection(col, row);
+        synchronized (sect) {
+            sect.setBaseTile(col, row, fqBaseTileId);
+        }
+        return true;
+    }
+
+    @Override
+    public void setDefaultBaseTileSet (int tileSetId)
+    {
+        _defTileSet = tileSetId;
+        _defTileSetModified = true;
+    }
+
+    @Override
+    public int getDefaultBaseTileSet ()
+    {
+        return _defTileSet;
+    }
+
+    @Override
+    public void getObjects (Rectangle region, ObjectSet set)
+    {
+        int minx = MathUtil.floorDiv(region.x, _swidth)*_swidth;
+        int maxx = MathUtil.floorDiv(region.x+region.width-1, _swidth)*_swidth;
+        int miny = MathUtil.floorDiv(region.y, _sheight)*_sheight;
+        int maxy = MathUtil.floorDiv(region.y+region.height-1, _sheight)*_sheight;
+        for (int yy = miny; yy <= maxy; yy += _sheight) {
+            for (int xx = minx; xx <= maxx; xx += _swidth) {
+                Section sect = getSection(key(xx, yy, _swidth, _sheight));
+                if (sect != null) {
+                    synchronized (sect) {
+                        sect.getObjects(region, set);
+                    }
+                }
+            }
+        }
+        set.finishAppend();
+    }
+
+    @Override
+    public boolean addObject (ObjectInfo info)
+    {
+        Section sect = getDirtySection(info.x, info.y);
+        synchronized (sect) {
+            return sect.addObject(info);
+        }
+    }
+
+    @Override
+    public void updateObject (ObjectInfo info)
+    {
+        // not efficient, but this is only done in editing situations
+        removeObject(info);
+        addObject(info);
+    }
+
+    @Override
+    public boolean removeObject (ObjectInfo info)
+    {
+        if (getSection(key(info.x, info.y, _swidth, _sheight)) == null) {
+            return false;
+        }
+        Section sect = getDirtySection(info.x, info.y);
+        synchronized (sect) {
+            return sect.removeObject(info);
+        }
+    }
+
+    @Override
+    public MappedMisoSceneModel clone ()
+    {
+        // the clone shares our file, but has its own copies of our modified sections
+        MappedMisoSceneModel model = (MappedMisoSceneModel)super.clone();
+        model._cache = new LRUHashMap<Integer, Section>(_cache.getMaxSize());
+        model._dirty = Maps.newConcurrentMap();
+        for (Map.Entry<Integer, Section> entry : _dirty.entrySet()) {
+            synchronized (entry.getValue()) {
+                model._dirty.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
+        return model;
+    }
+
+    @Override
+    protected void toString (StringBuilder buf)
+    {
+        buf.append("file=").append(_file);
+        buf.append(", sections=").append(_keys.length);
+        buf.append(", modified=").append(_dirty.size());
+    }
+
+    /**
+     * Returns the section with the specified key, decoding it from the file if necessary, or
+     * null if the scene has no such section.
+     */
+    protected Section getSection (int key)
+    {
+        Section sect = _dirty.get(key);
+        if (sect != null) {
+            return sect;
+        }
+        synchronized (_cache) {
+            sect = _cache.get(key);
+        }
+        if (sect != null) {
+            return sect;
+        }
+        sect = readSection(key);
+        if (sect != null) {
+            synchronized (_cache) {
+                _cache.put(key, sect);
+            }
+        }
+        return sect;
+    }
+
+    /**
+     * Returns the modifiable in-memory section that contains the specified tile, copying it from
+     * the file or creating it if necessary.
+     */
+    protected Section getDirtySection (int col, int row)
+    {
+        int key = key(col, row, _swidth, _sheight);
+        Section sect = _dirty.get(key);
+        if (sect != null) {
+            return sect;
+        }
+
+        synchronized (_cache) {
+            sect = _cache.remove(key);
+        }
+        if (sect == null) {
+            sect = readSection(key);
+        }
+        if (sect == null) {
+            short sx = (short)(MathUtil.floorDiv(col, _swidth)*_swidth);
+            short sy = (short)(MathUtil.floorDiv(row, _sheight)*_sheight);
+            sect = new Section(sx, sy, (short)_swidth, (short)_sheight);
+        }
+        Section osect = _dirty.putIfAbsent(key, sect);
+        return (osect == null) ? sect : osect;
+    }
+
+    /**
+     * Decodes the section with the specified key from our file, or returns null if there is no
+     * such section in the file.
+     */
+    protected Section readSection (int key)
+    {
+        int idx = Arrays.binarySearch(_keys, key);
+        if (idx < 0) {
+            return null;
+        }
+        ByteBuffer buf = getChunk(_positions[idx]).duplicate();
+        buf.position((int)(_positions[idx] % _chunkSize));
+
+        Section sect = new Section();
+        sect.x = (short)buf.getInt();
+        sect.y = (short)buf.getInt();
+        sect.width = buf.getInt();
+        sect.baseTileIds = new int[_swidth * _sheight];
+        buf.asIntBuffer().get(sect.baseTileIds);
+        buf.position(buf.position() + 4 * sect.baseTileIds.length);
+
+        int ucount = buf.getInt();
+        sect.objectTileIds = new int[ucount];
+        sect.objectXs = new short[ucount];
+        sect.objectYs = new short[ucount];
+        for (int ii = 0; ii < ucount; ii++) {
+            sect.objectTileIds[ii] = buf.getInt();
+            sect.objectXs[ii] = buf.getShort();
+            sect.objectYs[ii] = buf.getShort();
+        }
+
+        int icount = buf.getInt();
+        sect.objectInfo = new ObjectInfo[icount];
+        for (int ii = 0; ii < icount; ii++) {
+            ObjectInfo info = new ObjectInfo(buf.getInt(), buf.getInt(), buf.getInt());
+            info.priority = buf.get();
+            info.sx = buf.get();
+            info.sy = buf.get();
+            info.sorient = buf.get();
+            info.zations = buf.getInt();
+            int alength = buf.getShort();
+            if (alength >= 0) {
+                byte[] action = new byte[alength];
+                buf.get(action);
+                info.action = new String(action, StandardCharsets.UTF_8);
+            }
+            sect.objectInfo[ii] = info;
+        }
+        return sect;
+    }
+
+    /**
+     * Returns the mapped chunk of our file that contains the specified position, mapping it if
+     * necessary. Chunks are published without locking; should two threads map the same chunk at
+     * once, the mapping of the first to publish it is used by all.
+     */
+    protected MappedByteBuffer getChunk (long pos)
+    {
+        int cidx = (int)(pos / _chunkSize);
+        MappedByteBuffer chunk = _chunks.get(cidx);
+        if (chunk != null) {
+            return chunk;
+        }
+        long start = (long)cidx * _chunkSize;
+        try {
+            long length = Math.min(_chunkSize, _channel.size() - start);
+            chunk = _channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Failed to map scene chunk " + cidx + " of " + _file, ioe);
+        }
+        return _chunks.compareAndSet(cidx, null, chunk) ? chunk : _chunks.get(cidx);
+    }
+
+    /**
+     * Releases the supplied mapping immediately rather than when it is garbage collected, if the
+     * JVM allows it. The buffer must not be accessed thereafter.
+     */
+    protected static void unmap (MappedByteBuffer buffer)
+    {
+        try {
+            Class<?> uclass = Class.forName("sun.misc.Unsafe");
+            Field field = uclass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            uclass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+        } catch (Exception e) {
+            // we'll have to leave it to the garbage collector
+        }
+    }
+
+    /** Looks up the sections to be written to a file. */
+    protected static interface SectionLookup
+    {
+        /** Returns the section with the specified key, or null if there is no such section. */
+        public Section lookupSection (int key);
+    }
+
+    /** Provides our sections, modified or not, to the writer without retaining them. */
+    protected class SectionSource implements SectionLookup
+    {
+        // documentation inherited from interface
+        public Section lookupSection (int key) {
+            Section sect = _dirty.get(key);
+            return (sect != null) ? sect : readSection(key);
+        }
+    }
+
+    /**
+     * Writes the sections with the supplied keys, obtained from the supplied lookup, to the
+     * specified file.
+     */
+    protected static void write (File file, int swidth, int sheight, int defTileSet,
+                                 TreeSet<Integer> keys, SectionLookup sections)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel chan = raf.getChannel();
+            ByteBuffer index = ByteBuffer.allocate(keys.size() * INDEX_ENTRY_SIZE);
+            long pos = HEADER_SIZE;
+            int count = 0;
+            for (int key : keys) {
+                Section sect = sections.lookupSection(key);
+                ByteBuffer buf;
+                synchronized (sect) {
+                    if (sect.isBlank()) {
+                        continue;
+                    }
+                    buf = encodeSection(sect, swidth * sheight);
+                }
+                int length = buf.remaining();
+                if (length > CHUNK_SIZE) {
+                    throw new IOException("Section too large to store " + sect);
+                }
+                // don't let a section span a chunk boundary
+                if (pos / CHUNK_SIZE != (pos + length - 1) / CHUNK_SIZE) {
+                    pos = (pos / CHUNK_SIZE + 1) * CHUNK_SIZE;
+                }
+                writeFully(chan, buf, pos);
+                index.putInt(key).putLong(pos).putInt(length);
+                pos += length;
+                count++;
+            }
+            index.flip();
+            writeFully(chan, index, pos);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(swidth).putInt(sheight);
+            header.putInt(defTileSet).putInt(CHUNK_SIZE).putInt(count).putLong(pos);
+            header.flip();
+            writeFully(chan, header, 0);
+
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Encodes the supplied section into a buffer ready to be written.
+     */
+    protected static ByteBuffer encodeSection (Section sect, int tiles)
+    {
+        byte[][] actions = new byte[sect.objectInfo.length][];
+        int size = SECTION_HEADER_SIZE + 4 * tiles + 4 + 8 * sect.objectTileIds.length + 4;
+        for (int ii = 0; ii < actions.length; ii++) {
+            String action = sect.objectInfo[ii].action;
+            if (action != null) {
+                actions[ii] = action.getBytes(StandardCharsets.UTF_8);
+                size += actions[ii].length;
+            }
+            size += 22;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(sect.x).putInt(sect.y).putInt(sect.width);
+        buf.asIntBuffer().put(sect.baseTileIds, 0, tiles);
+        buf.position(buf.position() + 4 * tiles);
+
+        buf.putInt(sect.objectTileIds.length);
+        for (int ii = 0; ii < sect.objectTileIds.length; ii++) {
+            buf.putInt(sect.objectTileIds[ii]).putShort(sect.objectXs[ii]);
+            buf.putShort(sect.objectYs[ii]);
+        }
+
+        buf.putInt(sect.objectInfo.length);
+        for (int ii = 0; ii < actions.length; ii++) {
+            ObjectInfo info = sect.objectInfo[ii];
+            buf.putInt(info.tileId).putInt(info.x).putInt(info.y);
+            buf.put(info.priority).put(info.sx).put(info.sy).put(info.sorient);
+            buf.putInt(info.zations);
+            if (actions[ii] == null) {
+                buf.putShort((short)-1);
+            } else {
+                buf.putShort((short)actions[ii].length).put(actions[ii]);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Returns the key of the section that contains the specified tile.
+     */
+    protected static int key (int x, int y, int swidth, int sheight)
+    {
+        int sx = MathUtil.floorDiv(x, swidth);
+        int sy = MathUtil.floorDiv(y, sheight);
+        return (sx << 16) | (sy & 0xFFFF);
+    }
+
+    /** Reads the buffer's remaining bytes from the supplied channel at the specified position. */
+    protected static void readFully (FileChannel chan, ByteBuffer buf, long pos)
+        throws IOException
+    {
+        while (buf.hasRemaining()) {
+            int read = chan.read(buf, pos);
+            if (read < 0) {
+                throw new IOException("Unexpected end of mapped scene file");
+            }
+            pos += read;
+        }
+    }
+
+    /** Writes the buffer's remaining bytes to the supplied channel at the specified position. */
+    protected static void writeFully (FileChannel chan, ByteBuffer buf, long pos)
+        throws IOException
+    {
+        while (buf.hasRemaining()) {
+            pos += chan.write(buf, pos);
+        }
+    }
+
+    /** The file from which we read our sections. */
+    protected transient File _file;
+
+    /** Our open file and its channel. Kept open for mapping chunks on demand. */
+    protected transient RandomAccessFile _raf;
+    protected transient FileChannel _channel;
+
+    /** The dimensions of our sections. */
+    protected transient int _swidth, _sheight;
+
+    /** The tileset to use when we have no tile data. */
+    protected transient int _defTileSet;
+
+    /** Whether the default tileset has been changed. */
+    protected transient boolean _defTileSetModified;
+
+    /** The size of the chunks in which our file is mapped. */
+    protected transient int _chunkSize;
+
+    /** The keys of the sections in our file, sorted, and their positions. */
+    protected transient int[] _keys;
+    protected transient long[] _positions;
+
+    /** Our file's chunks, mapped as needed. */
+    protected transient AtomicReferenceArray<MappedByteBuffer> _chunks;
+
+    /** The most recently used decoded sections. */
+    protected transient LRUHashMap<Integer, Section> _cache;
+
+    /** Sections that have been modified, which take precedence over those in our file. */
+    protected transient ConcurrentMap<Integer, Section> _dirty = Maps.newConcurrentMap();
+
+    /** Identifies mapped scene files. */
+    protected static final int MAGIC = 0x4D53434E;
+
+    /** The version of the file format. */
+    protected static final int VERSION = 1;
+
+    /** The size of the file header. */
+    protected static final int HEADER_SIZE = 36;
+
+    /** The size of a section index entry. */
+    protected static final int INDEX_ENTRY_SIZE = 16;
+
+    /** The size of the fields preceding a section's base tile ids. */
+    protected static final int SECTION_HEADER_SIZE = 12;
+
+    /** The size of the chunks in which files are written and mapped. */
+    protected static final int CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /** The default number of decoded sections to retain. */
+    protected static final int DEFAULT_CACHED_SECTIONS = 256;
+}
@@ -130,7 +130,7 @@ public class SimpleMisoSceneModel extends MisoSceneModel
         // first look for intersecting interesting objects
         for (ObjectInfo info : objectInfo) {
             if (region.contains(info.x, info.y)) {
-                set.insert(info);
+                set.append(info);
             }
         }
 
@@ -138,9 +138,10 @@ public class SimpleMisoSceneModel extends MisoSceneModel
         for (int ii = 0; ii < objectTileIds.length; ii++) {
             int x = objectXs[ii], y = objectYs[ii];
             if (region.contains(x, y)) {
-                set.insert(new ObjectInfo(objectTileIds[ii], x, y));
+                set.append(new ObjectInfo(objectTileIds[ii], x, y));
             }
         }
+        set.finishAppend();
     }
 
     @Override
@@ -21,6 +21,7 @@ package com.threerings.miso.data;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import java.awt.Rectangle;
@@ -188,23 +189,75 @@ public class SparseMisoSceneModel extends MisoSceneModel
             }
         }
 
+        /**
+         * Appends the objects in this section that lie in the supplied region to the supplied
+         * set. The caller must call {@link ObjectSet#finishAppend} once the set is filled.
+         */
         public void getObjects (Rectangle region, ObjectSet set) {
-            // first look for intersecting interesting objects
+            int maxx = region.x + region.width - 1, maxy = region.y + region.height - 1;
+            int height = (width == 0) ? 0 : baseTileIds.length / width;
+
+            // if the region covers this whole section, we needn't check any coordinates
+            if (width > 0 && region.x <= x && region.y <= y &&
+                maxx >= x + width - 1 && maxy >= y + height - 1) {
+                for (ObjectInfo info : objectInfo) {
+                    set.append(info);
+                }
+                for (int ii = 0; ii < objectTileIds.length; ii++) {
+                    set.append(new ObjectInfo(objectTileIds[ii], objectXs[ii], objectYs[ii]));
+                }
+                return;
+            }
+
+            // first look for intersecting interesting objects, of which there are few
             for (ObjectInfo info : objectInfo) {
                 if (region.contains(info.x, info.y)) {
-                    set.insert(info);
+                    set.append(info);
                 }
             }
 
-            // now look for intersecting non-interesting objects
-            for (int ii = 0; ii < objectTileIds.length; ii++) {
-                int x = objectXs[ii], y = objectYs[ii];
-                if (region.contains(x, y)) {
-                    set.insert(new ObjectInfo(objectTileIds[ii], x, y));
+            // now look up the intersecting non-interesting objects in our index, which is sorted
+            // by row and then by column; we skip straight to each row's first candidate
+            long[] index = getObjectIndex();
+            int ipos = lowerBound(index, region.x, region.y);
+            while (ipos < index.length) {
+                long entry = index[ipos];
+                int ey = indexY(entry), ex = indexX(entry);
+                if (ey > maxy) {
+                    break;
+                } else if (ex < region.x) {
+                    ipos = lowerBound(index, region.x, ey);
+                } else if (ex > maxx) {
+                    ipos = lowerBound(index, region.x, ey + 1);
+                } else {
+                    int oidx = (int)(entry & INDEX_MASK);
+                    set.append(new ObjectInfo(objectTileIds[oidx], ex, ey));
+                    ipos++;
                 }
             }
         }
 
+        /**
+         * Returns our spatial index of non-interesting objects, (re)building it if our objects
+         * have changed since it was built.
+         */
+        protected long[] getObjectIndex () {
+            // objects are only added and removed by replacing our arrays, so we can detect a
+            // stale index by identity; a racing rebuild on another thread just duplicates effort
+            ObjectIndex oindex = _oindex;
+            if (oindex != null && oindex.xs == objectXs && oindex.ys == objectYs) {
+                return oindex.entries;
+            }
+            short[] xs = objectXs, ys = objectYs;
+            long[] entries = new long[xs.length];
+            for (int ii = 0; ii < entries.length; ii++) {
+                entries[ii] = indexKey(xs[ii], ys[ii]) | ii;
+            }
+            Arrays.sort(entries);
+            _oindex = new ObjectIndex(xs, ys, entries);
+            return entries;
+        }
+
         /**
          * Returns true if this section contains no data beyond the default.
          * Used when saving a sparse scene: we omit blank sections.
@@ -231,6 +284,7 @@ public class SparseMisoSceneModel extends MisoSceneModel
                 section.objectTileIds = objectTileIds.clone();
                 section.objectXs = objectXs.clone();
                 section.objectYs = objectYs.clone();
+                section._oindex = null;
                 section.objectInfo = new ObjectInfo[objectInfo.length];
                 for (int ii = 0; ii < objectInfo.length; ii++) {
                     section.objectInfo[ii] = objectInfo[ii].clone();
@@ -250,6 +304,54 @@ public class SparseMisoSceneModel extends MisoSceneModel
                     objectInfo.length, objectTileIds.length);
             }
         }
+
+        /**
+         * Returns the position of the first index entry at or after the supplied coordinates.
+         */
+        protected static int lowerBound (long[] index, int x, int y) {
+            // clamp the coordinates to the range our objects may occupy (plus one)
+            x = Math.max(Short.MIN_VALUE, Math.min(x, Short.MAX_VALUE + 1));
+            y = Math.max(Short.MIN_VALUE, Math.min(y, Short.MAX_VALUE + 1));
+            int pos = Arrays.binarySearch(index, indexKey(x, y));
+            // keys have a zero object index, so an exact match is the entry for object zero
+            return (pos >= 0) ? pos : -(pos+1);
+        }
+
+        /**
+         * Returns the index key for the supplied coordinates, which sorts by row and then by
+         * column, leaving room for the object index in the low bits.
+         */
+        protected static long indexKey (int x, int y) {
+            return ((long)(y - Short.MIN_VALUE) << 41) | ((long)(x - Short.MIN_VALUE) << 24);
+        }
+
+        /** Extracts the coordinates from an index entry. */
+        protected static int indexX (long entry) {
+            return (int)((entry >>> 24) & 0x1FFFF) + Short.MIN_VALUE;
+        }
+
+        /** Extracts the coordinates from an index entry. */
+        protected static int indexY (long entry) {
+            return (int)(entry >>> 41) + Short.MIN_VALUE;
+        }
+
+        /** Sorted index entries and the arrays from which they were built. */
+        protected static class ObjectIndex {
+            public final short[] xs, ys;
+            public final long[] entries;
+
+            public ObjectIndex (short[] xs, short[] ys, long[] entries) {
+                this.xs = xs;
+                this.ys = ys;
+                this.entries = entries;
+            }
+        }
+
+        /** Our non-interesting objects sorted by location, built when first needed. */
+        protected transient volatile ObjectIndex _oindex;
+
+        /** Masks the object index from an index entry. */
+        protected static final long INDEX_MASK = (1L << 24) - 1;
     }
 
     /** The dimensions of a section of our scene. */
@@ -375,6 +477,7 @@ public class SparseMisoSceneModel extends MisoSceneModel
                 }
             }
         }
+        set.finishAppend();
     }
 
     @Override
@@ -19,12 +19,8 @@
 
 package com.threerings.miso.tile;
 
-import java.lang.ref.WeakReference;
-
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
 
 import java.awt.Graphics2D;
 import java.awt.Transparency;
@@ -32,9 +28,6 @@ import java.awt.image.BufferedImage;
 
 import com.google.common.collect.Lists;
 
-import com.samskivert.util.CheapIntMap;
-import com.samskivert.util.QuickSort;
-
 import com.threerings.media.image.BufferedMirage;
 import com.threerings.media.image.ImageManager;
 import com.threerings.media.image.ImageUtil;
@@ -50,6 +43,8 @@ import static com.threerings.miso.Log.log;
 
 /**
  * Automatically fringes a scene according to the rules in the supplied fringe configuration.
+ * A fringer keeps no state between calls and may be used by any number of threads at once; the
+ * fringe tiles and masks it composes are shared via a {@link FringeCache}.
  */
 public class AutoFringer
 {
@@ -74,6 +69,20 @@ public class AutoFringer
             return Arrays.hashCode(_fringeId);
         }
 
+        /**
+         * Returns this tile's composed image, or null if it has none.
+         */
+        protected BufferedImage getImage () {
+            return (_mirage == null) ? null : _mirage.getSnapshot();
+        }
+
+        /**
+         * Returns an imageless tile equal to this tile, for use as a cache key.
+         */
+        protected FringeTile createKey () {
+            return new FringeTile(_fringeId, _passable);
+        }
+
         /** The fringe keys of the tiles that went into this tile in the order they were drawn. */
         protected long[] _fringeId;
     }
@@ -100,134 +109,177 @@ public class AutoFringer
     /**
      * Compute and return the fringe tile to be inserted at the specified location.
      */
-    public BaseTile getFringeTile (MisoSceneModel scene, int col, int row,
-        Map<FringeTile, WeakReference<FringeTile>> fringes, Map<Long, BufferedImage> masks)
+    public BaseTile getFringeTile (MisoSceneModel scene, int col, int row, FringeCache cache)
     {
-        // get the tileset id of the base tile we are considering
-        int underset = adjustTileSetId(scene.getBaseTileId(col, row) >> 16);
-
-        // start with a clean temporary fringer map
-        _fringers.clear();
-        boolean passable = true;
-
-        // walk through our influence tiles
-        for (int y = row - 1, maxy = row + 2; y < maxy; y++) {
-            for (int x = col - 1, maxx = col + 2; x < maxx; x++) {
-                // we sensibly do not consider ourselves
-                if ((x == col) && (y == row)) {
-                    continue;
-                }
+        BaseTile[] fringes = new BaseTile[1];
+        getFringeTiles(scene, col, row, 1, 1, null, fringes, cache);
+        return fringes[0];
+    }
 
-                // determine the tileset for this tile
-                int btid = scene.getBaseTileId(x, y);
-                int baseset = adjustTileSetId((btid <= 0) ?
-                    scene.getDefaultBaseTileSet() : (btid >> 16));
+    /**
+     * Computes the fringe tiles for every location in the specified region of the scene and
+     * places them in <code>fringes</code> in row major order (null for locations that are not
+     * fringed). The base tiles of the region and its border are looked up only once, rather than
+     * once for each location on which they have influence, as would be the case were {@link
+     * #getFringeTile} called for each location.
+     *
+     * <p> This method may be called by any number of threads at once.
+     *
+     * @param wanted flags indicating, in row major order, the locations for which fringes are
+     * wanted, or null if they are wanted for all locations. No fringe is composed for the others
+     * and their entries in <code>fringes</code> are set to null.
+     */
+    public void getFringeTiles (MisoSceneModel scene, int x, int y, int width, int height,
+        boolean[] wanted, BaseTile[] fringes, FringeCache cache)
+    {
+        // look up the base tiles of the region and the one tile border around it
+        int swidth = width + 2, sheight = height + 2;
+        int[] btids = new int[swidth * sheight], basesets = new int[btids.length];
+        int defset = scene.getDefaultBaseTileSet();
+        for (int yy = 0, sidx = 0; yy < sheight; yy++) {
+            for (int xx = 0; xx < swidth; xx++, sidx++) {
+                int btid = scene.getBaseTileId(x + xx - 1, y + yy - 1);
+                btids[sidx] = btid;
+                basesets[sidx] = adjustTileSetId((btid <= 0) ? defset : (btid >> 16));
+            }
+        }
 
-                // determine if it fringes on our tile
-                int pri = _fringeconf.fringesOn(baseset, underset);
-                if (pri == -1) {
-                    continue;
-                }
+        // the passability of the base tiles, looked up as needed
+        byte[] passability = new byte[btids.length];
+        FringerRec[] frecs = new FringerRec[8];
 
-                FringerRec fringer = (FringerRec)_fringers.get(baseset);
-                if (fringer == null) {
-                    fringer = new FringerRec(baseset, pri);
-                    _fringers.put(baseset, fringer);
+        for (int row = 0, fidx = 0; row < height; row++) {
+            for (int col = 0; col < width; col++, fidx++) {
+                if (wanted != null && !wanted[fidx]) {
+                    fringes[fidx] = null;
+                    continue;
                 }
-
-                // now turn on the appropriate fringebits
-                fringer.bits |= FLAGMATRIX[y - row + 1][x - col + 1];
-
-                // See if a tile that fringes on us kills our passability,
-                // but don't count the default base tile against us, as
-                // we allow users to splash in the water.
-                if (passable && (btid > 0)) {
-                    try {
-                        BaseTile bt = (BaseTile)_tmgr.getTile(btid);
-                        passable = bt.isPassable();
-                    } catch (NoSuchTileSetException nstse) {
-                        log.warning("Autofringer couldn't find a base set while attempting to " +
-                            "figure passability", nstse);
+                int sidx = (row + 1) * swidth + col + 1;
+
+                // get the tileset id of the base tile we are considering
+                int underset = adjustTileSetId(btids[sidx] >> 16);
+                int numfringers = 0;
+                boolean passable = true;
+
+                // walk through our influence tiles
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        // we sensibly do not consider ourselves
+                        if (dx == 0 && dy == 0) {
+                            continue;
+                        }
+
+                        // determine if it fringes on our tile
+                        int nidx = sidx + dy * swidth + dx;
+                        int baseset = basesets[nidx];
+                        int pri = _fringeconf.fringesOn(baseset, underset);
+                        if (pri == -1) {
+                            continue;
+                        }
+
+                        FringerRec fringer = null;
+                        for (int ii = 0; ii < numfringers; ii++) {
+                            if (frecs[ii].baseset == baseset) {
+                                fringer = frecs[ii];
+                                break;
+                            }
+                        }
+                        if (fringer == null) {
+                            fringer = frecs[numfringers++] = new FringerRec(baseset, pri);
+                        }
+
+                        // now turn on the appropriate fringebits
+                        fringer.bits |= FLAGMATRIX[dy + 1][dx + 1];
+
+                        // See if a tile that fringes on us kills our passability,
+                        // but don't count the default base tile against us, as
+                        // we allow users to splash in the water.
+                        if (passable && (btids[nidx] > 0)) {
+                            passable = isPassable(btids, passability, nidx);
+                        }
                     }
                 }
-            }
-        }
 
-        // if nothing fringed, we're done
-        int numfringers = _fringers.size();
-        if (numfringers == 0) {
-            return null;
+                // if nothing fringed, we're done; otherwise compose a FringeTile from the
+                // specified fringes
+                fringes[fidx] = (numfringers == 0) ? null : composeFringeTile(
+                    Arrays.copyOf(frecs, numfringers), cache,
+                    TileUtil.getTileHash(x + col, y + row), passable);
+            }
         }
+    }
 
-        // otherwise compose a FringeTile from the specified fringes
-        FringerRec[] frecs = new FringerRec[numfringers];
-        for (int ii = 0, pp = 0; ii < 16; ii++) {
-            FringerRec rec = (FringerRec)_fringers.getValue(ii);
-            if (rec != null) {
-                frecs[pp++] = rec;
+    /**
+     * Returns whether the base tile at the specified index is passable, looking it up if it
+     * has not already been looked up.
+     */
+    protected boolean isPassable (int[] btids, byte[] passability, int idx)
+    {
+        if (passability[idx] == 0) {
+            boolean passable = true;
+            try {
+                passable = ((BaseTile)_tmgr.getTile(btids[idx])).isPassable();
+            } catch (NoSuchTileSetException nstse) {
+                log.warning("Autofringer couldn't find a base set while attempting to " +
+                    "figure passability", nstse);
             }
+            passability[idx] = passable ? PASSABLE : IMPASSABLE;
         }
-
-        return composeFringeTile(frecs, fringes, TileUtil.getTileHash(col, row), passable, masks);
+        return passability[idx] == PASSABLE;
     }
 
     /**
      * Compose a FringeTile out of the various fringe images needed.
      */
-    protected FringeTile composeFringeTile (FringerRec[] fringers,
-        Map<FringeTile, WeakReference<FringeTile>> fringes, int hashValue, boolean passable,
-        Map<Long, BufferedImage> masks)
+    protected FringeTile composeFringeTile (
+        FringerRec[] fringers, FringeCache cache, int hashValue, boolean passable)
     {
         // sort the array so that higher priority fringers get drawn first
-        QuickSort.sort(fringers);
+        Arrays.sort(fringers);
 
         // Generate an identifier for the fringe tile being created as an array of the keys of its
         // component tiles in the order they'll be drawn in the fringe tile.
-        List<Long> keys = Lists.newArrayList();
-        for (FringerRec fringer : fringers) {
-            int[] indexes = getFringeIndexes(fringer.bits);
-            FringeConfiguration.FringeTileSetRecord tsr = _fringeconf.getFringe(
-                fringer.baseset, hashValue);
-            int fringeset = tsr.fringe_tsid;
-            for (int index : indexes) {
+        FringeConfiguration.FringeTileSetRecord[] tsrs =
+            new FringeConfiguration.FringeTileSetRecord[fringers.length];
+        int[][] indexes = new int[fringers.length][];
+        int count = 0;
+        for (int ii = 0; ii < fringers.length; ii++) {
+            indexes[ii] = getFringeIndexes(fringers[ii].bits);
+            tsrs[ii] = _fringeconf.getFringe(fringers[ii].baseset, hashValue);
+            count += indexes[ii].length;
+        }
+        long[] fringeId = new long[count];
+        for (int ii = 0, kk = 0; ii < fringers.length; ii++) {
+            for (int index : indexes[ii]) {
                 // Add a key for this tile as a long containing its base tile, the fringe set it's
                 // working with and the index used in that set.
-                keys.add((((long)fringer.baseset) << 32) + (fringeset << 16) + index);
+                fringeId[kk++] = getFringeKey(fringers[ii].baseset, tsrs[ii].fringe_tsid, index);
             }
         }
-        long[] fringeId = new long[keys.size()];
-        for (int ii = 0; ii < fringeId.length; ii++) {
-            fringeId[ii] = keys.get(ii);
-        }
         FringeTile frTile = new FringeTile(fringeId, passable);
 
-        // If the fringes map contains something with the same fringe identifier, this will pull
-        // it out and we can use it instead.
-        WeakReference<FringeTile> result = fringes.get(frTile);
-        if (result != null) {
-            FringeTile fringe = result.get();
-            if (fringe != null) {
-                return fringe;
-            }
+        // If the cache contains something with the same fringe identifier, we can use it instead.
+        FringeTile fringe = cache.getFringeTile(frTile);
+        if (fringe != null) {
+            return fringe;
         }
 
-        // There's no fringe with he same identifier, so we need to create the tile.
+        // There's no fringe with the same identifier, so we need to create the tile.
         BufferedImage img = null;
-        for (FringerRec fringer : fringers) {
-            int[] indexes = getFringeIndexes(fringer.bits);
-            FringeConfiguration.FringeTileSetRecord tsr = _fringeconf.getFringe(
-                fringer.baseset, hashValue);
-            for (int index : indexes) {
+        for (int ii = 0; ii < fringers.length; ii++) {
+            for (int index : indexes[ii]) {
                 try {
-                    img = getTileImage(img, tsr, fringer.baseset, index, hashValue, masks);
+                    img = getTileImage(img, tsrs[ii], fringers[ii].baseset, index, hashValue,
+                        cache);
                 } catch (NoSuchTileSetException nstse) {
                     log.warning("Autofringer couldn't find a needed tileset", nstse);
                 }
             }
         }
         frTile.setImage(new BufferedMirage(img));
-        fringes.put(frTile, new WeakReference<FringeTile>(frTile));
-        return frTile;
+
+        // another thread may have beaten us to it, in which case we use theirs
+        return cache.putFringeTile(frTile);
     }
 
     /**
@@ -235,7 +287,7 @@ public class AutoFringer
      */
     protected BufferedImage getTileImage (BufferedImage img,
         FringeConfiguration.FringeTileSetRecord tsr, int baseset, int index, int hashValue,
-        Map<Long, BufferedImage> masks)
+        FringeCache cache)
         throws NoSuchTileSetException
     {
         int fringeset = tsr.fringe_tsid;
@@ -247,18 +299,26 @@ public class AutoFringer
         }
 
         // otherwise, it's a mask..
-        Long maskkey = Long.valueOf((((long)baseset) << 32) + (fringeset << 16) + index);
-        BufferedImage mask = masks.get(maskkey);
+        long maskkey = getFringeKey(baseset, fringeset, index);
+        BufferedImage mask = cache.getMask(maskkey);
         if (mask == null) {
             BufferedImage fsrc = _tmgr.getTileSet(fringeset).getRawTileImage(index);
             BufferedImage bsrc = _tmgr.getTileSet(baseset).getRawTileImage(0);
             mask = ImageUtil.composeMaskedImage(_imgr, fsrc, bsrc);
-            masks.put(maskkey, mask);
+            cache.putMask(maskkey, mask);
         }
 
         return stampTileImage(mask, img, mask.getWidth(null), mask.getHeight(null));
     }
 
+    /**
+     * Returns the key identifying the specified fringe image.
+     */
+    protected static long getFringeKey (int baseset, int fringeset, int index)
+    {
+        return (((long)baseset) << 32) + (fringeset << 16) + index;
+    }
+
     /** Helper function for {@link #getTileImage}. */
     protected BufferedImage stampTileImage (Object stamp, BufferedImage ftimg, int width,
         int height)
@@ -389,6 +449,9 @@ public class AutoFringer
 
     protected static final int NUM_FRINGEBITS = 8;
 
+    /** Passability states of base tiles while computing fringes. */
+    protected static final byte PASSABLE = 1, IMPASSABLE = 2;
+
     // A matrix mapping adjacent tiles to which fringe bits they affect.
     // (x and y are offset by +1, since we can't have -1 as an array index)
     // again, see docs/miso/fringebits.png
@@ -450,5 +513,4 @@ public class AutoFringer
     protected ImageManager _imgr;
     protected TileManager _tmgr;
     protected FringeConfiguration _fringeconf;
-    protected CheapIntMap _fringers = new CheapIntMap(16);
 }
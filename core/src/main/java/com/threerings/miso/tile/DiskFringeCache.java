@@ -0,0 +1,298 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.tile;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.samskivert.util.StringUtil;
+
+import com.threerings.resource.FastImageIO;
+
+import com.threerings.media.image.BufferedMirage;
+import com.threerings.media.image.ImageManager;
+import com.threerings.media.image.ImageUtil;
+
+import com.threerings.miso.tile.AutoFringer.FringeTile;
+
+import static com.threerings.miso.Log.log;
+
+/**
+ * A {@link FringeCache} that also stores fringe tile images in a directory on the local file
+ * system, so that terrain combinations seen in a previous session need not be composed again.
+ * Each image is stored in {@link FastImageIO} format in a file named by a hash of its fringe
+ * signature (the fringe images of which it is composed), the checksum of the fringe configuration
+ * and a caller supplied version (which should change whenever the tile imagery changes).
+ *
+ * <p> Images are written on a background thread. Images with too many colors to be stored in an
+ * 8-bit color mapped image are not stored. The total size of the cache directory is capped and
+ * the least recently used files are deleted to make room for new ones.
+ */
+public class DiskFringeCache extends FringeCache
+{
+    /**
+     * Creates a cache that stores its images in the supplied directory.
+     *
+     * @param imgr the image manager used to create images for loaded fringes.
+     * @param dir the directory in which to store images, which will be created if necessary.
+     * @param fringeconf the configuration with which the cached fringes are composed.
+     * @param version a string that identifies the version of the tile imagery.
+     * @param maxKilobytes the maximum combined size of the cached files.
+     */
+    public DiskFringeCache (ImageManager imgr, File dir, FringeConfiguration fringeconf,
+                            String version, int maxKilobytes)
+    {
+        _imgr = imgr;
+        _dir = dir;
+        _version = version + "|" + fringeconf.getChecksum();
+        _maxSize = maxKilobytes * 1024L;
+        _writer.allowCoreThreadTimeOut(true);
+
+        if (!_dir.isDirectory() && !_dir.mkdirs()) {
+            log.warning("Unable to create fringe cache directory", "dir", _dir);
+        }
+
+        // index our existing files, least recently used first
+        File[] files = _dir.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare (File f1, File f2) {
+                    return Long.compare(f1.lastModified(), f2.lastModified());
+                }
+            });
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_SUFFIX)) {
+                    _files.put(file.getName(), file.length());
+                    _size += file.length();
+                }
+            }
+        }
+        pruneFiles();
+    }
+
+    @Override
+    public FringeTile getFringeTile (FringeTile key)
+    {
+        FringeTile tile = super.getFringeTile(key);
+        if (tile != null) {
+            return tile;
+        }
+
+        String name = getFileName(key);
+        synchronized (_files) {
+            if (_files.get(name) == null) {
+                return null;
+            }
+        }
+
+        File file = new File(_dir, name);
+        try {
+            tile = key.createKey();
+            tile.setImage(createMirage(FastImageIO.read(file)));
+            file.setLastModified(System.currentTimeMillis());
+        } catch (IOException ioe) {
+            log.warning("Failed to read cached fringe", "file", file, "error", ioe);
+            removeFile(name);
+            return null;
+        }
+        return super.putFringeTile(tile);
+    }
+
+    @Override
+    public FringeTile putFringeTile (FringeTile tile)
+    {
+        FringeTile ctile = super.putFringeTile(tile);
+        final String name = getFileName(tile);
+        final BufferedImage image = tile.getImage();
+        if (ctile != tile || image == null) {
+            return ctile;
+        }
+        synchronized (_files) {
+            if (_files.containsKey(name)) {
+                return ctile;
+            }
+        }
+        try {
+            _writer.execute(new Runnable() {
+                public void run () {
+                    writeImage(name, image);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            log.debug("Not caching fringe, writer is busy", "file", name);
+        }
+        return ctile;
+    }
+
+    /**
+     * Returns the combined size of the files in our cache, in bytes.
+     */
+    public long getSize ()
+    {
+        synchronized (_files) {
+            return _size;
+        }
+    }
+
+    /**
+     * Writes the supplied fringe image to the named file.
+     */
+    protected void writeImage (String name, BufferedImage image)
+    {
+        BufferedImage indexed = ImageUtil.createIndexedImage(image);
+        if (indexed == null) {
+            log.debug("Not caching fringe with too many colors", "file", name);
+            return;
+        }
+
+        File file = new File(_dir, name), tmpfile = new File(_dir, name + ".tmp");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpfile));
+            try {
+                FastImageIO.write(indexed, out);
+            } finally {
+                out.close();
+            }
+
+            if (!tmpfile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmpfile + " to " + file);
+            }
+            synchronized (_files) {
+                Long osize = _files.put(name, file.length());
+                _size += file.length() - ((osize == null) ? 0 : osize);
+            }
+            pruneFiles();
+
+        } catch (IOException ioe) {
+            log.warning("Failed to cache fringe", "file", file, "error", ioe);
+
+        } finally {
+            tmpfile.delete();
+        }
+    }
+
+    /**
+     * Converts a loaded 8-bit fringe image into a mirage that is efficient to render.
+     */
+    protected BufferedMirage createMirage (BufferedImage source)
+    {
+        BufferedImage image = _imgr.createImage(
+            source.getWidth(), source.getHeight(), Transparency.BITMASK);
+        Graphics2D gfx = image.createGraphics();
+        try {
+            gfx.drawImage(source, 0, 0, null);
+        } finally {
+            gfx.dispose();
+        }
+        return new BufferedMirage(image);
+    }
+
+    /**
+     * Returns the name of the file in which we store the image for the supplied fringe tile.
+     * Passability does not affect a fringe's image, so it is not part of the name.
+     */
+    protected String getFileName (FringeTile tile)
+    {
+        StringBuilder buf = new StringBuilder(_version);
+        for (long key : tile._fringeId) {
+            buf.append("|").append(Long.toHexString(key));
+        }
+        return StringUtil.sha1hex(buf.toString()) + FILE_SUFFIX;
+    }
+
+    /**
+     * Deletes the least recently used files until we're back under our size limit.
+     */
+    protected void pruneFiles ()
+    {
+        synchronized (_files) {
+            for (Iterator<Map.Entry<String, Long>> iter = _files.entrySet().iterator();
+                 iter.hasNext() && _size > _maxSize; ) {
+                Map.Entry<String, Long> entry = iter.next();
+                iter.remove();
+                _size -= entry.getValue();
+                new File(_dir, entry.getKey()).delete();
+            }
+        }
+    }
+
+    /**
+     * Removes the named file from our index and deletes it.
+     */
+    protected void removeFile (String name)
+    {
+        synchronized (_files) {
+            Long size = _files.remove(name);
+            if (size != null) {
+                _size -= size;
+            }
+            new File(_dir, name).delete();
+        }
+    }
+
+    /** Used to create images for our loaded fringes. */
+    protected ImageManager _imgr;
+
+    /** The directory in which we store our files. */
+    protected File _dir;
+
+    /** Identifies the version of the tile imagery and fringe configuration. */
+    protected String _version;
+
+    /** The maximum combined size of our files, in bytes. */
+    protected long _maxSize;
+
+    /** The combined size of our files, in bytes. */
+    protected long _size;
+
+    /** The sizes of our files, in least recently used order. */
+    protected LinkedHashMap<String, Long> _files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /** Writes our images in the background. */
+    protected ThreadPoolExecutor _writer = new ThreadPoolExecutor(
+        1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_WRITES),
+        new ThreadFactoryBuilder().setNameFormat("Fringe cache writer").setDaemon(true).
+            setPriority(Thread.MIN_PRIORITY).build());
+
+    /** The suffix of our cache files. */
+    protected static final String FILE_SUFFIX = ".fringe";
+
+    /** The maximum number of fringe images that may be waiting to be written. */
+    protected static final int MAX_QUEUED_WRITES = 256;
+}
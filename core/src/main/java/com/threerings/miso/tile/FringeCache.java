@@ -0,0 +1,129 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.tile;
+
+import java.awt.image.BufferedImage;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import com.threerings.miso.tile.AutoFringer.FringeTile;
+
+/**
+ * Holds the fringe tiles and fringe masks composed by an {@link AutoFringer} so that they can be
+ * shared by all of the tiles (and scene blocks) that need them. A cache may be safely used by any
+ * number of threads at once.
+ *
+ * <p> Scene blocks hold hard references to the fringe tiles they use, and we hold the tiles
+ * weakly, so the blocks coming in and out of view determine which tiles remain in the cache.
+ * The number of tiles and the memory used by masks are additionally bounded.
+ */
+public class FringeCache
+{
+    /**
+     * Creates a fringe cache with the default bounds.
+     */
+    public FringeCache ()
+    {
+        this(DEFAULT_MAX_FRINGES, DEFAULT_MAX_MASK_KB);
+    }
+
+    /**
+     * Creates a fringe cache that holds at most the specified number of fringe tiles and the
+     * specified amount of mask imagery.
+     */
+    public FringeCache (int maxFringes, int maxMaskKilobytes)
+    {
+        _fringes = CacheBuilder.newBuilder().weakValues().maximumSize(maxFringes).build();
+        _masks = CacheBuilder.newBuilder().maximumWeight(maxMaskKilobytes * 1024L).weigher(
+            new Weigher<Long, BufferedImage>() {
+                public int weigh (Long key, BufferedImage mask) {
+                    return mask.getWidth() * mask.getHeight() * 4;
+                }
+            }).build();
+    }
+
+    /**
+     * Returns the cached fringe tile composed of the same fringe images as the supplied tile, or
+     * null if we have no such tile.
+     */
+    public FringeTile getFringeTile (FringeTile key)
+    {
+        return _fringes.getIfPresent(key);
+    }
+
+    /**
+     * Adds the supplied fringe tile to the cache unless an equivalent tile was added in the
+     * meanwhile by another thread.
+     *
+     * @return the tile that is now in the cache, which should be used in preference to the
+     * supplied tile.
+     */
+    public FringeTile putFringeTile (FringeTile tile)
+    {
+        // we key on a copy of the tile so that the key doesn't keep the tile itself alive
+        FringeTile otile = _fringes.asMap().putIfAbsent(tile.createKey(), tile);
+        return (otile == null) ? tile : otile;
+    }
+
+    /**
+     * Returns the cached mask with the specified key or null.
+     */
+    public BufferedImage getMask (long maskKey)
+    {
+        return _masks.getIfPresent(maskKey);
+    }
+
+    /**
+     * Adds the supplied mask to the cache.
+     */
+    public void putMask (long maskKey, BufferedImage mask)
+    {
+        _masks.put(maskKey, mask);
+    }
+
+    /**
+     * Clears out all cached fringe tiles and masks.
+     */
+    public void clear ()
+    {
+        _fringes.invalidateAll();
+        _masks.invalidateAll();
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[fringes=" + _fringes.size() + ", masks=" + _masks.size() + "]";
+    }
+
+    /** Our fringe tiles, keyed on imageless copies of themselves. */
+    protected Cache<FringeTile, FringeTile> _fringes;
+
+    /** Our fringe masks, keyed on their base tileset, fringe tileset and fringe index. */
+    protected Cache<Long, BufferedImage> _masks;
+
+    /** The default maximum number of fringe tiles we cache. */
+    protected static final int DEFAULT_MAX_FRINGES = 8192;
+
+    /** The default maximum size (in kilobytes) of our cached masks. */
+    protected static final int DEFAULT_MAX_MASK_KB = 16384;
+}
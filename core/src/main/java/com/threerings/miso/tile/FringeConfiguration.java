@@ -20,9 +20,16 @@
 package com.threerings.miso.tile;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import com.google.common.collect.Lists;
 
 import com.samskivert.util.HashIntMap;
@@ -107,9 +114,10 @@ public class FringeConfiguration implements Serializable
      * Adds a parsed FringeRecord to this instance. This is used when parsing
      * the fringerecords from xml.
      */
-    public void addFringeRecord (FringeRecord frec)
+    public synchronized void addFringeRecord (FringeRecord frec)
     {
         _frecs.put(frec.base_tsid, frec);
+        _checksum = null;
     }
 
     /**
@@ -150,9 +158,52 @@ public class FringeConfiguration implements Serializable
             hashValue % f.tilesets.size());
     }
 
+    /**
+     * Returns a string that identifies the contents of this configuration, which will differ
+     * between configurations with different fringe rules.
+     */
+    public synchronized String getChecksum ()
+    {
+        if (_checksum == null) {
+            // hash the records explicitly, in order of base tileset, so that the checksum depends
+            // only on the fringe rules and not on hash table layout or serialization details
+            int[] bases = new int[_frecs.size()];
+            int idx = 0;
+            for (int base : _frecs.keySet()) {
+                bases[idx++] = base;
+            }
+            Arrays.sort(bases);
+            try {
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                DataOutputStream dout = new DataOutputStream(bout);
+                for (int base : bases) {
+                    FringeRecord frec = _frecs.get(base);
+                    dout.writeInt(frec.base_tsid);
+                    dout.writeInt(frec.priority);
+                    dout.writeInt(frec.tilesets.size());
+                    for (FringeTileSetRecord tsr : frec.tilesets) {
+                        dout.writeInt(tsr.fringe_tsid);
+                        dout.writeBoolean(tsr.mask);
+                    }
+                }
+                dout.close();
+                _checksum = StringUtil.hexlate(
+                    MessageDigest.getInstance("SHA-1").digest(bout.toByteArray()));
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new RuntimeException(nsae);
+            }
+        }
+        return _checksum;
+    }
+
     /** The mapping from base tileset id to fringerecord. */
     protected HashIntMap<FringeRecord> _frecs = new HashIntMap<FringeRecord>();
 
+    /** Our checksum, computed when first requested. */
+    protected transient String _checksum;
+
     /** Increase this value when object's serialized state is impacted by
      * a class change (modification of fields, inheritance). */
     private static final long serialVersionUID = 1;
@@ -77,9 +77,31 @@ public class MisoTileManager extends TileManager
         return _fringer;
     }
 
+    /**
+     * Configures a fringe cache to be shared by all scenes that use this tile manager, for
+     * example a {@link DiskFringeCache} that keeps fringes between sessions. By default, each
+     * scene panel uses its own in-memory cache.
+     */
+    public void setFringeCache (FringeCache cache)
+    {
+        _fringeCache = cache;
+    }
+
+    /**
+     * Returns the fringe cache shared by all scenes that use this tile manager, or null if none
+     * has been configured.
+     */
+    public FringeCache getFringeCache ()
+    {
+        return _fringeCache;
+    }
+
     /** The entity that performs the automatic fringe layer generation. */
     protected AutoFringer _fringer;
 
+    /** The fringe cache shared by our scenes, or null. */
+    protected FringeCache _fringeCache;
+
     /** The path (in the classpath) to the serialized fringe configuration. */
     protected static final String FRINGE_CONFIG_PATH = "config/miso/tile/fringeconf.dat";
 }
@@ -32,6 +32,12 @@ import static com.threerings.miso.Log.log;
 /**
  * Used to store an (arbitrarily) ordered, low-impact iteratable (doesn't
  * require object creation), set of {@link ObjectInfo} instances.
+ *
+ * <p> Objects may be added one at a time with {@link #insert}, which keeps the set sorted as it
+ * goes, or in bulk with {@link #append} followed by {@link #finishAppend}, which sorts the set
+ * once when it has been filled so that filling a set with <code>n</code> objects costs
+ * <code>O(n log n)</code> rather than <code>O(n^2)</code>. A set may not otherwise be used
+ * between the first call to <code>append</code> and the call to <code>finishAppend</code>.
  */
 public class ObjectSet
 {
@@ -43,6 +49,8 @@ public class ObjectSet
      */
     public boolean insert (ObjectInfo info)
     {
+        requireSorted();
+
         // bail if it's already in the set
         int ipos = indexOf(info);
         if (ipos >= 0) {
@@ -60,12 +68,30 @@ public class ObjectSet
         return true;
     }
 
+    /**
+     * Adds the supplied object to the set without checking whether it is already present. This
+     * is the efficient way to fill a set with many objects; once they have all been appended,
+     * {@link #finishAppend} must be called before the set is otherwise used.
+     */
+    public void append (ObjectInfo info)
+    {
+        if (_size == _objs.length) {
+            _objs = Arrays.copyOf(_objs, _size*2);
+        }
+        // we're still sorted if this object follows our last one
+        if (_sorted && _size > 0 && INFO_COMP.compare(_objs[_size-1], info) >= 0) {
+            _sorted = false;
+        }
+        _objs[_size++] = info;
+    }
+
     /**
      * Returns true if the specified object is in the set, false if it is
      * not.
      */
     public boolean contains (ObjectInfo info)
     {
+        requireSorted();
         return (indexOf(info) >= 0);
     }
 
@@ -74,6 +100,7 @@ public class ObjectSet
      */
     public int size ()
     {
+        requireSorted();
         return _size;
     }
 
@@ -83,6 +110,7 @@ public class ObjectSet
      */
     public ObjectInfo get (int index)
     {
+        requireSorted();
         return (ObjectInfo)_objs[index];
     }
 
@@ -91,6 +119,7 @@ public class ObjectSet
      */
     public void remove (int index)
     {
+        requireSorted();
         ListUtil.remove(_objs, index);
         _size--;
     }
@@ -102,6 +131,7 @@ public class ObjectSet
      */
     public boolean remove (ObjectInfo info)
     {
+        requireSorted();
         int opos = indexOf(info);
         if (opos >= 0) {
             remove(opos);
@@ -117,6 +147,7 @@ public class ObjectSet
     public void clear ()
     {
         _size = 0;
+        _sorted = true;
         Arrays.fill(_objs, null);
     }
 
@@ -125,6 +156,7 @@ public class ObjectSet
      */
     public ObjectInfo[] toArray ()
     {
+        requireSorted();
         ObjectInfo[] info = new ObjectInfo[_size];
         System.arraycopy(_objs, 0, info, 0, _size);
         return info;
@@ -143,6 +175,42 @@ public class ObjectSet
         return buf.append("]").toString();
     }
 
+    /**
+     * Sorts the objects that were appended to the set since it was last sorted, dropping any
+     * duplicates. This must be called after a series of calls to {@link #append} before the set
+     * is otherwise used.
+     */
+    public void finishAppend ()
+    {
+        if (_sorted) {
+            return;
+        }
+        _sorted = true;
+        Arrays.sort(_objs, 0, _size, INFO_COMP);
+        int size = 1;
+        for (int ii = 1; ii < _size; ii++) {
+            if (INFO_COMP.compare(_objs[size-1], _objs[ii]) == 0) {
+                // log a warning because the caller shouldn't be doing this
+                log.warning("Appended an object to a set that already contains such an object",
+                            "ninfo", _objs[ii], "oinfo", _objs[size-1]);
+            } else {
+                _objs[size++] = _objs[ii];
+            }
+        }
+        Arrays.fill(_objs, size, _size, null);
+        _size = size;
+    }
+
+    /**
+     * Ensures that we are not in the midst of being filled by {@link #append}.
+     */
+    protected final void requireSorted ()
+    {
+        if (!_sorted) {
+            throw new IllegalStateException("Object set used before finishAppend()");
+        }
+    }
+
     /**
      * Returns the index of the object or its insertion index if it is not in the set.
      */
@@ -157,16 +225,23 @@ public class ObjectSet
     /** The number of objects in the set. */
     protected int _size;
 
+    /** False if objects have been appended since we were last sorted. */
+    protected boolean _sorted = true;
+
     /** We simply sort the objects in order of their hash code. We don't
      * care about their order, it exists only to support binary search. */
     protected static final Comparator<Object> INFO_COMP = new Comparator<Object>() {
         public int compare (Object o1, Object o2) {
             ObjectInfo do1 = (ObjectInfo)o1;
             ObjectInfo do2 = (ObjectInfo)o2;
-            if (do1.tileId == do2.tileId) {
-                return ((do1.x << 16) + do1.y) - ((do2.x << 16) + do2.y);
+            // compare rather than subtract so that we remain a consistent ordering (which our
+            // bulk sort requires) even for large tile ids and coordinates
+            if (do1.tileId != do2.tileId) {
+                return Integer.compare(do1.tileId, do2.tileId);
+            } else if (do1.x != do2.x) {
+                return Integer.compare(do1.x, do2.x);
             } else {
-                return do1.tileId - do2.tileId;
+                return Integer.compare(do1.y, do2.y);
             }
         }
     };
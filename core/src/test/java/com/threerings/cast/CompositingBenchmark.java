@@ -0,0 +1,445 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.cast;
+
+import java.util.Map;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.HashIntMap;
+import com.samskivert.util.Tuple;
+
+import com.threerings.util.DirectionCodes;
+
+import com.threerings.resource.ResourceBundle;
+import com.threerings.resource.ResourceManager;
+
+import com.threerings.media.image.ClientImageManager;
+import com.threerings.media.image.Colorization;
+import com.threerings.media.image.ImageUtil;
+import com.threerings.media.tile.UniformTileSet;
+
+import com.threerings.cast.bundle.BundleUtil;
+import com.threerings.cast.bundle.BundledComponentRepository;
+import com.threerings.cast.bundle.ComponentIndex;
+
+/**
+ * Measures the performance of the character compositing pipeline against a synthetic component
+ * bundle: action frame creation and lookup, first-touch compositing of an orientation (plain,
+ * masked and shadowed), lazy per-frame compositing, sprite sheet rendering, colorization and the
+ * heap used by each composited character. Run it with a fixed heap and
+ * <code>-Djava.awt.headless=true</code> and compare the results between revisions.
+ */
+public class CompositingBenchmark
+    implements DirectionCodes
+{
+    /** A single benchmarked operation. */
+    protected static interface Op
+    {
+        public void run () throws Exception;
+    }
+
+    public CompositingBenchmark ()
+        throws IOException
+    {
+        final SyntheticBundle bundle = createBundle();
+        ResourceManager rmgr = new ResourceManager("rsrc") {
+            @Override public ResourceBundle[] getResourceSet (String name) {
+                return new ResourceBundle[] { bundle };
+            }
+        };
+        _imgr = new ClientImageManager(rmgr, (Component)null);
+        _crepo = new BundledComponentRepository(rmgr, _imgr, "components");
+        _charmgr = new CharacterManager(_imgr, _crepo);
+        _lazymgr = new CharacterManager(_imgr, _crepo);
+        _lazymgr.setLazyCompositing(LAZY_CACHE_KILOBYTES);
+    }
+
+    /**
+     * Runs all of our benchmarks, reporting their results to stdout.
+     */
+    public void run (final int ops)
+        throws Exception
+    {
+        final CharacterDescriptor hdesc = createDescriptor(PLAIN);
+        _charmgr.getActionFrames(hdesc, ACTION).getFrames(SOUTH);
+
+        measure("getActionFrames (miss)", ops, new Op() {
+            public void run () throws Exception {
+                _charmgr.getActionFrames(createDescriptor(PLAIN), ACTION);
+            }
+        });
+        measure("getActionFrames (hit)", ops * 100, new Op() {
+            public void run () throws Exception {
+                _charmgr.getActionFrames(hdesc, ACTION);
+            }
+        });
+        measure("getFrames first touch (plain)", ops, new Op() {
+            public void run () throws Exception {
+                _charmgr.getActionFrames(createDescriptor(PLAIN), ACTION).getFrames(SOUTH);
+            }
+        });
+        measure("getFrames first touch (masked)", ops, new Op() {
+            public void run () throws Exception {
+                _charmgr.getActionFrames(createDescriptor(MASKED), ACTION).getFrames(SOUTH);
+            }
+        });
+        measure("getFrames first touch (shadowed)", ops, new Op() {
+            public void run () throws Exception {
+                _charmgr.getActionFrames(createDescriptor(SHADOWED), ACTION).getFrames(SOUTH);
+            }
+        });
+        measure("getFrames (hit)", ops * 100, new Op() {
+            public void run () throws Exception {
+                _charmgr.getActionFrames(hdesc, ACTION).getFrames(SOUTH);
+            }
+        });
+
+        final Graphics2D gfx = _scratch.createGraphics();
+        measure("lazy frame composite", ops, new Op() {
+            public void run () throws Exception {
+                TrimmedMultiFrameImage frames =
+                    _lazymgr.getActionFrames(createDescriptor(PLAIN), ACTION).getFrames(SOUTH);
+                frames.paintFrame(gfx, 0, 0, 0);
+            }
+        });
+        gfx.dispose();
+
+        measure("sprite sheet (masked, all orients)", Math.max(1, ops / 10), new Op() {
+            public void run () throws Exception {
+                _charmgr.createSpriteSheet(createDescriptor(MASKED), ACTION, null);
+            }
+        });
+
+        final BufferedImage source = createImage(BODY, 0);
+        measure("colorize tileset image", ops, new Op() {
+            public void run () throws Exception {
+                ImageUtil.recolorImage(source, new Colorization[] { createColorization() });
+            }
+        });
+
+        // finally see how much memory a character with all of its orientations composited uses
+        int chars = Math.max(1, ops / 10);
+        long before = usedMemory(), ebefore = _charmgr.getEstimatedCacheMemoryUsage();
+        Object[] hold = new Object[chars];
+        for (int ii = 0; ii < chars; ii++) {
+            ActionFrames frames = _charmgr.getActionFrames(createDescriptor(MASKED), ACTION);
+            for (int orient : ORIENTS) {
+                frames.getFrames(orient);
+            }
+            hold[ii] = frames;
+        }
+        long used = usedMemory() - before;
+        System.out.println(String.format(
+            "%-36s %12d bytes/char (estimated %d)", "heap per composited character",
+            used / chars, (_charmgr.getEstimatedCacheMemoryUsage() - ebefore) / chars));
+        hold = null;
+    }
+
+    /**
+     * Runs the supplied operation the specified number of times to warm up and again to measure
+     * it, reporting the mean time per operation.
+     */
+    protected void measure (String name, int ops, Op op)
+        throws Exception
+    {
+        for (int ii = 0; ii < ops; ii++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int ii = 0; ii < ops; ii++) {
+            op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-36s %12.1f us/op", name, elapsed / 1000.0 / ops));
+    }
+
+    /**
+     * Creates a descriptor for a character made of the specified components. Each character gets
+     * its own colorization so that its frames are not shared with those of other characters.
+     */
+    protected CharacterDescriptor createDescriptor (int[] components)
+    {
+        Colorization[][] zations = new Colorization[components.length][];
+        zations[0] = new Colorization[] { createColorization() };
+        return new CharacterDescriptor(components, zations);
+    }
+
+    protected Colorization createColorization ()
+    {
+        float shift = (_zationId % 64) / 64f;
+        return new Colorization(++_zationId, ROOT_COLOR, new float[] { 0.1f, 1f, 1f },
+                                new float[] { shift, 0f, 0f });
+    }
+
+    /**
+     * Creates a bundle containing our component metadata and a walking action for each of the
+     * body, torso, head, hat and shadow components.
+     */
+    protected static SyntheticBundle createBundle ()
+        throws IOException
+    {
+        SyntheticBundle bundle = new SyntheticBundle();
+
+        ActionSequence walking = new ActionSequence();
+        walking.name = ACTION;
+        walking.framesPerSecond = 8;
+        walking.origin.setLocation(FRAME_SIZE / 2, FRAME_SIZE - 8);
+        walking.orients = ORIENTS;
+        Map<String, ActionSequence> actions = Maps.newHashMap();
+        actions.put(ACTION, walking);
+        bundle.putObject(BundleUtil.ACTIONS_PATH, actions);
+        bundle.putObject(BundleUtil.ACTION_SETS_PATH, Maps.newHashMap());
+
+        Map<String, ComponentClass> classes = Maps.newHashMap();
+        addClass(classes, "shadow", -10, null, null).shadowAlpha = 0.5f;
+        addClass(classes, "body", 0, null, "shadow");
+        addClass(classes, "torso", 0, null, null);
+        addClass(classes, "head", 10, "hat", null);
+        addClass(classes, "hat", 20, null, null);
+        bundle.putObject(BundleUtil.CLASSES_PATH, classes);
+
+        HashIntMap<Tuple<String, String>> comps = new HashIntMap<Tuple<String, String>>();
+        addComponent(bundle, comps, BODY, "body", null);
+        addComponent(bundle, comps, BODY, "body", StandardActions.SHADOW_TYPE);
+        addComponent(bundle, comps, TORSO, "torso", null);
+        addComponent(bundle, comps, HEAD, "head", null);
+        addComponent(bundle, comps, HAT, "hat", null);
+        addComponent(bundle, comps, HAT, "hat", StandardActions.CROP_TYPE);
+        bundle.putObject(BundleUtil.COMPONENTS_PATH, comps);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ComponentIndex.write(comps, out);
+        bundle.resources.put(BundleUtil.COMPONENT_INDEX_PATH, out.toByteArray());
+        return bundle;
+    }
+
+    protected static ComponentClass addClass (
+        Map<String, ComponentClass> classes, String name, int priority, String mask, String shadow)
+    {
+        ComponentClass cclass = new ComponentClass();
+        cclass.name = name;
+        cclass.renderPriority = priority;
+        cclass.mask = mask;
+        cclass.shadow = shadow;
+        classes.put(name, cclass);
+        return cclass;
+    }
+
+    protected static void addComponent (SyntheticBundle bundle,
+        HashIntMap<Tuple<String, String>> comps, int componentId, String cclass, String type)
+        throws IOException
+    {
+        String cname = cclass + componentId;
+        comps.put(componentId, Tuple.newTuple(cclass, cname));
+
+        String path = cclass + "/" + cname + "/" + ACTION + (type == null ? "" : "_" + type);
+        UniformTileSet tset = new UniformTileSet();
+        tset.setWidth(FRAME_SIZE);
+        tset.setHeight(FRAME_SIZE);
+        tset.setImagePath(path + BundleUtil.IMAGE_EXTENSION);
+        bundle.putObject(path + BundleUtil.TILESET_EXTENSION, tset);
+        int shape = StandardActions.SHADOW_TYPE.equals(type) ? SHADOW :
+            (StandardActions.CROP_TYPE.equals(type) ? CROP : componentId);
+        bundle.images.put(path + BundleUtil.IMAGE_EXTENSION, createImage(shape, componentId));
+    }
+
+    /**
+     * Creates a color mapped tileset image with one row of frames per orientation, drawing a
+     * simple shape for the specified component that moves a bit from frame to frame.
+     */
+    protected static BufferedImage createImage (int shape, int seed)
+    {
+        int frames = FRAME_COUNT, orients = ORIENTS.length;
+        BufferedImage image = new BufferedImage(
+            frames * FRAME_SIZE, orients * FRAME_SIZE, BufferedImage.TYPE_BYTE_INDEXED, PALETTE);
+        WritableRaster raster = image.getRaster();
+        for (int oo = 0; oo < orients; oo++) {
+            for (int ff = 0; ff < frames; ff++) {
+                int ox = ff * FRAME_SIZE, oy = oo * FRAME_SIZE, bob = (ff % 4) - 2;
+                for (int yy = 0; yy < FRAME_SIZE; yy++) {
+                    for (int xx = 0; xx < FRAME_SIZE; xx++) {
+                        int pixel = shade(shape, xx - FRAME_SIZE / 2, yy + bob, seed + oo);
+                        raster.setSample(ox + xx, oy + yy, 0, pixel);
+                    }
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns the palette index of the specified pixel of a component shape, relative to the
+     * horizontal center and top of the frame.
+     */
+    protected static int shade (int shape, int dx, int y, int seed)
+    {
+        switch (shape) {
+        case BODY: case TORSO:
+            return (Math.abs(dx) < 14 && y > 24 && y < 56) ? 1 + (y + seed) % 4 : 0;
+        case HEAD:
+            return (dx * dx + (y - 16) * (y - 16) < 100) ? 5 + (dx & 3) : 0;
+        case HAT:
+            return (Math.abs(dx) < 12 && y > 2 && y < 12) ? 9 + (y & 1) : 0;
+        case CROP:
+            return (y < 10) ? 1 : 0;
+        case SHADOW:
+            return (dx * dx / 4 + (y - 58) * (y - 58) < 16) ? 15 : 0;
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the heap in use once the garbage collector has had a chance to run.
+     */
+    protected static long usedMemory ()
+    {
+        Runtime rt = Runtime.getRuntime();
+        for (int ii = 0; ii < 4; ii++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Creates the palette used by our synthetic images: transparent, four shades of the root
+     * color, then assorted other colors and black for shadows.
+     */
+    protected static IndexColorModel createPalette ()
+    {
+        int[] argb = new int[16];
+        for (int ii = 0; ii < 4; ii++) {
+            argb[1 + ii] = ROOT_COLOR.darker().getRGB() + ii * 0x100000;
+        }
+        for (int ii = 5; ii < 15; ii++) {
+            argb[ii] = 0xFF000000 | (ii * 0x111111 + 0x203040);
+        }
+        argb[15] = 0xFF000000;
+        return new IndexColorModel(8, argb.length, argb, 0, true, 0, 0);
+    }
+
+    /** An in-memory resource bundle. */
+    protected static class SyntheticBundle extends ResourceBundle
+    {
+        /** Our serialized resources. */
+        public Map<String, byte[]> resources = Maps.newHashMap();
+
+        /** Our images, which are treated as already decoded. */
+        public Map<String, BufferedImage> images = Maps.newHashMap();
+
+        public void putObject (String path, Object value)
+            throws IOException
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(out);
+            oout.writeObject(value);
+            oout.close();
+            resources.put(path, out.toByteArray());
+        }
+
+        @Override
+        public String getIdent ()
+        {
+            return "synthetic";
+        }
+
+        @Override
+        public InputStream getResource (String path)
+        {
+            byte[] data = resources.get(path);
+            return (data == null) ? null : new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public BufferedImage getImageResource (String path, boolean useFastIO)
+        {
+            return images.get(path);
+        }
+    }
+
+    public static void main (String[] args)
+    {
+        try {
+            int ops = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+            CharacterManager.setCacheSize(256 * 1024);
+            new CompositingBenchmark().run(ops);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            System.exit(-1);
+        }
+    }
+
+    protected ClientImageManager _imgr;
+    protected BundledComponentRepository _crepo;
+
+    /** Composites whole orientations and lazily composites individual frames, respectively. */
+    protected CharacterManager _charmgr, _lazymgr;
+
+    /** Used to give each character its own colorization. */
+    protected int _zationId;
+
+    /** The image into which lazily composited frames are painted. */
+    protected BufferedImage _scratch =
+        new BufferedImage(FRAME_SIZE, FRAME_SIZE, BufferedImage.TYPE_INT_ARGB);
+
+    /** The component ids (and shapes) of our synthetic components. */
+    protected static final int BODY = 1, TORSO = 2, HEAD = 3, HAT = 4, CROP = 5, SHADOW = 6;
+
+    /** The components of our plain, masked and shadowed characters. */
+    protected static final int[] PLAIN = { TORSO, HEAD }, MASKED = { TORSO, HEAD, HAT },
+        SHADOWED = { BODY, HEAD };
+
+    /** The action provided by our synthetic components. */
+    protected static final String ACTION = "walking";
+
+    /** The orientations of our action. */
+    protected static final int[] ORIENTS = {
+        SOUTHWEST, WEST, NORTHWEST, NORTH, NORTHEAST, EAST, SOUTHEAST, SOUTH };
+
+    /** The size and number of frames of our action. */
+    protected static final int FRAME_SIZE = 64, FRAME_COUNT = 8;
+
+    /** The color recolored by our colorizations. */
+    protected static final Color ROOT_COLOR = new Color(0xC04030);
+
+    /** The palette of our synthetic images. */
+    protected static final IndexColorModel PALETTE = createPalette();
+
+    /** The size of the lazily composited frame cache. */
+    protected static final int LAZY_CACHE_KILOBYTES = 16 * 1024;
+}
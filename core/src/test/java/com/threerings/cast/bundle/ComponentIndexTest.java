@@ -0,0 +1,110 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.cast.bundle;
+
+import java.util.Random;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.samskivert.util.IntMap;
+import com.samskivert.util.IntMaps;
+import com.samskivert.util.Tuple;
+
+/**
+ * Tests that a {@link ComponentIndex} reads back what was written to it.
+ */
+public class ComponentIndexTest extends TestCase
+{
+    public ComponentIndexTest ()
+    {
+        super(ComponentIndexTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        IntMap<Tuple<String, String>> comps = IntMaps.newHashIntMap();
+        Random rando = new Random(42);
+        String[] classes = { "head", "hair", "torso", "legs", "feet", "héad" };
+        for (int ii = 0; ii < 500; ii++) {
+            int componentId = rando.nextInt(100000);
+            // reuse names among classes so that we must match both to find a component
+            comps.put(componentId, Tuple.newTuple(classes[rando.nextInt(classes.length)],
+                                                  "comp" + rando.nextInt(200)));
+        }
+
+        try {
+            File file = File.createTempFile("components", ".idx");
+            try {
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    ComponentIndex.write(comps, out);
+                } finally {
+                    out.close();
+                }
+                checkIndex(comps, ComponentIndex.map(file));
+            } finally {
+                file.delete();
+            }
+            checkIndex(comps, ComponentIndex.create(comps));
+
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail();
+        }
+    }
+
+    protected void checkIndex (IntMap<Tuple<String, String>> comps, ComponentIndex index)
+    {
+        assertEquals(comps.size(), index.size());
+        for (IntMap.IntEntry<Tuple<String, String>> entry : comps.intEntrySet()) {
+            int record = index.indexOf(entry.getIntKey());
+            assertTrue("found by id", record >= 0);
+            Tuple<String, String> info = entry.getValue();
+            assertEquals(info.left, index.getClassName(record));
+            assertEquals(info.right, index.getComponentName(record));
+
+            record = index.indexOf(info.left, info.right);
+            assertTrue("found by name", record >= 0);
+            assertEquals(info.left, index.getClassName(record));
+            assertEquals(info.right, index.getComponentName(record));
+        }
+
+        assertEquals(-1, index.indexOf(-1));
+        assertEquals(-1, index.indexOf("head", "nonexistent"));
+        assertEquals(-1, index.indexOf("nonexistent", "comp0"));
+    }
+
+    public static Test suite ()
+    {
+        return new ComponentIndexTest();
+    }
+
+    public static void main (String[] args)
+    {
+        ComponentIndexTest test = new ComponentIndexTest();
+        test.runTest();
+    }
+}
@@ -0,0 +1,158 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.util;
+
+import java.util.Random;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the workspace A* implementation in {@link AStarPathUtil} with the original node-based
+ * implementation on a randomly obstructed grid, reporting the time and memory allocated per
+ * path for short paths, long paths and searches for unreachable goals. Run it with a fixed heap
+ * and compare the results between revisions.
+ */
+public class AStarBenchmark
+{
+    /** A single benchmarked operation. */
+    protected static interface Op
+    {
+        public void run ();
+    }
+
+    public AStarBenchmark (int size, int blocked, long seed)
+    {
+        _size = size;
+        _tiles = new boolean[size * size];
+        Random rando = new Random(seed);
+        for (int ii = 0; ii < _tiles.length; ii++) {
+            _tiles[ii] = rando.nextInt(100) >= blocked;
+        }
+        // wall off the last row so that it can't be reached
+        for (int xx = 0; xx < size; xx++) {
+            _tiles[(size-2)*size + xx] = false;
+        }
+
+        _queries = new int[QUERIES * 4];
+        for (int ii = 0; ii < _queries.length; ii++) {
+            _queries[ii] = rando.nextInt(size - 2);
+        }
+    }
+
+    public void run (int ops)
+    {
+        for (final int longest : new int[] { 16, 48, 128 }) {
+            measure("workspace (longest=" + longest + ")", ops, new Op() {
+                public void run () {
+                    for (int ii = 0; ii < _queries.length; ii += 4) {
+                        AStarPathUtil.getPath(_pred, null, null, longest, _queries[ii],
+                            _queries[ii+1], _queries[ii+2], _queries[ii+3], false);
+                    }
+                }
+            });
+            measure("nodes (longest=" + longest + ")", ops, new Op() {
+                public void run () {
+                    for (int ii = 0; ii < _queries.length; ii += 4) {
+                        AStarPathUtil.getPathByNodes(_pred, new AStarPathUtil.Stepper(), null,
+                            longest, _queries[ii], _queries[ii+1], _queries[ii+2],
+                            _queries[ii+3], false);
+                    }
+                }
+            });
+        }
+
+        final int unreachable = _size - 1;
+        measure("workspace (unreachable)", ops, new Op() {
+            public void run () {
+                for (int ii = 0; ii < _queries.length; ii += 4) {
+                    AStarPathUtil.getPath(_pred, null, null, 48, _queries[ii], _queries[ii+1],
+                                          _queries[ii+2], unreachable, false);
+                }
+            }
+        });
+        measure("nodes (unreachable)", ops, new Op() {
+            public void run () {
+                for (int ii = 0; ii < _queries.length; ii += 4) {
+                    AStarPathUtil.getPathByNodes(_pred, new AStarPathUtil.Stepper(), null, 48,
+                        _queries[ii], _queries[ii+1], _queries[ii+2], unreachable, false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the supplied operation the specified number of times to warm up and again to measure
+     * it, reporting the mean time and allocation per path.
+     */
+    protected void measure (String name, int ops, Op op)
+    {
+        for (int ii = 0; ii < ops; ii++) {
+            op.run();
+        }
+        long before = allocatedBytes();
+        long start = System.nanoTime();
+        for (int ii = 0; ii < ops; ii++) {
+            op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - before;
+        int paths = ops * QUERIES;
+        System.out.println(String.format("%-32s %10.1f us/path %10d bytes/path", name,
+                                         elapsed / 1000.0 / paths, allocated / paths));
+    }
+
+    /**
+     * Returns the number of bytes allocated by this thread, or zero if the VM can't tell us.
+     */
+    protected static long allocatedBytes ()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+        }
+        return 0L;
+    }
+
+    public static void main (String[] args)
+    {
+        int ops = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+        new AStarBenchmark(256, 25, 1L).run(ops);
+    }
+
+    /** Reports the traversability of our grid. */
+    protected AStarPathUtil.TraversalPred _pred = new AStarPathUtil.TraversalPred() {
+        public boolean canTraverse (Object traverser, int x, int y) {
+            return x >= 0 && y >= 0 && x < _size && y < _size && _tiles[y*_size + x];
+        }
+    };
+
+    /** The width and height of our grid. */
+    protected int _size;
+
+    /** The traversability of our grid, in row major order. */
+    protected boolean[] _tiles;
+
+    /** The start and goal coordinates of our paths, four ints per path. */
+    protected int[] _queries;
+
+    /** The number of paths computed per operation. */
+    protected static final int QUERIES = 100;
+}
@@ -0,0 +1,97 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.media.util;
+
+import java.util.List;
+import java.util.Random;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+/**
+ * Tests that the workspace search in {@link AStarPathUtil#getPath} finds the same paths as the
+ * original node-based search in {@link AStarPathUtil#getPathByNodes}.
+ */
+public class AStarPathUtilTest extends TestCase
+{
+    public AStarPathUtilTest ()
+    {
+        super(AStarPathUtilTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        Random rando = new Random(42);
+        final int size = 48;
+        final boolean[] tiles = new boolean[size * size];
+        for (int ii = 0; ii < tiles.length; ii++) {
+            tiles[ii] = rando.nextInt(100) >= 30;
+        }
+        AStarPathUtil.TraversalPred pred = new AStarPathUtil.TraversalPred() {
+            public boolean canTraverse (Object trav, int x, int y) {
+                return x >= 0 && y >= 0 && x < size && y < size && tiles[y * size + x];
+            }
+        };
+
+        Rectangle bounds = new Rectangle(4, 4, size - 8, size - 8);
+        for (int ii = 0; ii < 500; ii++) {
+            int ax = rando.nextInt(size), ay = rando.nextInt(size);
+            int bx = rando.nextInt(size), by = rando.nextInt(size);
+            int longest = 8 + rando.nextInt(64);
+            boolean partial = rando.nextBoolean();
+            tiles[ay * size + ax] = tiles[by * size + bx] = true;
+
+            List<Point> npath = AStarPathUtil.getPathByNodes(
+                pred, new AStarPathUtil.Stepper(), null, longest, ax, ay, bx, by, partial);
+            int nconsidered = AStarPathUtil.getConsidered();
+            List<Point> path = AStarPathUtil.getPath(
+                pred, null, null, longest, null, ax, ay, bx, by, partial);
+            String query = ax + "+" + ay + " to " + bx + "+" + by + " (longest=" + longest +
+                ", partial=" + partial + ")";
+            assertEquals(query, npath, path);
+            assertEquals(query, nconsidered, AStarPathUtil.getConsidered());
+
+            // a bounded search should match a node search confined to the same bounds
+            if (bounds.contains(ax, ay)) {
+                npath = AStarPathUtil.getPathByNodes(
+                    new AStarPathUtil.BoundedPred(pred, bounds), new AStarPathUtil.Stepper(),
+                    null, longest, ax, ay, bx, by, partial);
+                path = AStarPathUtil.getPath(
+                    pred, null, null, longest, bounds, ax, ay, bx, by, partial);
+                assertEquals("Bounded " + query, npath, path);
+            }
+        }
+    }
+
+    public static Test suite ()
+    {
+        return new AStarPathUtilTest();
+    }
+
+    public static void main (String[] args)
+    {
+        AStarPathUtilTest test = new AStarPathUtilTest();
+        test.runTest();
+    }
+}
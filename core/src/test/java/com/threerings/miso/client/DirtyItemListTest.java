@@ -0,0 +1,177 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.client;
+
+import java.util.Map;
+import java.util.Random;
+
+import java.awt.Rectangle;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.SortableArrayList;
+
+import com.threerings.media.sprite.Sprite;
+
+import com.threerings.miso.client.DirtyItemList.DirtyItem;
+
+/**
+ * Tests that {@link DirtyItemList#graphSort} renders overlapping items in the same order as
+ * {@link DirtyItemList#insertionSort}.
+ */
+public class DirtyItemListTest extends TestCase
+{
+    public DirtyItemListTest ()
+    {
+        super(DirtyItemListTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        for (int seed = 0; seed < 50; seed++) {
+            checkLayout(new Random(seed));
+        }
+    }
+
+    /**
+     * Places a random set of single and multi-tile sprites on distinct tiles and checks that the
+     * two sorts agree on the order of every pair of overlapping items.
+     */
+    protected void checkLayout (Random rando)
+    {
+        DirtyItemList list = new DirtyItemList();
+        boolean[] occupied = new boolean[GRID * GRID];
+        for (int ii = 0; ii < 60; ii++) {
+            // sprites occupy the tiles up and to the left of their origin, none of which may
+            // already be occupied
+            int size = (rando.nextInt(4) == 0) ? 2 : 1;
+            int tx = size - 1 + rando.nextInt(GRID - size + 1);
+            int ty = size - 1 + rando.nextInt(GRID - size + 1);
+            if (!occupy(occupied, tx, ty, size)) {
+                continue;
+            }
+            TestSprite sprite = new TestSprite(size, 40 * size, 40 + rando.nextInt(60));
+            // place the sprite's bottom center on the bottom corner of its tile
+            int sx = (tx - ty) * TILE_HWID, sy = (tx + ty + 1) * TILE_HHEI;
+            sprite.setLocation(sx - sprite.getWidth() / 2, sy - sprite.getHeight());
+            list.appendDirtySprite(sprite, tx, ty);
+        }
+
+        // prepare the sorted item lists the way DirtyItemList.sort() does
+        list._xitems.addAll(list._items);
+        list._xitems.sort(DirtyItemList.ORIGIN_X_COMP);
+        list._yitems.addAll(list._items);
+        list._yitems.sort(DirtyItemList.ORIGIN_Y_COMP);
+        list._ditems.addAll(list._items);
+        list._ditems.sort(DirtyItemList.REAR_DEPTH_COMP);
+
+        SortableArrayList<DirtyItem> gsorted = new SortableArrayList<DirtyItem>();
+        SortableArrayList<DirtyItem> isorted = new SortableArrayList<DirtyItem>();
+        list.graphSort(gsorted);
+        list.insertionSort(isorted);
+        assertEquals(list._items.size(), gsorted.size());
+        assertEquals(list._items.size(), isorted.size());
+
+        Map<DirtyItem, Integer> gpos = Maps.newIdentityHashMap();
+        Map<DirtyItem, Integer> ipos = Maps.newIdentityHashMap();
+        for (int ii = 0, ll = gsorted.size(); ii < ll; ii++) {
+            gpos.put(gsorted.get(ii), ii);
+            ipos.put(isorted.get(ii), ii);
+        }
+        for (int ii = 0, ll = list._items.size(); ii < ll; ii++) {
+            DirtyItem a = list._items.get(ii);
+            for (int jj = ii + 1; jj < ll; jj++) {
+                DirtyItem b = list._items.get(jj);
+                if (!a.getBounds().intersects(b.getBounds())) {
+                    continue;
+                }
+                assertEquals("Sorts disagree " + a + " " + b,
+                             ipos.get(a) < ipos.get(b), gpos.get(a) < gpos.get(b));
+            }
+        }
+    }
+
+    /**
+     * Marks the square of tiles with the specified size and origin as occupied, unless any of
+     * them already are.
+     */
+    protected static boolean occupy (boolean[] occupied, int tx, int ty, int size)
+    {
+        for (int yy = ty - size + 1; yy <= ty; yy++) {
+            for (int xx = tx - size + 1; xx <= tx; xx++) {
+                if (occupied[yy * GRID + xx]) {
+                    return false;
+                }
+            }
+        }
+        for (int yy = ty - size + 1; yy <= ty; yy++) {
+            for (int xx = tx - size + 1; xx <= tx; xx++) {
+                occupied[yy * GRID + xx] = true;
+            }
+        }
+        return true;
+    }
+
+    /** A plain sprite that may occupy a square of tiles. */
+    protected static class TestSprite extends Sprite
+        implements MultiTileSprite
+    {
+        public TestSprite (int size, int width, int height)
+        {
+            super(width, height);
+            _size = size;
+        }
+
+        // documentation inherited from interface
+        public int getBaseWidth ()
+        {
+            return _size;
+        }
+
+        // documentation inherited from interface
+        public int getBaseHeight ()
+        {
+            return _size;
+        }
+
+        protected int _size;
+    }
+
+    public static Test suite ()
+    {
+        return new DirtyItemListTest();
+    }
+
+    public static void main (String[] args)
+    {
+        DirtyItemListTest test = new DirtyItemListTest();
+        test.runTest();
+    }
+
+    /** The size of the grid of tiles on which we place sprites. */
+    protected static final int GRID = 16;
+
+    /** Half the width and height of a tile in pixels. */
+    protected static final int TILE_HWID = 32, TILE_HHEI = 16;
+}
@@ -0,0 +1,182 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.data;
+
+import java.util.Random;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.awt.Rectangle;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.threerings.miso.util.ObjectSet;
+
+/**
+ * Tests that a {@link MappedMisoSceneModel} reads back the scene it was written from, and that
+ * edits made to it survive being saved and reopened.
+ */
+public class MappedMisoSceneModelTest extends TestCase
+{
+    public MappedMisoSceneModelTest ()
+    {
+        super(MappedMisoSceneModelTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        Random rando = new Random(42);
+        SparseMisoSceneModel sparse = new SparseMisoSceneModel(SECTION_SIZE, SECTION_SIZE);
+        sparse.defTileSet = 17;
+        for (int ii = 0; ii < 2000; ii++) {
+            int x = randomCoord(rando), y = randomCoord(rando);
+            sparse.setBaseTile((rando.nextInt(50) + 1) << 16 | rando.nextInt(16), x, y);
+        }
+        for (int ii = 0; ii < 200; ii++) {
+            sparse.addObject(randomObject(rando));
+        }
+
+        try {
+            File file = File.createTempFile("scene", ".mscn");
+            File saved = File.createTempFile("scene", ".mscn");
+            try {
+                MappedMisoSceneModel.write(sparse, file);
+                // retain few sections so that they are evicted and decoded again
+                MappedMisoSceneModel mapped = new MappedMisoSceneModel(file, 4);
+                try {
+                    checkScene(sparse, mapped);
+                    assertFalse(mapped.isModified());
+
+                    // make the same edits to both scenes
+                    for (int ii = 0; ii < 500; ii++) {
+                        int x = randomCoord(rando), y = randomCoord(rando);
+                        int tileId = (rando.nextInt(50) + 1) << 16 | rando.nextInt(16);
+                        sparse.setBaseTile(tileId, x, y);
+                        mapped.setBaseTile(tileId, x, y);
+                    }
+                    ObjectSet objs = new ObjectSet();
+                    sparse.getObjects(BOUNDS, objs);
+                    for (int ii = 0; ii < objs.size(); ii += 3) {
+                        ObjectInfo info = objs.get(ii);
+                        assertTrue(sparse.removeObject(info));
+                        assertTrue(mapped.removeObject(info));
+                    }
+                    for (int ii = 0; ii < 50; ii++) {
+                        ObjectInfo info = randomObject(rando);
+                        assertEquals(sparse.addObject(info), mapped.addObject(info.clone()));
+                    }
+                    sparse.defTileSet = 23;
+                    mapped.setDefaultBaseTileSet(23);
+                    assertTrue(mapped.isModified());
+                    checkScene(sparse, mapped);
+
+                    mapped.save(saved);
+                } finally {
+                    mapped.close();
+                }
+
+                MappedMisoSceneModel reopened = new MappedMisoSceneModel(saved);
+                try {
+                    checkScene(sparse, reopened);
+                    assertFalse(reopened.isModified());
+                } finally {
+                    reopened.close();
+                }
+            } finally {
+                file.delete();
+                saved.delete();
+            }
+
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Checks that the supplied scene has the same tiles and objects as the expected scene.
+     */
+    protected void checkScene (SparseMisoSceneModel expect, MisoSceneModel scene)
+    {
+        assertEquals(expect.getDefaultBaseTileSet(), scene.getDefaultBaseTileSet());
+        for (int y = BOUNDS.y; y < BOUNDS.y + BOUNDS.height; y++) {
+            for (int x = BOUNDS.x; x < BOUNDS.x + BOUNDS.width; x++) {
+                assertEquals("Tile " + x + "+" + y,
+                             expect.getBaseTileId(x, y), scene.getBaseTileId(x, y));
+            }
+        }
+
+        ObjectSet eobjs = new ObjectSet(), objs = new ObjectSet();
+        expect.getObjects(BOUNDS, eobjs);
+        scene.getObjects(BOUNDS, objs);
+        assertEquals(eobjs.size(), objs.size());
+        for (int ii = 0; ii < eobjs.size(); ii++) {
+            ObjectInfo einfo = eobjs.get(ii), info = objs.get(ii);
+            assertEquals(einfo, info);
+            assertEquals(einfo.action, info.action);
+            assertEquals(einfo.priority, info.priority);
+            assertEquals(einfo.sx, info.sx);
+            assertEquals(einfo.sy, info.sy);
+            assertEquals(einfo.sorient, info.sorient);
+            assertEquals(einfo.zations, info.zations);
+        }
+    }
+
+    protected static int randomCoord (Random rando)
+    {
+        return BOUNDS.x + rando.nextInt(BOUNDS.width);
+    }
+
+    protected static ObjectInfo randomObject (Random rando)
+    {
+        ObjectInfo info = new ObjectInfo(
+            (rando.nextInt(50) + 1) << 16 | rando.nextInt(16), randomCoord(rando),
+            randomCoord(rando));
+        if (rando.nextBoolean()) {
+            info.action = "action" + rando.nextInt(10);
+            info.priority = (byte)rando.nextInt(5);
+            info.sx = (byte)rando.nextInt(3);
+            info.sy = (byte)rando.nextInt(3);
+            info.sorient = (byte)rando.nextInt(8);
+            info.zations = rando.nextInt();
+        }
+        return info;
+    }
+
+    public static Test suite ()
+    {
+        return new MappedMisoSceneModelTest();
+    }
+
+    public static void main (String[] args)
+    {
+        MappedMisoSceneModelTest test = new MappedMisoSceneModelTest();
+        test.runTest();
+    }
+
+    /** The size of our scene sections. */
+    protected static final int SECTION_SIZE = 10;
+
+    /** The region of the scene in which we place tiles and objects, which spans the origin. */
+    protected static final Rectangle BOUNDS = new Rectangle(-35, -25, 80, 60);
+}
@@ -0,0 +1,117 @@
+//
+// Nenya library - tools for developing networked games
+// Copyright (C) 2002-2012 Three Rings Design, Inc., All Rights Reserved
+// https://github.com/threerings/nenya
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.miso.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+import com.google.common.collect.Lists;
+
+import com.threerings.miso.data.ObjectInfo;
+
+/**
+ * Tests that filling an {@link ObjectSet} with {@link ObjectSet#append} produces the same set as
+ * inserting the objects one at a time.
+ */
+public class ObjectSetTest extends TestCase
+{
+    public ObjectSetTest ()
+    {
+        super(ObjectSetTest.class.getName());
+    }
+
+    @Override
+    public void runTest ()
+    {
+        Random rando = new Random(42);
+        ArrayList<ObjectInfo> infos = Lists.newArrayList();
+        ObjectSet inserted = new ObjectSet();
+        for (int ii = 0; ii < 300; ii++) {
+            // use a small range of ids and coordinates so that objects share ids and coordinates,
+            // and some large ones to check that the ordering doesn't overflow
+            int tileId = (rando.nextInt(10) == 0) ? Integer.MAX_VALUE - rando.nextInt(3) :
+                rando.nextInt(4);
+            ObjectInfo info = new ObjectInfo(tileId, rando.nextInt(5) - 2, rando.nextInt(5) - 2);
+            if (!inserted.contains(info)) {
+                assertTrue(inserted.insert(info));
+                infos.add(info);
+            }
+        }
+        Collections.shuffle(infos, rando);
+
+        ObjectSet appended = new ObjectSet();
+        for (ObjectInfo info : infos) {
+            appended.append(info);
+        }
+        // the set may not be read until the append is finished
+        try {
+            appended.size();
+            fail();
+        } catch (IllegalStateException ise) {
+            // expected
+        }
+        appended.finishAppend();
+
+        assertEquals(inserted.size(), appended.size());
+        for (int ii = 0; ii < inserted.size(); ii++) {
+            assertEquals(inserted.get(ii), appended.get(ii));
+        }
+        for (ObjectInfo info : infos) {
+            assertTrue(appended.contains(info));
+        }
+        assertFalse(appended.contains(new ObjectInfo(7, 0, 0)));
+
+        // duplicates appended to a set are dropped when the append is finished
+        ObjectSet duped = new ObjectSet();
+        duped.append(new ObjectInfo(1, 0, 0));
+        duped.append(new ObjectInfo(2, 1, 0));
+        duped.append(new ObjectInfo(1, 0, 0));
+        duped.append(new ObjectInfo(3, 0, 1));
+        duped.append(new ObjectInfo(2, 1, 0));
+        duped.finishAppend();
+        assertEquals(3, duped.size());
+
+        // a set that has been appended to in order needs no sorting, and remains usable
+        ObjectSet ordered = new ObjectSet();
+        for (int ii = 0; ii < inserted.size(); ii++) {
+            ordered.append(inserted.get(ii));
+        }
+        ordered.finishAppend();
+        assertEquals(inserted.size(), ordered.size());
+        assertTrue(ordered.remove(inserted.get(0)));
+        assertTrue(ordered.insert(inserted.get(0)));
+        assertEquals(inserted.get(0), ordered.get(0));
+    }
+
+    public static Test suite ()
+    {
+        return new ObjectSetTest();
+    }
+
+    public static void main (String[] args)
+    {
+        ObjectSetTest test = new ObjectSetTest();
+        test.runTest();
+    }
+}
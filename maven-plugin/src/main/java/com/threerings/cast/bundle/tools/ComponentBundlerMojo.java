@@ -97,6 +97,13 @@ public class ComponentBundlerMojo extends AbstractMojo
     @Parameter(defaultValue="false")
     private boolean keepRawPngs;
 
+    /**
+     * Whether to write a mappable component index to each bundle in addition to the serialized
+     * component table.
+     */
+    @Parameter(defaultValue="false")
+    private boolean componentIndex;
+
     /**
      * File patterns to include during the component bundle processing.
      */
@@ -121,6 +128,7 @@ public class ComponentBundlerMojo extends AbstractMojo
         ComponentBundler bundler = new ComponentBundler(mapFile, actionDef) {
             @Override protected boolean keepRawPngs () { return keepRawPngs; }
             @Override protected boolean uncompressed () { return false; }
+            @Override protected boolean writeComponentIndex () { return componentIndex; }
             @Override protected void logInfo (String message) { getLog().info(message); }
             @Override protected void logWarn (String message) { getLog().warn(message); }
         };
@@ -52,6 +52,7 @@ import com.samskivert.util.Tuple;
 import com.threerings.cast.ComponentIDBroker;
 import com.threerings.cast.StandardActions;
 import com.threerings.cast.bundle.BundleUtil;
+import com.threerings.cast.bundle.ComponentIndex;
 import com.threerings.media.tile.ImageProvider;
 import com.threerings.media.tile.SimpleCachingImageProvider;
 import com.threerings.media.tile.TileSet;
@@ -69,6 +70,7 @@ public abstract class ComponentBundler {
 
     protected boolean keepRawPngs () { return false; }
     protected boolean uncompressed () { return false; }
+    protected boolean writeComponentIndex () { return false; }
 
     protected void logInfo (String message) {
         System.out.println(message);
@@ -176,6 +178,12 @@ public abstract class ComponentBundler {
                 oout.flush();
             }
 
+            // and the mappable index of that table, if requested
+            if (writeComponentIndex() && !skipEntry(BundleUtil.COMPONENT_INDEX_PATH, newest)) {
+                fout = nextEntry(fout, BundleUtil.COMPONENT_INDEX_PATH);
+                ComponentIndex.write(mapping, fout);
+            }
+
             if (fout != null) {
                 // seal up our jar file if we created one
                 fout.close();
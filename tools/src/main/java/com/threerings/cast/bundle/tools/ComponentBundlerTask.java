@@ -111,6 +111,15 @@ public class ComponentBundlerTask extends Task
         _uncompressed = uncompressed;
     }
 
+    /**
+     * Note whether we are to write a mappable component index to the bundle in addition to the
+     *  serialized component table.
+     */
+    public void setComponentIndex (boolean componentIndex)
+    {
+        _componentIndex = componentIndex;
+    }
+
     /**
      * Performs the actual work of the task.
      */
@@ -142,6 +151,7 @@ public class ComponentBundlerTask extends Task
         return new ComponentBundler(_mapfile, _actionDef) {
             @Override protected boolean keepRawPngs () { return _keepRawPngs; }
             @Override protected boolean uncompressed () { return _uncompressed; }
+            @Override protected boolean writeComponentIndex () { return _componentIndex; }
         };
     }
 
@@ -170,4 +180,7 @@ public class ComponentBundlerTask extends Task
 
     /** Whether we should keep the bundle jars uncompressed rather than zipped. */
     protected boolean _uncompressed;
+
+    /** Whether we should write a mappable component index to the bundle. */
+    protected boolean _componentIndex;
 }
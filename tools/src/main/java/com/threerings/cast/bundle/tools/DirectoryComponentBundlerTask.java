@@ -37,6 +37,7 @@ public class DirectoryComponentBundlerTask extends ComponentBundlerTask
         return new ComponentBundler(_mapfile, _actionDef) {
             @Override protected boolean keepRawPngs () { return _keepRawPngs; }
             @Override protected boolean uncompressed () { return _uncompressed; }
+            @Override protected boolean writeComponentIndex () { return _componentIndex; }
 
             @Override protected OutputStream createOutputStream (File target) throws IOException {
                 // we recreate our output stream on every entry; we don't need one to start with